@@ -0,0 +1,48 @@
+(ns bench.code4life-throughput
+  (:require [clojure.pprint :refer [print-table]]
+            [clojure.string :as str])
+  (:import [code4life Bot BotPlayers MatchResults$Match Referee RefereeSession]
+           [java.util.function Consumer]))
+
+; Measures the throughput of the Code4Life referee, playing matches between
+; the baseline bots in-process, without any thread or channel.
+; Run with `(bench.code4life-throughput/run 100)` from the REPL.
+
+(def pairs
+  [["random" "random"]
+   ["greedy" "greedy"]
+   ["greedy" "project"]
+   ["project" "project"]])
+
+(defn- play!
+  [[name1 name2] seed recorder]
+  (let [players (BotPlayers. (into-array Bot [(Bot/create name1 seed)
+                                              (Bot/create name2 (inc seed))]))]
+    (.run (RefereeSession. players (Referee/recordingTo recorder)))))
+
+(defn- measure
+  [pair n]
+  (let [rounds (atom 0)
+        scores (atom [0 0])
+        recorder (reify Consumer
+                   (accept [_ match]
+                     (let [^MatchResults$Match match match]
+                       (swap! rounds + (.-rounds match))
+                       (swap! scores #(mapv + % (map (fn [p] (.-score p)) (.-players match)))))))
+        start (System/nanoTime)]
+    (dotimes [i n]
+      (play! pair (* 2 i) recorder))
+    (let [seconds (/ (- (System/nanoTime) start) 1e9)]
+      {:bots (str/join " vs " pair)
+       :matches-per-s (long (/ n seconds))
+       :turns-per-s (long (/ @rounds seconds))
+       :mean-scores (mapv #(quot % n) @scores)})))
+
+(defn run
+  ([] (run 100))
+  ([n]
+   (dotimes [_ 2]
+     (measure (first pairs) (max 1 (quot n 10))))
+   (let [results (mapv #(measure % n) pairs)]
+     (print-table results)
+     results)))
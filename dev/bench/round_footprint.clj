@@ -0,0 +1,56 @@
+(ns bench.round-footprint
+  (:require [clojure.pprint :refer [print-table]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]))
+
+; Compares the heap retained by idle rounds run by their own engine, with
+; channels, loops and agent, against rounds run by the shared scheduler.
+; Run with `(bench.round-footprint/run 10000)` from the REPL.
+
+(def gathering {:game (game/get-name ttt/game-definition)
+                :players ["p1" "p2"]})
+
+(defn- used-heap
+  []
+  (let [runtime (Runtime/getRuntime)]
+    (dotimes [_ 3]
+      (System/gc)
+      (Thread/sleep 200))
+    (- (.totalMemory runtime) (.freeMemory runtime))))
+
+(defn- wait-for-start
+  "Waits for the initial messages of all rounds to be published."
+  [created]
+  (doseq [round created]
+    (loop [i 0]
+      (when (and (< i 100)
+                 (empty? (get-in @(:state round) [:messages "p1"])))
+        (Thread/sleep 1)
+        (recur (inc i))))))
+
+(defn- measure
+  [model n create-round]
+  (let [before (used-heap)
+        start (System/nanoTime)
+        created (doall (repeatedly n create-round))
+        _ (wait-for-start created)
+        creation-time (- (System/nanoTime) start)
+        after (used-heap)]
+    (doseq [round created]
+      (game/stop (:engine round)))
+    {:model model
+     :rounds n
+     :bytes-per-round (quot (- after before) n)
+     :creation-us-per-round (quot creation-time (* 1000 n))}))
+
+(defn run
+  ([] (run 10000))
+  ([n]
+   (let [scheduler (scheduler/create-scheduler (scheduler/read-config))
+         results [(measure :own-engine n #(rounds/create-round gathering ttt/game-definition))
+                  (measure :scheduled n #(rounds/create-round gathering ttt/game-definition scheduler))]]
+     (scheduler/stop! scheduler)
+     (print-table results)
+     results)))
@@ -6,6 +6,7 @@
   :dependencies [[org.clojure/clojure "1.10.1"]
                  [org.clojure/spec.alpha "0.2.176"]
                  [org.clojure/core.async "0.7.559"]
+                 [cheshire "5.9.0"]
                  [compojure "1.6.1"]
                  [http-kit "2.3.0"]
                  [ring/ring-defaults "0.3.2"]
@@ -14,6 +15,7 @@
   :target-path "target/%s"
   :source-paths ["src/clojure"]
   :test-paths ["test/clojure"]
+  :resource-paths ["resources"]
   :java-source-paths ["src/java"]
   :javac-options ["-target" "11" "-source" "11"]
   :profiles {
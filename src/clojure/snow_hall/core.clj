@@ -5,16 +5,29 @@
    [ring.middleware.defaults :as ring-defaults]
    [ring.middleware.json :as json]
    [ring.middleware.reload :as reload]
+   [snow-hall.metrics :as metrics]
    [snow-hall.games.manager :as game-mgr]
+   [snow-hall.games.plugins :as plugins]
    [snow-hall.games.round]
-   [snow-hall.games.library.sample]
-   [snow-hall.games.library.tic-tac-toe]
-   [snow-hall.games.library.rpsls]
+   [snow-hall.games.scheduler :as scheduler]
+   [snow-hall.games.spectators :as spectators]
    [snow-hall.hall.butler]
+   [snow-hall.hall.cluster :as cluster]
+   [snow-hall.hall.credentials :as credentials]
+   [snow-hall.hall.janitor :as janitor]
+   [snow-hall.hall.limiter :as limiter]
+   [snow-hall.hall.journal :as journal]
+   [snow-hall.hall.matchmaker :as matchmaker]
+   [snow-hall.hall.passivation :as passivation]
+   [snow-hall.hall.tournament :as tournament]
    [snow-hall.hall.visitor]
+   [snow-hall.rest.cluster]
    [snow-hall.rest.games]
    [snow-hall.rest.gatherings]
+   [snow-hall.rest.matchmaking]
+   [snow-hall.rest.metrics]
    [snow-hall.rest.rounds]
+   [snow-hall.rest.tournaments]
    [snow-hall.rest.visitors])
   (:gen-class))
 
@@ -28,10 +41,9 @@
 
 (defn create-game-store
   []
-  (-> (game-mgr/create-store)
-      (game-mgr/add-game snow-hall.games.library.sample/game-definition)
-      (game-mgr/add-game snow-hall.games.library.tic-tac-toe/game-definition)
-      (game-mgr/add-game snow-hall.games.library.rpsls/game-definition)
+  (-> (reduce game-mgr/add-game
+              (game-mgr/create-store)
+              (plugins/discover (plugins/read-config)))
       (ref :validator snow-hall.games.manager/validate-fn)))
 
 (defn create-visitor-registry
@@ -49,35 +61,62 @@
   (ref (snow-hall.games.round/create-store)
        :validator snow-hall.games.round/validate-fn))
 
+(defn create-round-archives
+  []
+  (ref (snow-hall.games.round/create-archives)
+       :validator snow-hall.games.round/validate-archives-fn))
+
 (defn create-context
   []
   {:games  (create-game-store)
    :visitors (create-visitor-registry)
+   :credentials (credentials/create (credentials/read-config))
+   :limiter (limiter/create (limiter/read-config))
    :tab (create-hall-tab)
-   :rounds (create-round-registry)})
+   :rounds (create-round-registry)
+   :archives (create-round-archives)
+   :janitor (janitor/create-metrics)
+   :metrics (metrics/create-registry)
+   :journal (journal/create (journal/read-config))
+   :cluster (cluster/create (cluster/read-config))
+   :matchmaker (matchmaker/create)
+   :spectators (spectators/create)
+   :passivation (passivation/create (passivation/read-config))
+   :tournaments (tournament/create (tournament/read-config))
+   :scheduler (scheduler/create-scheduler (scheduler/read-config))})
 
 (defn create-app-routes
   [context]
   (apply cmpj/routes (concat
                       basic-routes
+                      (snow-hall.rest.metrics/create-routes context)
+                      (snow-hall.rest.cluster/create-routes context)
                       (snow-hall.rest.games/create-routes context)
                       (snow-hall.rest.gatherings/create-routes context)
+                      (snow-hall.rest.matchmaking/create-routes context)
                       (snow-hall.rest.rounds/create-routes context)
+                      (snow-hall.rest.tournaments/create-routes context)
                       (snow-hall.rest.visitors/create-routes context))))
 
 (def app-site-config
   (update-in ring-defaults/site-defaults [:security] dissoc :anti-forgery))
 
 (defn create-handler
-  [app-routes]
+  [app-routes context]
   (-> app-routes
+      (cmpj/wrap-routes metrics/wrap-route-label)
+      (limiter/wrap-limits context snow-hall.rest.gatherings/authenticate)
       (json/wrap-json-body)
       (json/wrap-json-response {:keywords? true :bigdecimals? true})
-      (ring-defaults/wrap-defaults app-site-config)))
+      (ring-defaults/wrap-defaults app-site-config)
+      (cluster/wrap-authentication context)
+      (cluster/wrap-routing context)
+      (passivation/wrap-rehydrate context)
+      (metrics/wrap-latency (:metrics context))))
 
 (defn create-stack
   [context]
-  (-> context create-app-routes create-handler))
+  (create-handler (create-app-routes context) context))
 
 (def dev-context nil)
 
@@ -92,9 +131,8 @@
   (save-context! nil))
 
 (defn setup-stack
-  [dev]
-  (let [context (create-context)
-        stack (create-stack context)]
+  [context dev]
+  (let [stack (create-stack context)]
     (when dev
       (save-context! context))
     (if dev
@@ -106,17 +144,29 @@
     (reset-context!)))
 
 (defn create-destroy-fn
-  [handle dev]
+  [handle dev & services]
   (fn []
     (tear-down-stack dev)
+    (doseq [stop-service services]
+      (stop-service))
     ;; (shutdown-agents) Do not shutdown pools as we cannot restart them in REPL
     (handle)))
 
 (defn start-server
   [port dev]
-  (let [stack (setup-stack dev)
+  (let [context (create-context)
+        stack (setup-stack context dev)
+        stop-journal (journal/start context)
+        stop-janitor (janitor/start context (janitor/read-config))
         server-handle (server/run-server stack {:port port})]
-    (create-destroy-fn server-handle dev)))
+    (cluster/join! context)
+    (create-destroy-fn server-handle
+                       dev
+                       #(cluster/leave! context)
+                       stop-janitor
+                       #(scheduler/stop! (:scheduler context))
+                       plugins/shutdown!
+                       stop-journal)))
 
 (defn -main
   "Starts the Game Server"
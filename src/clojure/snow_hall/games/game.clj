@@ -27,7 +27,70 @@
   {:post [(some? %)]}
   (-> game (get-specs)( :player-count)))
 
+(defprotocol Plugin
+  "Abstraction of a game registered by name, whose definition is loaded on
+  first use."
+  (load-definition
+   [game]
+   "Loads the definition of the game, once.
+   Returns the definition."))
+
+(defn definition
+  "Gets the definition of a game, loading it for plugins."
+  [game]
+  (if (satisfies? Plugin game)
+    (load-definition game)
+    game))
+
 (defprotocol RoundEngine
   (ios [e] "Returns the arrays of IOs for each player in the Round.
   Each IO is made of :in chan for player move and :out chan for Round messages." )
   (stop [e] "Stops the round."))
+
+(defprotocol Steps
+  "Abstraction of a game played as pure steps, which can be run by the
+  scheduler without channels or loops.
+  Messages are sequences of `[player-index content]`."
+  (init-state
+   [game options]
+   "Creates the state of a new round.
+   Returns `[state messages]`, messages being sent to players at start.")
+  (step
+   [game state player move]
+   "Plays the move of a player, identified by its index.
+   Returns `[next-state messages]`.")
+  (ended?
+   [game state]
+   "Tests if the round reached its end."))
+
+(defprotocol Spectated
+  "Abstraction of a game whose rounds can be followed by spectators."
+  (public-view
+   [game last]
+   "Gets what spectators see of a round, from the last message to each
+   player as a map of player uuid to content. Must not reveal what only a
+   player may know."))
+
+(defn spectated?
+  "Tests if the rounds of a game can be followed by spectators."
+  [game]
+  (satisfies? Spectated (definition game)))
+
+(def house-player
+  "Id of the house bot in the players of a gathering or a round."
+  "house-bot")
+
+(defprotocol HouseBot
+  "Abstraction of a game providing a bot to play against visitors.
+  The bot plays on the states of the Steps of the game."
+  (bot-move
+   [game state player]
+   "Chooses the move of the bot playing as player, identified by its index.
+   Returns nil if the bot is not expected to play."))
+
+(defn house-bot?
+  "Tests if the house bot can take a seat in the rounds of a game."
+  [game]
+  (let [game (definition game)]
+    (and (satisfies? HouseBot game)
+         (satisfies? Steps game))))
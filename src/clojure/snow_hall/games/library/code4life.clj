@@ -0,0 +1,160 @@
+(ns snow-hall.games.library.code4life
+  (:require [clojure.core.async :as async :refer [chan alts!! >!! close! timeout]]
+            [clojure.string :as str]
+            [snow-hall.games.game :as game])
+  (:import [code4life MatchResults Referee RefereeSession RefereeSession$Factory RefereeSession$Players]
+           [java.io InputStream IOException PrintStream]
+           [java.nio.file Paths]
+           [java.lang.reflect InvocationTargetException]))
+
+(def timeout-command
+  "Command played for a player missing the deadline of its turn.
+  This is an invalid command, making the player lose."
+  "TIMEOUT")
+
+(def max-turn-timeout
+  "Longest deadline of a turn, in milliseconds."
+  600000)
+
+(defn read-options
+  "Reads the deadline of the turns of a player, in milliseconds."
+  [options]
+  (let [turn-timeout (get options "turn-timeout" 30000)]
+    (when-not (and (int? turn-timeout)
+                   (<= 1 turn-timeout max-turn-timeout))
+      (throw (IllegalArgumentException.
+              (str "Invalid turn-timeout " turn-timeout
+                   ", must be within 1-" max-turn-timeout " ms"))))
+    {:turn-timeout turn-timeout}))
+
+(defn create-io
+  []
+  {:in (chan 1) :out (chan 1)})
+
+(defrecord Code4LifeRound [ios stop]
+  game/RoundEngine
+  (ios [e] ios)
+  (stop [e] (async/offer! stop true)))
+
+(defn ranking->messages
+  "Converts the ranking given by the referee into the end messages of players.
+  Players sharing a rank are not separated, as in `01`."
+  [ranking]
+  (case (first (str/split ranking #" "))
+    "0" ["WIN" "LOSS"]
+    "1" ["LOSS" "WIN"]
+    ["DRAW" "DRAW"]))
+
+(defn move->lines
+  "Splits a move into the exact number of lines expected by the referee."
+  [move line-count]
+  (->> (concat (str/split-lines (str move)) (repeat ""))
+       (take line-count)
+       (into-array String)))
+
+(defn- read-output!
+  [{:keys [ios stop]} wait player line-count]
+  (let [in (:in (nth ios player))
+        [move c] (alts!! [stop in (timeout wait)] :priority true)]
+    (cond
+      (= c stop) (throw (IOException. "Round stopped"))
+      (nil? move) (if (= c in)
+                    (throw (IOException. "Player input closed"))
+                    (move->lines timeout-command line-count))
+      :else (move->lines move line-count))))
+
+(defn- end-game!
+  [round]
+  (doseq [{:keys [in out]} (:ios round)]
+    (close! in)
+    (close! out)))
+
+(defn- create-players
+  "Creates the players of a session. Each player must answer within the
+  turn timeout of getting its input, as players of a round can be asked for
+  their outputs at once and then read one after the other."
+  [{:keys [ios] :as round} {:keys [turn-timeout]}]
+  (let [deadlines (long-array (count ios))]
+    (reify RefereeSession$Players
+      (onInput [_ player lines]
+        (>!! (:out (nth ios player)) (str/join "\n" lines))
+        (aset deadlines player (+ (System/currentTimeMillis) turn-timeout)))
+      (onOutput [_ player line-count]
+        (read-output! round
+                      (max 0 (- (aget deadlines player) (System/currentTimeMillis)))
+                      player
+                      line-count))
+      (onEnd [_ ranking]
+        (doseq [[io message] (map vector ios (ranking->messages ranking))]
+          (>!! (:out io) message))))))
+
+(defn- run-session!
+  [round options factory]
+  (try
+    (.run (RefereeSession. (create-players round options) factory))
+    (catch Exception _
+      (doseq [io (:ios round)]
+        (>!! (:out io) "ABORTED")))
+    (finally
+      (end-game! round))))
+
+(defn- create
+  []
+  (Code4LifeRound.
+   (vec (repeatedly 2 create-io))
+   (chan 1)))
+
+(defn class-factory
+  "Creates the factory of a referee class, built from its input and outputs."
+  [^Class referee-class]
+  (let [constructor (.getConstructor referee-class
+                                     (into-array Class [InputStream PrintStream PrintStream]))]
+    (reify RefereeSession$Factory
+      (create [_ in out err]
+        (try
+          (.newInstance constructor (object-array [in out err]))
+          (catch InvocationTargetException e
+            (throw (.getCause e))))))))
+
+(defn create-and-start
+  ([options]
+   (create-and-start options (class-factory Referee)))
+  ([options factory]
+   (let [round (create)]
+     (async/thread (run-session! round options factory))
+     round)))
+
+(defn referee-definition
+  "Defines a two-player game played by a referee of the session."
+  [game-name factory]
+  (reify
+    game/Game
+    (get-specs [this] {:name game-name
+                       :player-count {:exact 2}})
+    (read-options [this options] (read-options options))
+    (get-player-count [this options] 2)
+    (create-engine [this options] (create-and-start options factory))))
+
+(defn- open-results
+  "Opens the results of the matches in dir, closed when the JVM stops."
+  [dir]
+  (let [results (MatchResults/open (Paths/get dir (make-array String 0)))]
+    (.addShutdownHook (Runtime/getRuntime) (Thread. #(.close results)))
+    results))
+
+(def results
+  "Results of the matches, recorded when CODE4LIFE_RESULTS_DIR is set."
+  (delay (some-> (System/getProperty "CODE4LIFE_RESULTS_DIR") open-results)))
+
+(defn recording-factory
+  "Creates the factory of referees recording their results, if enabled."
+  [results]
+  (let [plain (class-factory Referee)]
+    (reify RefereeSession$Factory
+      (create [_ in out err]
+        (if-let [recorder @results]
+          (.create (Referee/recordingTo recorder) in out err)
+          (.create plain in out err))))))
+
+(def game-definition
+  (referee-definition "Code4Life" (recording-factory results)))
@@ -0,0 +1,314 @@
+(ns snow-hall.games.library.external
+  (:require [clojure.core.async :as async]
+            [clojure.string :as str]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.library.code4life :as referee])
+  (:import [java.io ByteArrayOutputStream InputStream]
+           [java.lang ProcessBuilder$Redirect]
+           [java.nio.charset StandardCharsets]
+           [java.util.concurrent ConcurrentHashMap LinkedBlockingQueue]
+           [java.util.concurrent.atomic AtomicBoolean]
+           [java.util.concurrent.locks LockSupport]))
+
+; Games played by referee executables speaking the referee protocol.
+; The referee reads `###Start 2` then the outputs of the players, and writes
+; `###Input <player>` followed by the input lines, `###Output <player>
+; <lines>` to ask for a move and `###End <ranking>` once over.
+; Each game keeps a pool of started processes, so that rounds do not wait for
+; a referee to start. A process is used for one round, then dropped, unless
+; the referee is reusable, reading the next `###Start` after its `###End`.
+; The rounds are driven by a few shared threads, each polling the output of
+; its referees and the moves of their players without blocking, instead of a
+; thread per round. A thread without sessions sleeps until it gets one.
+
+(defn read-config
+  "Reads the configuration of the external referees from the system
+  properties."
+  []
+  {:pool-size (Long/getLong "REFEREE_POOL_SIZE" 4)
+   :threads (Long/getLong "REFEREE_THREADS" 2)})
+
+; Pool of processes
+
+(defn- spawn
+  [command]
+  (-> (ProcessBuilder. ^java.util.List (vec command))
+      (.redirectError ProcessBuilder$Redirect/DISCARD)
+      (.start)))
+
+(defonce ^:private pools (atom #{}))
+
+(defn create-pool
+  [command reusable? {:keys [pool-size]}]
+  (let [pool {:command command
+              :reusable? reusable?
+              :size pool-size
+              :idle (LinkedBlockingQueue.)
+              :busy (ConcurrentHashMap/newKeySet)
+              :filling (AtomicBoolean. false)
+              :closed (AtomicBoolean. false)}]
+    (swap! pools conj pool)
+    pool))
+
+(defn- destroy-idle!
+  [{:keys [^LinkedBlockingQueue idle]}]
+  (loop []
+    (when-let [^Process process (.poll idle)]
+      (.destroy process)
+      (recur))))
+
+(defn- fill!
+  "Starts processes in the background until size are waiting."
+  [{:keys [command size ^LinkedBlockingQueue idle ^AtomicBoolean filling ^AtomicBoolean closed]
+    :as pool}]
+  (when (.compareAndSet filling false true)
+    (future
+      (try
+        (while (and (not (.get closed)) (< (.size idle) size))
+          (.offer idle (spawn command))
+          ; The pool may have been shut down while the process started
+          (when (.get closed)
+            (destroy-idle! pool)))
+        (finally
+          (.set filling false))))))
+
+(defn- acquire!
+  "Takes a started process from the pool, or starts one if none is left."
+  [{:keys [command ^LinkedBlockingQueue idle busy] :as pool}]
+  (let [process (loop []
+                  (let [^Process process (.poll idle)]
+                    (cond
+                      (nil? process) (spawn command)
+                      (.isAlive process) process
+                      :else (recur))))]
+    (.add ^java.util.Set busy process)
+    (fill! pool)
+    process))
+
+(defn- release!
+  "Gives back a process at the end of a round, if it can play again."
+  [{:keys [^LinkedBlockingQueue idle busy size reusable? ^AtomicBoolean closed]} ^Process process ended?]
+  (.remove ^java.util.Set busy process)
+  (if (and ended? reusable? (not (.get closed)) (.isAlive process) (< (.size idle) size))
+    (.offer idle process)
+    (.destroy process)))
+
+(defn shutdown!
+  "Destroys the processes of a pool, waiting or playing a round."
+  [{:keys [busy ^AtomicBoolean closed] :as pool}]
+  (.set closed true)
+  (destroy-idle! pool)
+  (run! #(.destroy ^Process %) (vec busy))
+  (swap! pools disj pool))
+
+(defn shutdown-pools!
+  "Shuts down the pools of all the external referees, when the hall stops."
+  []
+  (run! shutdown! @pools))
+
+; Sessions
+; A session is only touched by the thread polling it.
+
+(defn- create-session
+  [round pool ^Process process options]
+  {:round round
+   :pool pool
+   :process process
+   :options options
+   :line (ByteArrayOutputStream.)
+   :state (volatile! {:input nil :requests clojure.lang.PersistentQueue/EMPTY})})
+
+(defn- send-lines!
+  [{:keys [^Process process]} lines]
+  (let [out (.getOutputStream process)]
+    (doseq [^String line lines]
+      (.write out (.getBytes (str line "\n") StandardCharsets/UTF_8)))
+    (.flush out)))
+
+(defn- send-to-player!
+  [{:keys [round]} player message]
+  (async/put! (:out (nth (:ios round) player)) message))
+
+(defn- flush-input!
+  [{:keys [state] :as session}]
+  (when-let [[player lines] (:input @state)]
+    (send-to-player! session player (str/join "\n" lines))
+    (vswap! state assoc :input nil)))
+
+(defn- handle-line!
+  "Handles a line of the referee. Returns the ranking once the game ended."
+  [{:keys [state options] :as session} line]
+  (condp re-matches line
+    #"###Input (\d+)"
+    :>> (fn [[_ player]]
+          (flush-input! session)
+          (vswap! state assoc :input [(Integer/parseInt player) []])
+          nil)
+
+    #"###Output (\d+) (\d+)"
+    :>> (fn [[_ player line-count]]
+          (flush-input! session)
+          (vswap! state update :requests conj
+                  {:player (Integer/parseInt player)
+                   :line-count (Integer/parseInt line-count)
+                   :deadline (+ (System/currentTimeMillis) (:turn-timeout options))})
+          nil)
+
+    #"###End (.+)"
+    :>> (fn [[_ ranking]]
+          (flush-input! session)
+          ranking)
+
+    (do
+      (when (:input @state)
+        (vswap! state update-in [:input 1] conj line))
+      nil)))
+
+(defn- read-referee!
+  "Reads the lines available from the referee. Returns [progress? ranking]."
+  [{:keys [^Process process ^ByteArrayOutputStream line] :as session}]
+  (let [^InputStream in (.getInputStream process)
+        available (.available in)]
+    (if (pos? available)
+      (let [bytes (byte-array available)
+            n (.read in bytes)]
+        (loop [i 0]
+          (if (< i n)
+            (let [b (aget bytes i)]
+              (if (== b 10)
+                (let [text (str/trim (String. (.toByteArray line) StandardCharsets/UTF_8))]
+                  (.reset line)
+                  (if-let [ranking (handle-line! session text)]
+                    [true ranking]
+                    (recur (inc i))))
+                (do
+                  (.write line (int b))
+                  (recur (inc i)))))
+            [true nil])))
+      [false nil])))
+
+(defn- answer-request!
+  "Sends the move of the player asked by the referee, if it came or if the
+  player is late. Returns true if a move was sent."
+  [{:keys [round state] :as session}]
+  (when-let [{:keys [player line-count deadline]} (peek (:requests @state))]
+    (let [move (async/poll! (:in (nth (:ios round) player)))]
+      (when (or move (> (System/currentTimeMillis) deadline))
+        (send-lines! session (referee/move->lines (or move referee/timeout-command) line-count))
+        (vswap! state update :requests pop)
+        true))))
+
+(defn- end-session!
+  [{:keys [round pool process]} ended?]
+  (release! pool process ended?)
+  (doseq [{:keys [in out]} (:ios round)]
+    (async/close! in)
+    (async/close! out)))
+
+(defn- abort!
+  [{:keys [round] :as session}]
+  (doseq [io (:ios round)]
+    (async/put! (:out io) "ABORTED"))
+  (end-session! session false))
+
+(defn- step!
+  "Moves a session forward without blocking.
+  Returns :done once over, or whether it made progress."
+  [{:keys [round ^Process process] :as session}]
+  (try
+    (if (async/poll! (:stop round))
+      (do (abort! session) :done)
+      (let [[read? ranking] (read-referee! session)]
+        (cond
+          ranking
+          (do
+            (doseq [[io message] (map vector (:ios round) (referee/ranking->messages ranking))]
+              (async/put! (:out io) message))
+            (end-session! session true)
+            :done)
+
+          (answer-request! session)
+          true
+
+          (and (not read?) (not (.isAlive process)))
+          (do (abort! session) :done)
+
+          :else read?)))
+    (catch Exception _
+      (abort! session)
+      :done)))
+
+; Threads polling the sessions
+
+(defn- poll-loop
+  [^LinkedBlockingQueue sessions]
+  (loop [idle-passes 0]
+    ; Only this thread takes sessions, so the queue stays filled once waited
+    (when (.isEmpty sessions)
+      (.offer sessions (.take sessions)))
+    (let [progress? (reduce (fn [progress? _]
+                              (if-let [session (.poll sessions)]
+                                (let [result (step! session)]
+                                  (when-not (= :done result)
+                                    (.offer sessions session))
+                                  (or progress? (true? result)))
+                                (reduced progress?)))
+                            false
+                            (range (.size sessions)))]
+      (if progress?
+        (recur 0)
+        (do
+          ; Back off up to 1ms while nothing happens
+          (LockSupport/parkNanos (min 1000000 (* 10000 (inc idle-passes))))
+          (recur (min 100 (inc idle-passes))))))))
+
+(defn create-multiplexer
+  [{:keys [threads]}]
+  (let [queues (vec (repeatedly threads #(LinkedBlockingQueue.)))]
+    {:queues queues
+     :threads (vec (for [[i queue] (map-indexed vector queues)]
+                     (doto (Thread. #(poll-loop queue) (str "referee-poller-" i))
+                       (.setDaemon true)
+                       (.start))))}))
+
+(defn- add-session!
+  [{:keys [queues]} session]
+  (let [^LinkedBlockingQueue queue (apply min-key #(.size ^LinkedBlockingQueue %) queues)]
+    (.offer queue session)))
+
+(def multiplexer
+  "Threads polling the sessions of all external referees."
+  (delay (create-multiplexer (read-config))))
+
+; Game
+
+(defrecord ExternalRound [ios stop]
+  game/RoundEngine
+  (ios [e] ios)
+  (stop [e] (async/offer! stop true)))
+
+(defn create-and-start
+  [pool multiplexer options]
+  (let [round (ExternalRound. (vec (repeatedly 2 referee/create-io)) (async/chan 1))
+        session (create-session round pool (acquire! pool) options)]
+    (send-lines! session ["###Start 2"])
+    (add-session! multiplexer session)
+    round))
+
+(defn referee-definition
+  "Defines a two-player game played by a referee executable.
+  The referee is started with the command, a vector of the executable and
+  its arguments."
+  ([game-name command]
+   (referee-definition game-name command {}))
+  ([game-name command {:keys [reusable?]}]
+   (let [pool (delay (doto (create-pool command (boolean reusable?) (read-config))
+                       (fill!)))]
+     (reify
+       game/Game
+       (get-specs [this] {:name game-name
+                          :player-count {:exact 2}})
+       (read-options [this options] (referee/read-options options))
+       (get-player-count [this options] 2)
+       (create-engine [this options]
+         (create-and-start @pool @multiplexer options))))))
@@ -241,6 +241,33 @@
     (start round)
     round))
 
+; -- Steps for the scheduler
+
+(def player-ids [:p1 :p2])
+
+(defn init-step
+  [options]
+  (let [state (assoc (create-state options) :status :playing)
+        content (state->str state)]
+    [state [[0 content] [1 content]]]))
+
+(defn completion-messages
+  [{:keys [winner messages]}]
+  (map-indexed (fn [idx player]
+                 [idx (if (= player winner) (:win messages) (:loss messages))])
+               player-ids))
+
+(defn play-step
+  [state player move]
+  (let [next-state (apply-move state [(nth player-ids player) (str->sign move)])
+        content (state->str next-state)]
+    [next-state
+     (concat
+      (when (publish-state? next-state)
+        [[0 content] [1 content]])
+      (when (= :ended (:status next-state))
+        (completion-messages next-state)))]))
+
 (def game-definition
   (reify
     game/Game
@@ -250,7 +277,11 @@
      [this options] 
      {:win-score (get options "win-score" 5)})
     (get-player-count [this options] 2)
-    (create-engine [this options] (create-and-start options))))
+    (create-engine [this options] (create-and-start options))
+    game/Steps
+    (init-state [this options] (init-step options))
+    (step [this state player move] (play-step state player move))
+    (ended? [this state] (= :ended (:status state)))))
 
 (comment
   (def win-score 5)
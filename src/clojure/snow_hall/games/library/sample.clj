@@ -40,6 +40,16 @@
     (start round)
     round))
 
+; -- Steps for the scheduler
+
+(defn play-step
+  "Records the move of a player. Once both players played, answers to both."
+  [{:keys [moves]} player move]
+  (let [next-moves (assoc moves player move)]
+    (if (= 2 (count next-moves))
+      [{:moves {}} [[0 1] [1 2]]]
+      [{:moves next-moves} []])))
+
 (def game-definition
   (reify
     game/Game
@@ -47,4 +57,8 @@
                       :player-count {:exact 2}})
     (read-options [this options] {})
     (get-player-count [this option] 2)
-    (create-engine [this options] (create-and-start))))
+    (create-engine [this options] (create-and-start))
+    game/Steps
+    (init-state [this options] [{:moves {}} []])
+    (step [this state player move] (play-step state player move))
+    (ended? [this state] false)))
@@ -1,104 +1,405 @@
 (ns snow-hall.games.library.tic-tac-toe
   (:require [clojure.core.async :as async :refer [chan go-loop alts! >! close!]]
-            [snow-hall.games.game :as game]))
+            [snow-hall.games.game :as game])
+  (:import [java.util.concurrent ConcurrentHashMap]))
+
+; m,n,k-game: two players take turns marking the cells of a board of rows x
+; cols, the first to align k marks wins. Tic-Tac-Toe is the 3,3,3 board.
+; Each player's marks are kept as a bitboard, cell [x y] being the bit
+; x * cols + y. Since a move can only complete lines passing through its
+; cell, a win is searched on the precomputed lines of length 2k-1 centered
+; on the last move, so that a move costs O(k) whatever the board size.
 
 (def player-symbols
   {0 "X"
    1 "O"})
 
-(defn get-value
-  "Gets the cell at [x, y] in the game board."
-  [game [x y]]
-  {:pre [(or (pos? x) (zero? x))
-         (< x (count game))
-         (or (pos? y) (zero? y))
-         (< y (count (first game)))]}
-  (-> game
-      (nth x)
-      (nth y)))
+(def default-options
+  {:rows 3
+   :cols 3
+   :k 3})
 
-(defn get-row
-  "Gets the row x of the game"
-  [game x]
-  (nth game x))
+(def max-size 32)
 
-(defn get-col
-  "Gets the column y of the game"
-  [game y]
-  (map #(nth % y) game))
+(defn read-options
+  "Reads the size of the board and the length of the lines to align."
+  [options]
+  (let [rows (get options "rows" (:rows default-options))
+        cols (get options "cols" (:cols default-options))
+        k (get options "k" (:k default-options))]
+    (when-not (and (every? int? [rows cols k])
+                   (<= 1 rows max-size)
+                   (<= 1 cols max-size)
+                   (<= 1 k (max rows cols)))
+      (throw (IllegalArgumentException.
+              (str "Invalid board " rows "x" cols " with k=" k
+                   ", sizes must be within 1-" max-size))))
+    {:rows rows :cols cols :k k}))
 
-(defn get-diag-lurd
-  "Game left-up to right-down diagonal"
-  [game]
-  (map #(get-value game [% %]) (range 3)))
+; -- Lines
 
-(defn get-diag-ldru
-  "Game left-down to right-up diagonal"
-  [game]
-  (map #(get-value game [(- 2 %) %]) (range 3)))
+(def directions
+  [[0 1] [1 0] [1 1] [1 -1]])
 
-(defn get-positions
-  "Gets all positions back to back."
-  [game]
-  (flatten game))
+(defn- line-through
+  "Lists the cells at less than k steps from [x y] in a direction, in order."
+  [{:keys [rows cols k]} [x y] [dx dy]]
+  (vec (for [i (range (- 1 k) k)
+             :let [cx (+ x (* i dx))
+                   cy (+ y (* i dy))]
+             :when (and (< -1 cx rows) (< -1 cy cols))]
+         (+ (* cx cols) cy))))
 
-(defn get-combinations
-  [game]
-  (concat (map (partial get-row game) (range 3))
-          (map (partial get-col game) (range 3))
-          [(get-diag-ldru game) (get-diag-lurd game)]))
+(defn- create-lines
+  "Computes for each cell the lines where a winning row through it can lie."
+  [{:keys [rows cols k] :as shape}]
+  (vec (for [x (range rows)
+             y (range cols)]
+         (vec (for [direction directions
+                    :let [line (line-through shape [x y] direction)]
+                    :when (>= (count line) k)]
+                line)))))
 
-(defn winning-combination?
-  [player row]
-  (every? (partial = (player-symbols player)) row))
+(defn- create-windows
+  "Lists all the groups of k aligned cells of the board."
+  [{:keys [rows cols k]}]
+  (vec (for [x (range rows)
+             y (range cols)
+             [dx dy] directions
+             :let [ex (+ x (* (dec k) dx))
+                   ey (+ y (* (dec k) dy))]
+             :when (and (< -1 ex rows) (< -1 ey cols))]
+         (mapv #(+ (* (+ x (* % dx)) cols) (+ y (* % dy))) (range k)))))
 
-(defn win?
-  "Tests if a game is a win for a player"
-  [game player]
-  (->> game
-       (get-combinations)
-       (some (partial winning-combination? player))))
+(defn- create-symmetries
+  "Lists the symmetries of the board, as the cell where each cell goes."
+  [{:keys [rows cols]}]
+  (let [n (dec rows)
+        m (dec cols)
+        moves (concat [identity
+                       (fn [[x y]] [(- n x) y])
+                       (fn [[x y]] [x (- m y)])
+                       (fn [[x y]] [(- n x) (- m y)])]
+                      (when (= rows cols)
+                        [(fn [[x y]] [y x])
+                         (fn [[x y]] [(- m y) (- n x)])
+                         (fn [[x y]] [y (- n x)])
+                         (fn [[x y]] [(- m y) x])]))]
+    (vec (for [f moves]
+           (int-array (for [x (range rows)
+                            y (range cols)
+                            :let [[tx ty] (f [x y])]]
+                        (+ (* tx cols) ty)))))))
+
+(def ^:private max-cached-layouts 16)
+
+(def ^:private layouts (atom {}))
+
+(defn get-layout
+  "Gets the precomputed lines, windows and symmetries of a board shape,
+  keeping those of the last shapes used."
+  [shape]
+  (let [shape (select-keys shape [:rows :cols :k])]
+    (or (get @layouts shape)
+        (let [layout {:lines (create-lines shape)
+                      :windows (create-windows shape)
+                      :symmetries (create-symmetries shape)}]
+          (swap! layouts
+                 #(assoc (if (< (count %) max-cached-layouts) % {}) shape layout))
+          layout))))
+
+; -- Board
 
 (defn create-game
-  "Creates a standard board of Tic-Tac-Toe of 3x3.
-  The board is filled with nil."
-  []
-  (into [] (repeatedly 3 (partial vector nil nil nil))))
+  "Creates an empty board. Without options, this is the standard board of
+  Tic-Tac-Toe of 3x3."
+  ([] (create-game default-options))
+  ([options]
+   (assoc (merge default-options (select-keys options [:rows :cols :k]))
+          :boards [BigInteger/ZERO BigInteger/ZERO]
+          :filled 0)))
+
+(defn- board-of
+  "Gets the bitboard of a player. Bitboards restored from a snapshot are read
+  back as plain numbers."
+  ^BigInteger [game player]
+  (biginteger (get-in game [:boards player])))
+
+(defn cell-index
+  [{:keys [cols]} [x y]]
+  (+ (* x cols) y))
+
+(defn get-value
+  "Gets the symbol at [x, y] in the game board, or nil for an empty cell."
+  [game pos]
+  (let [cell (cell-index game pos)]
+    (some #(when (.testBit (board-of game %) cell) (player-symbols %))
+          (keys player-symbols))))
+
+(defn- occupied?
+  [game cell]
+  (or (.testBit (board-of game 0) cell)
+      (.testBit (board-of game 1) cell)))
+
+(defn- play-cell
+  [game player-id cell]
+  (-> game
+      (assoc-in [:boards player-id] (.setBit (board-of game player-id) cell))
+      (update :filled inc)))
 
 (defn play-move
-  [game player-id [x y]]
-  {:pre [(or (pos? x) (zero? x))
-         (< x (count game))
-         (or (pos? y) (zero? y))
-         (< y (count (first game)))]}
-  (let [s (player-symbols player-id)]
-    (update-in game [x y] (constantly s))))
-
-(defn update-game
   [game player-id pos]
-  (if (get-value game pos)
-    "CHEATING"
-    (let [next-game (play-move game player-id pos)]
-      next-game)))
+  (play-cell game player-id (cell-index game pos)))
+
+(defn- aligned?
+  "Tests if a line holds k consecutive cells of a bitboard."
+  [^BigInteger board k line]
+  (->> line
+       (reductions #(if (.testBit board %2) (inc %1) 0) 0)
+       (some #(>= % k))))
+
+(defn- win-at?
+  [game player cell]
+  (let [board (board-of game player)
+        k (:k game)]
+    (boolean (some (partial aligned? board k)
+                   (nth (:lines (get-layout game)) cell)))))
+
+(defn win?
+  "Tests if the move of a player at pos made the player win."
+  [game player pos]
+  (win-at? game player (cell-index game pos)))
+
+(defn- empty-count
+  [{:keys [rows cols filled]}]
+  (- (* rows cols) filled))
+
+(defn full?
+  [game]
+  (zero? (empty-count game)))
+
+(defn game->str
+  [{:keys [rows cols] :as game}]
+  (let [[^BigInteger b0 ^BigInteger b1] (map (partial board-of game) [0 1])
+        sb (StringBuilder. (int (* rows cols)))]
+    (dotimes [cell (* rows cols)]
+      (.append sb (cond
+                    (.testBit b0 cell) "X"
+                    (.testBit b1 cell) "O"
+                    :else "-")))
+    (.toString sb)))
 
 (comment
-  (def g (create-game))
-  (def g1 (-> g
-              (play-move 0 [0 0])
-              (play-move 1 [2 1])))
-  (get-row g1 0)
-  (get-col g1 1)
-  (play-move g 0 [0 0])
-  (play-move g 1 [2 1])
-  (get-positions g1)
-  (get-combinations g1)
-  (win? g1 0)
-
-  (def g2 (-> g1
-              (play-move 0 [0 0])
-              (play-move 0 [1 0])
-              (play-move 0 [2 0])))
-  (map (partial win? g2) (range 2)))
+  (def g (create-game {:rows 15 :cols 15 :k 5}))
+  (def g1 (reduce #(play-move %1 0 %2) g [[0 0] [1 1] [2 2] [3 3] [4 4]]))
+  (game->str g1)
+  (win? g1 0 [4 4])
+  (win? g1 0 [7 7]))
+
+; -- Steps for the scheduler
+
+(defn valid-move?
+  [{:keys [rows cols] :as game} pos]
+  (and (sequential? pos)
+       (= 2 (count pos))
+       (every? int? pos)
+       (let [[x y] pos]
+         (and (< -1 x rows)
+              (< -1 y cols)
+              (nil? (get-value game pos))))))
+
+(defn end-step
+  [state messages]
+  [(assoc state :ended true) messages])
+
+(defn init-step
+  ([] (init-step default-options))
+  ([options]
+   (let [game (create-game options)
+         content (game->str game)]
+     [{:game game :turn 0 :ended false}
+      [[0 content] [1 content]]])))
+
+(defn play-step
+  [{:keys [game turn] :as state} player move]
+  (let [other (- 1 player)]
+    (cond
+      (not= player turn) (end-step state [[player "LOSS: NOT YOUR TURN"]
+                                          [other "WIN: ILLEGAL MOVE"]])
+      (not (valid-move? game move)) (end-step state [[player "LOSS: ILLEGAL MOVE"]
+                                                     [other "WIN: ILLEGAL MOVE"]])
+      :else (let [next-game (play-move game player move)
+                  content (game->str next-game)
+                  next-state (assoc state :game next-game :turn other)
+                  board-messages [[0 content] [1 content]]]
+              (cond
+                (win? next-game player move) (end-step next-state
+                                                       (conj board-messages
+                                                             [player "WIN"]
+                                                             [other "LOSS"]))
+                (full? next-game) (end-step next-state
+                                            (conj board-messages
+                                                  [0 "DRAW"]
+                                                  [1 "DRAW"]))
+                :else [next-state board-messages])))))
+
+; -- House bot
+; Negamax search with alpha-beta pruning, scores being seen from the player
+; to move. Boards with few empty cells are solved to the end. On larger ones,
+; the search only looks search-depth moves ahead, around the marks already
+; played, and rates the groups of k cells still open to each player.
+; Evaluated positions are shared by all rounds in a transposition table,
+; keyed by the board reduced by its symmetries.
+
+(def win-score 1000000000000)
+
+(def ^:private infinity (* 4 win-score))
+
+(def solve-below 11)
+
+(def search-depth 2)
+
+(def max-table-size (Long/getLong "BOT_TABLE_SIZE" 1000000))
+
+(def ^:private ^ConcurrentHashMap table (ConcurrentHashMap.))
+
+(defn- ->node
+  "Creates the node of the search for a game, with the board seen through
+  each symmetry."
+  [{:keys [symmetries]} {:keys [rows cols] :as game}]
+  {:game game
+   :variants (vec (for [^ints cells symmetries]
+                    (mapv (fn [player]
+                            (let [board (board-of game player)]
+                              (reduce (fn [^BigInteger acc cell]
+                                        (if (.testBit board cell)
+                                          (.setBit acc (aget cells cell))
+                                          acc))
+                                      BigInteger/ZERO
+                                      (range (* rows cols)))))
+                          [0 1])))})
+
+(defn- play-node
+  [{:keys [symmetries]} {:keys [game variants]} player cell]
+  {:game (play-cell game player cell)
+   :variants (mapv (fn [variant ^ints cells]
+                     (update variant player #(.setBit ^BigInteger % (aget cells (int cell)))))
+                   variants
+                   symmetries)})
+
+(defn- compare-variants
+  [[a0 a1] [b0 b1]]
+  (let [c (compare a0 b0)]
+    (if (zero? c) (compare a1 b1) c)))
+
+(defn- node-key
+  [{:keys [game variants]}]
+  [(:rows game)
+   (:cols game)
+   (:k game)
+   (reduce #(if (neg? (compare-variants %2 %1)) %2 %1) variants)])
+
+(defn- near-mark?
+  [{:keys [rows cols] :as game} cell]
+  (let [x (quot cell cols)
+        y (mod cell cols)]
+    (some (fn [[dx dy]]
+            (let [nx (+ x dx)
+                  ny (+ y dy)]
+              (and (< -1 nx rows)
+                   (< -1 ny cols)
+                   (occupied? game (+ (* nx cols) ny)))))
+          (for [dx [-1 0 1] dy [-1 0 1]] [dx dy]))))
+
+(defn- candidates
+  "Lists the cells worth playing, all the free cells on small boards."
+  [{:keys [rows cols filled] :as game}]
+  (let [free (remove (partial occupied? game) (range (* rows cols)))]
+    (cond
+      (< (count free) solve-below) free
+      (zero? filled) [(+ (* (quot rows 2) cols) (quot cols 2))]
+      :else (filter (partial near-mark? game) free))))
+
+(defn- weight
+  [marks]
+  (if (zero? marks) 0 (bit-shift-left 1 (* 3 (min marks 8)))))
+
+(defn- evaluate
+  "Rates a game for the player to move."
+  [{:keys [windows]} {:keys [filled] :as game}]
+  (let [^BigInteger b0 (board-of game 0)
+        ^BigInteger b1 (board-of game 1)
+        score (reduce (fn [acc window]
+                        (let [c0 (reduce #(if (.testBit b0 %2) (inc %1) %1) 0 window)
+                              c1 (reduce #(if (.testBit b1 %2) (inc %1) %1) 0 window)]
+                          (cond
+                            (zero? c1) (+ acc (weight c0))
+                            (zero? c0) (- acc (weight c1))
+                            :else acc)))
+                      0
+                      windows)]
+    (if (even? filled) score (- score))))
+
+(declare search)
+
+(defn- score-move
+  "Scores the move of the player to move on a cell."
+  [layout node cell depth alpha beta]
+  (let [player (mod (get-in node [:game :filled]) 2)
+        child (play-node layout node player cell)
+        game (:game child)]
+    (cond
+      (win-at? game player cell) (+ win-score (empty-count game))
+      (full? game) 0
+      (<= depth 1) (- (evaluate layout game))
+      :else (- (search layout child (dec depth) (- beta) (- alpha))))))
+
+(defn- search
+  "Scores a node for the player to move, looking depth moves ahead."
+  [layout node depth alpha beta]
+  (let [key (node-key node)
+        [stored-depth flag value] (.get table key)]
+    (if (and stored-depth
+             (>= stored-depth depth)
+             (case flag
+               :exact true
+               :lower (>= value beta)
+               :upper (<= value alpha)))
+      value
+      (let [best (reduce (fn [best cell]
+                           (let [best (max best (score-move layout node cell depth
+                                                            (max alpha best) beta))]
+                             (if (>= best beta) (reduced best) best)))
+                         (- infinity)
+                         (candidates (:game node)))]
+        (when (>= (.size table) max-table-size)
+          (.clear table))
+        (.put table key [depth
+                         (cond
+                           (<= best alpha) :upper
+                           (>= best beta) :lower
+                           :else :exact)
+                         best])
+        best))))
+
+(defn choose-move
+  "Chooses the move of the player to move in a game, as [x y]."
+  [{:keys [cols] :as game}]
+  (let [layout (get-layout game)
+        node (->node layout game)
+        free (empty-count game)
+        depth (if (< free solve-below) free search-depth)
+        [_ cell] (reduce (fn [[best _ :as acc] cell]
+                           (let [score (score-move layout node cell depth best infinity)]
+                             (if (> score best) [score cell] acc)))
+                         [(- infinity) nil]
+                         (candidates game))]
+    [(quot cell cols) (mod cell cols)]))
+
+(defn bot-move
+  [{:keys [game turn ended]} player]
+  (when (and (not ended) (= turn player))
+    (choose-move game)))
 
 ; -- Creating the rounds and piping
 
@@ -111,13 +412,6 @@
   (ios [e] ios)
   (stop [e] (async/offer! stop true)))
 
-(defn game->str
-  [game]
-  (->> game
-       (get-positions)
-       (map #(or % "-"))
-       (apply str)))
-
 (defn- create
   []
   (TicTacToeRound.
@@ -125,58 +419,45 @@
    (chan 1)))
 
 (defn- start
-  [{:keys [ios stop]}]
-  (let [[{in1 :in out1 :out :as io1} {in2 :in out2 :out :as io2}] ios]
-    (go-loop [turn :p1
-              game (create-game)
-              stopped false]
-      (if-not stopped
-        (do
-          (doseq [out [out1 out2]]
-            (>! out (game->str game)))
-          (cond
-            (win? game 0) (do (>! out1 "WIN")
-                              (>! out2 "LOSS")
-                              (recur turn game true))
-            (win? game 1) (do (>! out1 "LOSS")
-                              (>! out2 "WIN")
-                              (recur turn game true))
-            :else (let [[m c] (alts! [stop in1 in2])]
-                    (cond
-            ; Halt message, we must stop
-                      (= c stop) (recur turn game true)
-            ; legal moves from one of the players
-                      (and (= turn :p1) (= c in1)) (recur :p2
-                                                          (update-game game 0 m)
-                                                          false)
-                      (and (= turn :p2) (= c in2)) (recur :p1
-                                                          (update-game game 1 m)
-                                                          false)
-            ; handling illegal moves
-                      (and (= turn :p1) (= c in2)) (do (>! out2 "LOSS: NOT YOUR TURN")
-                                                       (>! out1 "WIN: ILLEGAL MOVE")
-                                                       (recur turn game true))
-                      (and (= turn :p2) (= c in1)) (do (>! out1 "LOSS: NOT YOUR TURN")
-                                                       (>! out2 "WIN: ILLEGAL MOVE")
-                                                       (recur turn game true))))))
-        (doseq [io [io1 io2]]
-          (close! (:out io))
-          (close! (:in io)))))))
+  "Runs the steps of the game on the channels of the round."
+  [{:keys [ios stop]} options]
+  (let [ins (mapv :in ios)
+        outs (mapv :out ios)]
+    (go-loop [[state messages] (init-step options)]
+      (doseq [[player message] messages]
+        (>! (outs player) message))
+      (let [[m c] (when-not (:ended state)
+                    (alts! (into [stop] ins)))]
+        (if (or (nil? c) (= c stop))
+          (doseq [io ios]
+            (close! (:out io))
+            (close! (:in io)))
+          (recur (play-step state (if (= c (first ins)) 0 1) m)))))))
 
 (defn create-and-start
-  []
-  (let [round (create)]
-    (start round)
-    round))
+  ([] (create-and-start default-options))
+  ([options]
+   (let [round (create)]
+     (start round options)
+     round)))
 
 (def game-definition
   (reify
     game/Game
     (get-specs [this] {:name "Tic Tac Toe"
                       :player-count {:exact 2}})
-    (read-options [this options] nil)
+    (read-options [this options] (read-options options))
     (get-player-count [this options] 2)
-    (create-engine [this options] (create-and-start))))
+    (create-engine [this options] (create-and-start options))
+    game/Steps
+    (init-state [this options] (init-step options))
+    (step [this state player move] (play-step state player move))
+    (ended? [this state] (:ended state))
+    game/HouseBot
+    (bot-move [this state player] (bot-move state player))
+    game/Spectated
+    ; Players only get the board and the outcome, seen by all
+    (public-view [this last] last)))
 
 (comment
   (def round (game/create-engine game-definition nil))
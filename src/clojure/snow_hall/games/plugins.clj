@@ -0,0 +1,123 @@
+(ns snow-hall.games.plugins
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.spec.alpha :as s]
+            [snow-hall.games.game :as game])
+  (:import [clojure.lang Compiler DynamicClassLoader RT]
+           [java.io File]))
+
+; Games registered from descriptors, and loaded on first use.
+; Each snow-hall/games.edn resource of the classpath, and each .edn file of
+; the plugins directory, lists games by name. A game is either the var of a
+; namespace, game-definition by default, a Java referee class run by the
+; referee session, or a referee executable started with a command. The jars of the plugins directory are added to the class
+; path of the games. Only the descriptor is read at startup: the namespace or
+; the class of a game is loaded when the game is first used beyond its
+; specs, such as when reading the options of a gathering.
+
+(def descriptor-resource "snow-hall/games.edn")
+
+(s/def ::name string?)
+(s/def ::player-count map?)
+(s/def ::ns symbol?)
+(s/def ::var symbol?)
+(s/def ::referee string?)
+(s/def ::command (s/coll-of string? :kind vector? :min-count 1))
+(s/def ::reusable? boolean?)
+(s/def ::descriptor (s/and (s/keys :req-un [::name ::player-count]
+                                   :opt-un [::ns ::var ::referee ::command ::reusable?])
+                           #(some % [:ns :referee :command])))
+
+(defn read-config
+  "Reads the configuration of the plugins from the system properties."
+  []
+  {:dir (System/getProperty "GAMES_DIR")})
+
+(defn- create-loader
+  "Creates the class loader of the games, with the jars of dir."
+  [dir]
+  (let [loader (DynamicClassLoader. (RT/baseLoader))]
+    (when dir
+      (doseq [^File file (.listFiles (io/file dir))
+              :when (.endsWith (.getName file) ".jar")]
+        (.addURL loader (.toURL (.toURI file)))))
+    loader))
+
+(defn- load-var
+  [loader {ns-name :ns var-name :var :or {var-name 'game-definition}}]
+  (with-bindings {Compiler/LOADER loader}
+    (require ns-name))
+  @(ns-resolve ns-name var-name))
+
+(defn- load-referee
+  [loader {:keys [name referee]}]
+  (let [referee-definition (requiring-resolve
+                            'snow-hall.games.library.code4life/referee-definition)
+        class-factory (requiring-resolve
+                       'snow-hall.games.library.code4life/class-factory)]
+    (referee-definition name (class-factory (Class/forName referee true loader)))))
+
+(defn- load-command
+  [{:keys [name command reusable?]}]
+  (let [referee-definition (requiring-resolve
+                            'snow-hall.games.library.external/referee-definition)]
+    (referee-definition name command {:reusable? reusable?})))
+
+(defn shutdown!
+  "Stops the processes of the external referees, if any was loaded."
+  []
+  (when-let [shutdown-pools! (resolve 'snow-hall.games.library.external/shutdown-pools!)]
+    (shutdown-pools!)))
+
+(defn- load-game
+  [loader {:keys [name referee command] :as descriptor}]
+  (let [definition (cond
+                     referee (load-referee loader descriptor)
+                     command (load-command descriptor)
+                     :else (load-var loader descriptor))]
+    (when-not (= name (game/get-name definition))
+      (throw (IllegalStateException.
+              (str "Game " name " loaded as " (game/get-name definition)))))
+    definition))
+
+(defn create-plugin
+  "Creates a game standing for its descriptor until it is first used."
+  [loader descriptor]
+  (let [definition (delay (load-game loader descriptor))]
+    (reify
+      game/Game
+      (get-specs [this] (select-keys descriptor [:name :player-count]))
+      (read-options [this options] (game/read-options @definition options))
+      (get-player-count [this options] (game/get-player-count @definition options))
+      (create-engine [this options] (game/create-engine @definition options))
+      game/Plugin
+      (load-definition [this] @definition))))
+
+(defn- read-descriptors
+  [source]
+  (let [descriptors (edn/read-string (slurp source))]
+    (doseq [descriptor descriptors]
+      (when-not (s/valid? ::descriptor descriptor)
+        (throw (IllegalArgumentException.
+                (str "Invalid game in " source ": "
+                     (s/explain-str ::descriptor descriptor))))))
+    descriptors))
+
+(defn- list-sources
+  [^ClassLoader loader dir]
+  (concat
+   (enumeration-seq (.getResources loader descriptor-resource))
+   (when dir
+     (sort (filter #(.endsWith (.getName ^File %) ".edn")
+                   (.listFiles (io/file dir)))))))
+
+(defn discover
+  "Lists the games described on the class path and in the plugins directory.
+  A game described twice is taken from its last descriptor."
+  [{:keys [dir]}]
+  (let [loader (create-loader dir)]
+    (->> (list-sources loader dir)
+         (mapcat read-descriptors)
+         (reduce (fn [acc descriptor] (assoc acc (:name descriptor) descriptor)) {})
+         (vals)
+         (map (partial create-plugin loader)))))
@@ -1,11 +1,17 @@
 (ns snow-hall.games.round
   (:require [clojure.spec.alpha :as s]
             [clojure.core.async :as async :refer [<! offer!]]
+            [clojure.edn :as edn]
+            [clojure.java.io :as io]
             [snow-hall.validate :refer [create-validation]]
             [snow-hall.uuid :as uuids]
             [snow-hall.hall.visitor :as visitors]
             [snow-hall.games.library.sample :as sg]
-            [snow-hall.games.game :as game]))
+            [snow-hall.games.game :as game]
+            [snow-hall.games.scheduler :as scheduler])
+  (:import [java.io File FileNotFoundException]
+           [java.nio.file CopyOption Files StandardCopyOption]
+           [java.util.concurrent.atomic AtomicBoolean]))
 
 (s/def ::ruid uuids/uuid?)
 (s/def ::game string?)
@@ -15,7 +21,11 @@
 (s/def ::message (s/keys ::req-un [::timestamp ::content]))
 (s/def ::messages (s/map-of ::visitors/uuid (s/coll-of ::message)))
 (s/def ::last (s/map-of ::visitors/uuid ::content))
-(s/def ::state-data (s/keys ::req-un [::messages ::last]))
+(s/def ::status #{:playing :ended})
+(s/def ::updated-at int?)
+(s/def ::version int?)
+(s/def ::state-data (s/keys ::req-un [::messages ::last]
+                            :opt-un [::status ::updated-at ::version]))
 (s/def ::state #(-> % meta ::round-state))
 (s/def ::players (s/coll-of ::visitors/uuid))
 (s/def ::round (s/keys :req-un [::ruid
@@ -24,56 +34,125 @@
                                 ::engine
                                 ::state]))
 (s/def ::rounds (s/map-of ::ruid ::round))
+(s/def ::outcome #{:finished :abandoned})
+(s/def ::ended-at int?)
+(s/def ::summary (s/keys :req-un [::ruid ::game ::players ::outcome ::ended-at]))
+(s/def ::archives (s/map-of ::ruid ::summary))
 
 (defn create-store
-  "Creates a store for rounds"
+  "Creates a store for rounds, sorted by ruid"
   []
-  {})
+  (sorted-map))
 (def validate-fn (create-validation ::rounds))
 
+(defn create-archives
+  "Creates the store of archived round summaries"
+  []
+  {})
+(def validate-archives-fn (create-validation ::archives))
+
+(defn- bump
+  "Increases the version of the state, marking a change seen by players."
+  [state]
+  (update state :version (fnil inc 0)))
+
 (defn clear-old-messages
   "Clear the old messages from a given user.
   uuid identifies the user and last-timestamp is the timestamp of the last
   message read by the user."
   [state uuid last-timestamp]
   {:pre [(contains? (:messages state) uuid)]}
-  (update-in state
-             [:messages uuid]
-             #(into [] (for [m % :when (> (:timestamp m) last-timestamp)] m))))
+  (let [messages (get-in state [:messages uuid])
+        kept (into [] (for [m messages :when (> (:timestamp m) last-timestamp)] m))]
+    (if (= (count kept) (count messages))
+      state
+      (-> state
+          (assoc-in [:messages uuid] kept)
+          (bump)))))
 
-(defn read-messages
+(defn- update-state!
+  "Updates the state of a round.
+  The state is an agent for rounds bound to an engine, and an atom for
+  rounds run by the scheduler."
+  [state f & args]
+  (if (instance? clojure.lang.Agent state)
+    (apply send state f args)
+    (apply swap! state f args)))
+
+(defn version
+  "Gets the version of the state of a round, increased on each change."
+  [round]
+  (-> round :state deref (:version 0)))
+
+(defn read-versioned-messages
+  "Reads the messages of a player, clearing them from the round.
+  Returns `[version messages]`, version being the one of the state the
+  messages were read from."
   [round uuid]
   (let [state-agent (:state round)
-        messages (get-in @state-agent [:messages uuid])
+        state @state-agent
+        messages (get-in state [:messages uuid])
         last-timestamp (-> messages last :timestamp)]
     (when last-timestamp
-      (send state-agent clear-old-messages uuid last-timestamp))
+      (update-state! state-agent clear-old-messages uuid last-timestamp))
     ; Returns the captured messages
-    messages))
+    [(:version state 0) messages]))
+
+(defn read-messages
+  [round uuid]
+  (second (read-versioned-messages round uuid)))
 
 (defn add-to-messages
   [state uuid content]
-  (let [new-message {:timestamp (System/currentTimeMillis)
+  (let [now (System/currentTimeMillis)
+        new-message {:timestamp now
                      :content content}]
     (-> state
         (update-in [:messages uuid] conj new-message)
-        (update-in [:last] assoc uuid new-message))))
+        (update-in [:last] assoc uuid new-message)
+        (assoc :updated-at now)
+        (bump))))
 
 (defn send-message
   [state uuid content]
   (send state add-to-messages uuid content))
 
+(defn touch
+  "Records activity on the round, without changing its content"
+  [state]
+  (assoc state :updated-at (System/currentTimeMillis)))
+
+(defn mark-as-ended
+  [state]
+  (-> state
+      (assoc :status :ended
+             :updated-at (System/currentTimeMillis))
+      (bump)))
+
 (defn bind-engine
   "Binds the game engine to the state of the game.
   This mostly reads the outputs of the game engine and generate the
-  appropriate messages"
+  appropriate messages. The round is marked as ended once the engine closed
+  the outputs of all players."
   [a-state player-uuids round]
-  (let [ios (game/ios round)]
+  (let [ios (game/ios round)
+        open-outputs (atom (count ios))]
     (doseq [[uuid {out :out}] (map vector player-uuids ios)]
       (async/go-loop []
-        (when-let [msg (<! out)]
-          (send-message a-state uuid msg)
-          (recur))))))
+        (if-let [msg (<! out)]
+          (do
+            (send-message a-state uuid msg)
+            (recur))
+          (when (zero? (swap! open-outputs dec))
+            (send a-state mark-as-ended)))))))
+
+(defn- create-state
+  [player-uuids]
+  (let [message-list (into (hash-map) (map #(vector % []) player-uuids))]
+    {:messages message-list
+     :last {}
+     :status :playing
+     :updated-at (System/currentTimeMillis)}))
 
 (defn create-state-agent
   "Creates the agent responsible for managing the state of the round.
@@ -81,24 +160,154 @@
   game, :last.  
   Returns the created agent."
   [player-uuids]
-  (let [message-list (into (hash-map) (map #(vector % []) player-uuids))
-        state {:messages message-list :last {}}]
-    (agent state
-           :meta {::round-state true}
-           :validator (create-validation ::state-data))))
+  (agent (create-state player-uuids)
+         :meta {::round-state true}
+         :validator (create-validation ::state-data)))
 
-(defn create-round
-  [gathering game]
-  {:pre [(= (:game gathering) (game/get-name game))]}
+(defn create-state-atom
+  "Creates the atom holding the state of a round run by the scheduler.
+  On top of the content of the state agent, this holds the state of the game
+  engine, :engine-state."
+  [player-uuids engine-state]
+  (atom (assoc (create-state player-uuids) :engine-state engine-state)
+        :meta {::round-state true}
+        :validator (create-validation ::state-data)))
+
+(defn publish-messages
+  "Adds the messages produced by a step of the game to the state."
+  [state player-uuids messages]
+  (reduce (fn [acc [idx content]]
+            (add-to-messages acc (nth player-uuids idx) content))
+          state
+          messages))
+
+(defn apply-step
+  "Applies the move of a player to the state of a scheduled round."
+  [state game player-uuids pid move]
+  (if (= :ended (:status state))
+    state
+    (let [[next-state messages] (game/step game (:engine-state state) pid move)]
+      (cond-> (-> state
+                  (assoc :engine-state next-state
+                         :last-move [pid move])
+                  (update :moves (fnil inc 0))
+                  (publish-messages player-uuids messages)
+                  (touch))
+        (game/ended? game next-state) (mark-as-ended)))))
+
+(defrecord ScheduledEngine [scheduler ruid state game players pending searching]
+  game/RoundEngine
+  (ios [e] nil)
+  (stop [e] (scheduler/submit! scheduler ruid #(swap! state mark-as-ended))))
+
+(defn scheduled?
+  [round]
+  (instance? ScheduledEngine (:engine round)))
+
+(defn- create-bound-round
+  [gathering game ruid]
   (let [player-uuids (:players gathering)
         a-state (create-state-agent player-uuids) 
         engine (game/create-engine game (:options gathering))]
     (bind-engine a-state player-uuids engine)
-    {:ruid (uuids/random-uuid)
+    {:ruid ruid
      :game (:game gathering)
      :players player-uuids
      :engine engine
-     :state a-state}))
+     :state a-state
+     :epoch (str (uuids/random-uuid))
+     :responses (atom {})}))
+
+(defn- scheduled-round
+  [ruid game-name player-uuids a-state game scheduler]
+  {:ruid ruid
+   :game game-name
+   :players player-uuids
+   :engine (ScheduledEngine. scheduler
+                             ruid
+                             a-state
+                             game
+                             player-uuids
+                             (atom (vec (repeat (count player-uuids) 0)))
+                             (AtomicBoolean. false))
+   :state a-state
+   :epoch (str (uuids/random-uuid))
+   :responses (atom {})})
+
+(defn- bot-turn
+  "Gets the index and the move of the house bot expected to play, if any."
+  [game players engine-state]
+  (some (fn [pid]
+          (when (= game/house-player (nth players pid))
+            (some->> (game/bot-move game engine-state pid) (vector pid))))
+        (range (count players))))
+
+(defn- play-bots!
+  "Lets the house bot expected to play, if any, search its move out of the
+  workers of the scheduler, then submits that move back as a step. The move
+  is dropped if the state changed during the search, the step changing it
+  having let the bots play again. A round searches one move at a time."
+  [{:keys [scheduler ruid state game players ^AtomicBoolean searching] :as engine}]
+  (when (and (satisfies? game/HouseBot game)
+             (some #{game/house-player} players)
+             (.compareAndSet searching false true))
+    (let [current @state]
+      (if (= :ended (:status current))
+        (.set searching false)
+        (future
+          (if-let [[pid move] (try
+                                (bot-turn game players (:engine-state current))
+                                (catch Exception e
+                                  (.set searching false)
+                                  (throw e)))]
+            (scheduler/submit! scheduler
+                               ruid
+                               (fn []
+                                 (.set searching false)
+                                 (when (identical? current @state)
+                                   (swap! state apply-step game players pid move))
+                                 (play-bots! engine)))
+            (do
+              (.set searching false)
+              ; A step may have come during the search
+              (when-not (identical? current @state)
+                (play-bots! engine)))))))))
+
+(defn resume-bots!
+  "Lets the house bots of a scheduled round play if it is their turn.
+  To call once the round is started or restored and tracked."
+  [{:keys [engine players] :as round}]
+  (when (and (scheduled? round)
+             (some #{game/house-player} players))
+    (scheduler/submit! (:scheduler engine) (:ruid engine) #(play-bots! engine))))
+
+(defn- create-scheduled-round
+  [gathering game scheduler ruid]
+  (let [player-uuids (:players gathering)
+        [engine-state messages] (game/init-state game (:options gathering))
+        a-state (create-state-atom player-uuids engine-state)]
+    (swap! a-state publish-messages player-uuids messages)
+    (scheduled-round ruid
+                     (:game gathering)
+                     player-uuids
+                     a-state
+                     game
+                     scheduler)))
+
+(defn create-round
+  "Creates a new round for the players of the gathering.
+  If a scheduler is provided and the game can be played by steps, the round
+  runs on the scheduler. Otherwise, the round gets its own engine."
+  ([gathering game]
+   (create-round gathering game nil))
+  ([gathering game scheduler]
+   (create-round gathering game scheduler (uuids/random-uuid)))
+  ([gathering game scheduler ruid]
+   {:pre [(= (:game gathering) (game/get-name game))]}
+   (let [game (game/definition game)]
+     (if (and scheduler (satisfies? game/Steps game))
+       (create-scheduled-round gathering game scheduler ruid)
+       (create-bound-round gathering game ruid)))))
 
 (defn read-last-state
   [round uuid]
@@ -108,12 +317,230 @@
       :last
       (get uuid)))
 
+(defn read-versioned-state
+  "Reads the last message of a player, as `[version message]`."
+  [round uuid]
+  (let [state @(:state round)]
+    [(:version state 0) (get-in state [:last uuid])]))
+
+(defn ended?
+  [round]
+  (= :ended (-> round :state deref :status)))
+
+(defn- reserve-move!
+  "Reserves a place in the move queue of a player.
+  Returns false if the queue is full."
+  [pending pid limit]
+  (let [[before _] (swap-vals! pending
+                               #(if (< (nth % pid) limit)
+                                  (update % pid inc)
+                                  %))]
+    (< (nth before pid) limit)))
+
+(defn- play-scheduled-round
+  [{:keys [scheduler ruid state game players pending] :as engine} pid move]
+  (if (reserve-move! pending pid (:move-queue-size scheduler))
+    (do
+      (scheduler/submit! scheduler
+                         ruid
+                         (nth players pid)
+                         #(try
+                            (swap! state apply-step game players pid move)
+                            (play-bots! engine)
+                            (finally
+                              (swap! pending update pid dec))))
+      :accepted)
+    :full))
+
+(defn- play-bound-round
+  [round pid move]
+  (let [ios (get-in round [:engine :ios])
+        in (-> ios (nth pid) :in)]
+    (send (:state round) touch)
+    (cond
+      (offer! in move) :accepted
+      (ended? round) :ended
+      :else :full)))
+
 (defn play-round
+  "Submits the move of a player to the round.
+  Returns the outcome of the submission: :accepted, :full if the player
+  already has too many moves waiting for the engine, :ended if the round is
+  over, or nil if the visitor is not a player of the round."
   [round uuid move]
-  (let [pid (.indexOf (:players round) uuid)
-        ios (get-in round [:engine :ios])
-        in (-> ios (nth pid) :in)]
-    (offer! in move)))
+  (let [pid (.indexOf (:players round) uuid)]
+    (cond
+      (neg? pid) nil
+      (ended? round) :ended
+      (scheduled? round) (play-scheduled-round (:engine round) pid move)
+      :else (play-bound-round round pid move))))
+
+(defn next-message
+  "Watches the next message sent to a player.
+  Returns a channel receiving that message, or closed without value if no
+  message came within timeout milliseconds. Closing the channel stops
+  watching."
+  [round uuid timeout-ms]
+  (let [state (:state round)
+        key (gensym "next-message")
+        result (async/promise-chan)]
+    (add-watch state
+               key
+               (fn [k r old-state new-state]
+                 (let [message (get-in new-state [:last uuid])]
+                   (when-not (identical? message (get-in old-state [:last uuid]))
+                     (remove-watch r k)
+                     (async/put! result message)))))
+    (async/go
+      (async/alts! [(async/timeout timeout-ms) result])
+      (remove-watch state key)
+      (async/close! result))
+    result))
+
+(defn idle-since
+  "Gets the time of the last activity on the round"
+  [round]
+  (-> round :state deref :updated-at))
+
+(defn summarize
+  "Creates the compact summary of a round kept once the round is archived.
+  Only the last message of each player is kept, with the reason of the end."
+  [round outcome]
+  {:ruid (:ruid round)
+   :game (:game round)
+   :players (:players round)
+   :outcome outcome
+   :last (-> round :state deref :last)
+   :ended-at (System/currentTimeMillis)})
+
+; An idle scheduled round can be passivated: its state is written to a file
+; and replaced by a placeholder keeping only what the watchers of the round
+; and the janitor read. The placeholder keeps the same last messages, so that
+; passivating and loading back the round is not seen as a new message.
+
+(def ^:private kept-keys [:last :status :version :updated-at :moves])
+
+(defn passivated?
+  [round]
+  (contains? @(:state round) :passivated))
+
+(defn- write-state-file!
+  [^File file state]
+  (let [tmp (io/file (str (.getPath file) ".tmp"))]
+    (binding [*print-length* nil
+              *print-level* nil
+              *print-meta* false]
+      (spit tmp (pr-str (dissoc state :passivated))))
+    (Files/move (.toPath tmp)
+                (.toPath file)
+                (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE
+                                        StandardCopyOption/REPLACE_EXISTING]))))
+
+(defn- read-state-file
+  [path]
+  (try
+    (edn/read-string (slurp path))
+    (catch FileNotFoundException _ nil)))
+
+(defn loaded-state
+  "Gets the whole state of a round, reading it from its file if the round
+  is passivated."
+  [round]
+  (let [state @(:state round)]
+    (if-let [path (:passivated state)]
+      (if-let [loaded (read-state-file path)]
+        (merge loaded (select-keys state kept-keys))
+        (if (identical? state @(:state round))
+          (throw (IllegalStateException. (str "Missing state " path)))
+          ; Loaded back while reading the file
+          (recur round)))
+      state)))
+
+(defn passivate!
+  "Writes the state of a scheduled round without pending moves to a file,
+  keeping only its placeholder in memory. Returns true if passivated."
+  [{:keys [engine state] :as round} ^File file]
+  (let [current @state]
+    (when (and (scheduled? round)
+               (not (contains? current :passivated))
+               (every? zero? @(:pending engine)))
+      (write-state-file! file current)
+      (or (compare-and-set! state
+                            current
+                            (-> (select-keys current kept-keys)
+                                (assoc :messages (zipmap (keys (:messages current))
+                                                         (repeat []))
+                                       :passivated (.getPath file))))
+          (do (.delete file) false)))))
+
+(defn rehydrate!
+  "Loads back the state of a passivated round, deleting its file."
+  [{:keys [state]}]
+  (loop []
+    (let [current @state]
+      (when-let [path (:passivated current)]
+        (if (compare-and-set! state
+                              current
+                              (merge (read-state-file path)
+                                     (select-keys current kept-keys)))
+          (io/delete-file path true)
+          (recur))))))
+
+(defn discard!
+  "Deletes the file of a passivated round dropped from the hall."
+  [round]
+  (when-let [path (:passivated @(:state round))]
+    (io/delete-file path true)))
+
+(defn snapshot
+  "Captures a scheduled round as plain data, or nil for rounds bound to an
+  engine, whose state cannot be restored."
+  [round]
+  (when (scheduled? round)
+    (-> round
+        (select-keys [:ruid :game :players])
+        (assoc :state (loaded-state round)))))
+
+(defn restore
+  "Recreates a scheduled round from its snapshot."
+  [{:keys [ruid players state] game-name :game} game scheduler]
+  (let [a-state (atom state
+                      :meta {::round-state true}
+                      :validator (create-validation ::state-data))]
+    (scheduled-round ruid game-name players a-state (game/definition game) scheduler)))
+
+(defn- append-messages
+  [state messages]
+  (reduce (fn [acc [uuid message]]
+            (-> acc
+                (update-in [:messages uuid] conj message)
+                (assoc-in [:last uuid] message)
+                (bump)))
+          state
+          messages))
+
+(defn replay-move
+  "Plays again a move of a scheduled round, seq being the number of moves
+  played before it. The messages emitted by the move are restored as they
+  were sent, with their time. Moves already in the state are ignored."
+  [{:keys [engine state]} {:keys [seq player move messages updated-at]}]
+  (let [game (:game engine)]
+    (swap! state
+           (fn [current]
+             (if (= seq (:moves current 0))
+               (let [[next-state _] (game/step game (:engine-state current) player move)]
+                 (cond-> (-> current
+                             (assoc :engine-state next-state
+                                    :last-move [player move]
+                                    :updated-at updated-at)
+                             (update :moves (fnil inc 0))
+                             (append-messages messages))
+                   (game/ended? game next-state) (-> (assoc :status :ended) (bump))))
+               current)))))
+
+(defn read-archived-state
+  [summary uuid]
+  (-> summary :last (get uuid)))
 
 (defn kill-game
   [round]
@@ -0,0 +1,167 @@
+(ns snow-hall.games.scheduler
+  (:import [java.util ArrayDeque HashMap]))
+
+; Shared pool of workers running the steps of all rounds.
+; Rounds are partitioned across workers by key, so that the steps of a round
+; always run in order on the same worker.
+; Each worker keeps a queue, or flow, per owner of tasks, the visitor who
+; played the move, and serves the flows in turn, so that a visitor playing
+; many rounds does not delay the moves of the others. While a key has tasks
+; waiting, its next tasks join the same flow, keeping their order.
+
+(defn read-config
+  "Reads the configuration of the scheduler from the system properties."
+  []
+  {:workers (Integer/getInteger "SCHEDULER_WORKERS"
+                                (.availableProcessors (Runtime/getRuntime)))
+   :move-queue-size (Integer/getInteger "MOVE_QUEUE_SIZE" 1)})
+
+(defn- create-worker-state
+  []
+  {:lock (Object.)
+   :flows (HashMap.)
+   :ready (ArrayDeque.)
+   :key-owners (HashMap.)
+   :key-counts (HashMap.)
+   :status (volatile! {:size 0
+                       :submitted 0
+                       :running nil
+                       :stopping false})})
+
+(defn- enqueue!
+  "Adds a task to the flow of its owner, or to the flow already holding the
+  tasks of its key."
+  [{:keys [lock ^HashMap flows ^ArrayDeque ready ^HashMap key-owners ^HashMap key-counts status]}
+   key owner task]
+  (locking lock
+    (let [seq-nb (inc (:submitted @status))
+          owner (if (.containsKey key-owners key) (.get key-owners key) owner)
+          ^ArrayDeque flow (or (.get flows owner)
+                               (let [flow (ArrayDeque.)]
+                                 (.put flows owner flow)
+                                 (.offer ready owner)
+                                 flow))]
+      (.offer flow [seq-nb key task])
+      (.put key-owners key owner)
+      (.put key-counts key (inc (or (.get key-counts key) 0)))
+      (vswap! status #(-> % (assoc :submitted seq-nb) (update :size inc)))
+      (.notifyAll lock))))
+
+(defn- dequeue!
+  "Takes the next task, from the flows in turn. Blocks while no task is
+  waiting, and returns nil once stopping without task."
+  [{:keys [lock ^HashMap flows ^ArrayDeque ready ^HashMap key-owners ^HashMap key-counts status]}]
+  (locking lock
+    (loop []
+      (let [{:keys [size stopping]} @status]
+        (cond
+          (pos? size)
+          (let [owner (.poll ready)
+                ^ArrayDeque flow (.get flows owner)
+                [seq-nb key task] (.poll flow)
+                remaining (dec (.get key-counts key))]
+            (if (.isEmpty flow)
+              (.remove flows owner)
+              (.offer ready owner))
+            (if (zero? remaining)
+              (do (.remove key-counts key)
+                  (.remove key-owners key))
+              (.put key-counts key remaining))
+            (vswap! status #(-> % (assoc :running seq-nb) (update :size dec)))
+            task)
+
+          stopping
+          nil
+
+          :else
+          (do (.wait ^Object lock)
+              (recur)))))))
+
+(defn- done!
+  [{:keys [lock status]}]
+  (locking lock
+    (vswap! status assoc :running nil)
+    (.notifyAll lock)))
+
+(defn- oldest-pending
+  "Gets the sequence number of the oldest task not done yet, if any."
+  [{:keys [^HashMap flows status]}]
+  (let [heads (keep #(first (.peek ^ArrayDeque %)) (.values flows))
+        running (:running @status)]
+    (when-let [all (seq (if running (conj heads running) heads))]
+      (apply min all))))
+
+(defn- run-worker
+  [state]
+  (loop []
+    (when-let [task (dequeue! state)]
+      (try
+        (task)
+        (catch Exception e
+          (println (str "Failed to run a step: " e)))
+        (finally
+          (done! state)))
+      (recur))))
+
+(defn- create-worker
+  [idx]
+  (let [state (create-worker-state)
+        thread (Thread. #(run-worker state)
+                        (str "snow-hall-scheduler-" idx))]
+    (.setDaemon thread true)
+    (.start thread)
+    (assoc state :thread thread)))
+
+(defn create-scheduler
+  "Creates a scheduler with the given number of workers.
+  move-queue-size is the number of moves each player of a round can have
+  waiting for the scheduler."
+  [{:keys [workers move-queue-size] :or {move-queue-size 1}}]
+  {:workers (mapv create-worker (range workers))
+   :move-queue-size move-queue-size})
+
+(defn- get-worker
+  [{:keys [workers]} key]
+  (nth workers (Math/floorMod (hash key) (count workers))))
+
+(defn submit!
+  "Submits a task for the given key, on behalf of an owner.
+  Tasks of the same key run in submission order. The workers serve the
+  owners in turn, tasks without owner sharing one turn."
+  ([scheduler key task]
+   (submit! scheduler key nil task))
+  ([scheduler key owner task]
+   (enqueue! (get-worker scheduler key) key (or owner ::hall) task)))
+
+(defn queue-sizes
+  "Gets the number of pending tasks per worker."
+  [{:keys [workers]}]
+  (mapv (fn [{:keys [lock status]}]
+          (locking lock (:size @status)))
+        workers))
+
+(defn stop!
+  "Stops all workers once their pending tasks are done."
+  [{:keys [workers]}]
+  (doseq [{:keys [lock status]} workers]
+    (locking lock
+      (vswap! status assoc :stopping true)
+      (.notifyAll ^Object lock))))
+
+(defn await-idle
+  "Waits for all the tasks submitted so far to complete, for at most timeout
+  milliseconds. Returns true if all tasks completed."
+  [{:keys [workers]} timeout]
+  (let [deadline (+ (System/currentTimeMillis) timeout)]
+    (every? (fn [{:keys [lock status] :as worker}]
+              (locking lock
+                (let [target (:submitted @status)]
+                  (loop []
+                    (let [oldest (oldest-pending worker)
+                          remaining (- deadline (System/currentTimeMillis))]
+                      (cond
+                        (or (nil? oldest) (> oldest target)) true
+                        (pos? remaining) (do (.wait ^Object lock remaining)
+                                             (recur))
+                        :else false))))))
+            workers)))
@@ -0,0 +1,203 @@
+(ns snow-hall.games.spectators
+  (:require [clojure.core.async :as async :refer [<!]]
+            [cheshire.core :as json]
+            [snow-hall.games.game :as game])
+  (:import [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong AtomicReference]
+           [java.util.function Function]))
+
+; Spectators of the rounds.
+; The public view of a round, given by its game, is encoded once per version
+; of its state, in a frame shared by all its spectators. Spectators either subscribe and get
+; each frame pushed, or ask for the first frame after the version they saw.
+; Frames are pushed by at most one task per round: versions produced while
+; it runs are not queued, the task sending only the latest frame once done,
+; so that slow spectators skip frames instead of piling them up. Each
+; spectator has its own writer, writing one frame at a time: frames offered
+; while it writes replace each other in the slot of the spectator, the writer
+; writing the latest once done. Spectators writing a frame for longer than
+; busy-timeout-ms are evicted and closed.
+; The hub of a round lives from its first spectator until the round ends.
+
+(def busy-timeout-ms 10000)
+
+(defn create
+  []
+  (ConcurrentHashMap.))
+
+(defn public-view
+  "Gets what spectators see of a round: the public view its game gives of
+  the last message to each player."
+  [game round state]
+  {:ruid (str (:ruid round))
+   :game (:game round)
+   :players (:players round)
+   :status (:status state :playing)
+   :version (:version state 0)
+   :last (game/public-view game
+                           (into {} (map (fn [[uuid message]] [uuid (:content message)]))
+                                 (:last state)))})
+
+(defn- encode-frame
+  [game round state]
+  {:version (:version state 0)
+   :ended? (= :ended (:status state))
+   :bytes (.getBytes (str (json/generate-string (public-view game round state)) "\n")
+                     "UTF-8")})
+
+(defn- current-frame!
+  "Gets the frame of the current version of the round, encoding it once."
+  [{:keys [game round frame]}]
+  (let [state @(:state round)
+        cached @frame]
+    (if (= (:version cached) (:version state 0))
+      cached
+      (let [encoded (encode-frame game round state)]
+        (swap! frame #(if (and % (>= (:version %) (:version encoded))) % encoded))))))
+
+(defn- release!
+  [^ConcurrentHashMap spectators {:keys [round] :as hub}]
+  (remove-watch (:state round) ::spectators)
+  (.remove spectators (:ruid round) hub))
+
+(defn- write!
+  "Writes the frames offered to a watcher, one at a time and always the
+  latest, until none is left."
+  [watchers id {:keys [send ^AtomicReference slot ^AtomicBoolean writing ^AtomicLong since]
+                :as watcher}]
+  (future
+    (loop []
+      (when-let [frame (.getAndSet slot nil)]
+        (.set since (System/currentTimeMillis))
+        (let [sent? (send frame)]
+          (.set since 0)
+          (if sent?
+            (recur)
+            (swap! watchers dissoc id)))))
+    (.set writing false)
+    (when (and (some? (.get slot))
+               (contains? @watchers id)
+               (.compareAndSet writing false true))
+      (write! watchers id watcher))))
+
+(defn- evict!
+  [watchers id {:keys [close]}]
+  (swap! watchers dissoc id)
+  (close))
+
+(defn- send-frame
+  "Offers a frame to the watchers which did not get it yet, evicting those
+  writing a previous frame for longer than busy-timeout-ms."
+  [watchers frame]
+  (let [now (System/currentTimeMillis)]
+    (doseq [[id {:keys [version ^AtomicReference slot ^AtomicBoolean writing ^AtomicLong since]
+                 :as watcher}] @watchers
+            :when (< version (:version frame))]
+      (let [started (.get since)]
+        (if (and (pos? started) (< busy-timeout-ms (- now started)))
+          (evict! watchers id watcher)
+          (do
+            (.set slot frame)
+            (swap! watchers #(cond-> %
+                               (contains? % id) (assoc-in [id :version] (:version frame))))
+            (when (.compareAndSet writing false true)
+              (write! watchers id watcher))))))))
+
+(defn- push!
+  "Pushes the latest frame to the watchers of a hub, unless a push is
+  already running, which then pushes again once done."
+  [spectators {:keys [watchers ^AtomicBoolean pushing ^AtomicBoolean dirty] :as hub}]
+  (.set dirty true)
+  (when (.compareAndSet pushing false true)
+    (future
+      (loop []
+        (.set dirty false)
+        (when (seq @watchers)
+          (let [frame (current-frame! hub)]
+            (send-frame watchers frame)
+            (when (:ended? frame)
+              (release! spectators hub))))
+        (.set pushing false)
+        (when (and (.get dirty) (.compareAndSet pushing false true))
+          (recur))))))
+
+(defn- create-hub
+  [spectators round game]
+  (let [hub {:round round
+             :game game
+             :frame (atom nil)
+             :watchers (atom {})
+             :pushing (AtomicBoolean. false)
+             :dirty (AtomicBoolean. false)}]
+    (add-watch (:state round)
+               ::spectators
+               (fn [_ _ old-state new-state]
+                 (when-not (= (:version old-state) (:version new-state))
+                   (push! spectators hub))))
+    hub))
+
+(defn- hub-of
+  [^ConcurrentHashMap spectators round game]
+  (let [hub (.computeIfAbsent spectators
+                              (:ruid round)
+                              (reify Function
+                                (apply [_ _] (create-hub spectators round game))))]
+    (if (identical? (:round hub) round)
+      hub
+      ; The round was restored since its hub was created
+      (do
+        (release! spectators hub)
+        (recur spectators round game)))))
+
+(defn subscribe!
+  "Subscribes send-fn to the frames of a round of a spectated game, starting
+  with the current one. send-fn gets each frame and returns false once the
+  spectator is gone. close-fn is called if the spectator is evicted for
+  writing too slowly.
+  Returns a function unsubscribing."
+  ([spectators round game send-fn]
+   (subscribe! spectators round game send-fn (constantly nil)))
+  ([spectators round game send-fn close-fn]
+   (let [{:keys [watchers] :as hub} (hub-of spectators round game)
+         id (gensym "spectator")]
+     (swap! watchers assoc id {:send send-fn
+                               :close close-fn
+                               :slot (AtomicReference.)
+                               :writing (AtomicBoolean. false)
+                               :since (AtomicLong. 0)
+                               :version -1})
+     (push! spectators hub)
+     #(swap! watchers dissoc id))))
+
+(defn next-frame
+  "Watches the first frame of a round after the version seen by a spectator.
+  Returns a channel receiving that frame, or closed without value if none
+  came within timeout milliseconds."
+  [spectators round game seen-version timeout-ms]
+  (let [hub (hub-of spectators round game)
+        frame (current-frame! hub)
+        result (async/promise-chan)]
+    (if (> (:version frame) seen-version)
+      (do
+        (when (:ended? frame)
+          (release! spectators hub))
+        (async/put! result frame))
+      (let [unsubscribe (subscribe! spectators
+                                    round
+                                    game
+                                    (fn [frame]
+                                      (if (> (:version frame) seen-version)
+                                        (not (async/put! result frame))
+                                        true)))]
+        (async/go
+          (<! (async/timeout timeout-ms))
+          (unsubscribe)
+          (async/close! result))))
+    result))
+
+(defn watcher-count
+  "Counts the spectators subscribed to a round."
+  [^ConcurrentHashMap spectators ruid]
+  (if-let [hub (.get spectators ruid)]
+    (count @(:watchers hub))
+    0))
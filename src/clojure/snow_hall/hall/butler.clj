@@ -14,17 +14,45 @@
 (s/def ::gathering (s/keys :req-un [::id ::game]))
 (s/def ::tab (s/map-of ::id ::gathering))
 
+(defn- id-number
+  "Gets the number of a gathering id, following the prefix of its node."
+  [id]
+  (Integer/parseInt (subs id (inc (.lastIndexOf ^String id "-")))))
+
 (defn generate-id
-  [tab]
-  (let [ids (keys tab)]
-    (if (empty? ids)
-      "1"
-      (->> ids (map #(Integer/parseInt %)) (apply max) (inc) (str)))))
+  "Generates the next gathering id.
+  The last generated id is remembered in the tab metadata so that ids are not
+  reused once gatherings are evicted. Ids not accepted by owned? are skipped,
+  letting nodes of a cluster only allocate the ids they own. Each node of a
+  cluster gives its ids its own prefix, so that two nodes never allocate the
+  same id, even while the ring changes."
+  ([tab]
+   (generate-id tab (constantly true)))
+  ([tab owned?]
+   (generate-id tab "" owned?))
+  ([tab prefix owned?]
+   (let [ids (keys tab)
+         last-id (-> tab meta (::last-id 0))]
+     (->> ids
+          (map id-number)
+          (apply max last-id)
+          (inc)
+          (iterate inc)
+          (map #(str prefix %))
+          (filter owned?)
+          (first)))))
+
+(defn compare-ids
+  "Orders gathering ids by length, then as strings, so that the ids of a
+  node are ordered as the numbers they hold."
+  [a b]
+  (let [c (compare (count a) (count b))]
+    (if (zero? c) (compare a b) c)))
 
 (defn create-tab
-  "Creates the initial tab"
+  "Creates the initial tab, sorted by gathering id"
   []
-  {})
+  (sorted-map-by compare-ids))
 (def validate-fn (create-validation ::tab))
 
 (defn create-player-list
@@ -34,22 +62,102 @@
    [(:uuid first-player)]
    (range (dec player-count))))
 
+(defn seat-house-bot
+  "Gives the last free seat of a player list to the house bot."
+  [players]
+  (if-let [idx (last (keep-indexed #(when (:token %2) %1) players))]
+    (assoc players idx games/house-player)
+    (throw (IllegalArgumentException. "No seat left for the house bot"))))
+
 (defn create-gathering
-  "Creates a new game for a user"
-  [{:keys [tab user game user-options]}]
-  (let [game-id (generate-id tab)
+  "Creates a new game for a user.
+  With house-bot?, the house bot takes a seat in the gathering."
+  [{:keys [tab user game user-options id-prefix owned? house-bot?]
+    :or {id-prefix "" owned? (constantly true)}}]
+  (let [game-id (generate-id tab id-prefix owned?)
         game-options (games/read-options game user-options)
         player-count (games/get-player-count game game-options)
-        players (create-player-list player-count user)]
+        players (cond-> (create-player-list player-count user)
+                  house-bot? (seat-house-bot))]
     {:id game-id
      :game (games/get-name game)
      :players players
-     :options game-options}))
+     :options game-options
+     :created-at (System/currentTimeMillis)}))
+
+; Lobby
+; The tab indexes its open gatherings in its metadata, by game and by game
+; and number of free seats, as sets of ids sorted like the tab. Gatherings
+; must be added and removed with put-gathering and remove-gatherings to keep
+; the index up to date.
+
+(def ^:private empty-ids (sorted-set-by compare-ids))
+
+(defn free-seats
+  "Counts the seats of a gathering left for invited visitors."
+  [gathering]
+  (count (filter :token (:players gathering))))
+
+(defn- index-keys
+  [gathering]
+  (let [seats (free-seats gathering)]
+    (when (pos? seats)
+      [(:game gathering) [(:game gathering) seats]])))
+
+(defn- update-lobby
+  [lobby f gathering]
+  (reduce (fn [lobby k]
+            (let [ids (f (get lobby k empty-ids) (:id gathering))]
+              (if (empty? ids) (dissoc lobby k) (assoc lobby k ids))))
+          lobby
+          (index-keys gathering)))
+
+(defn- update-index
+  [tab f gathering]
+  (vary-meta tab update ::lobby #(update-lobby (or % {}) f gathering)))
+
+(defn put-gathering
+  "Adds or replaces a gathering in the tab."
+  [tab gathering]
+  (let [previous (get tab (:id gathering))]
+    (-> (cond-> tab previous (update-index disj previous))
+        (assoc (:id gathering) gathering)
+        (update-index conj gathering))))
+
+(defn remove-gatherings
+  "Removes gatherings from the tab by id."
+  [tab ids]
+  (reduce (fn [tab id]
+            (if-let [gathering (get tab id)]
+              (-> tab
+                  (update-index disj gathering)
+                  (dissoc id))
+              tab))
+          tab
+          ids))
+
+(defn open-gatherings
+  "Gets the ids of the open gatherings of a game, as a set sorted like the
+  tab. With seats, only the gatherings with that many free seats."
+  ([tab game]
+   (get-in (meta tab) [::lobby game] empty-ids))
+  ([tab game seats]
+   (get-in (meta tab) [::lobby [game seats]] empty-ids)))
 
 (defn register-gathering
   "Registers a new gathering to the tab."
   [tab gathering]
-  (assoc tab (:id gathering) gathering))
+  (-> tab
+      (put-gathering gathering)
+      (vary-meta update ::last-id (fnil max 0) (id-number (:id gathering)))))
+
+(defn evict-gatherings
+  "Removes from the tab all gatherings created before the given time."
+  [tab created-before]
+  (->> (vals tab)
+       (filter #(< (:created-at % 0) created-before))
+       (map :id)
+       (remove-gatherings tab)))
 
 (defn get-invit-tokens
   "Retrieves the free invits for a given gathering"
@@ -84,9 +192,6 @@
   "Joins an existing gathering"
   [{:keys [tab user gathering-id token]}]
   (if-let [game (get tab gathering-id)]
-    (assoc
-     tab
-     gathering-id
-     (integrate-visitor game user token))
+    (put-gathering tab (integrate-visitor game user token))
     (throw (IllegalArgumentException. (str "Not a gathering id " gathering-id)))))
 
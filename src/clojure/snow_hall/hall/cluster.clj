@@ -0,0 +1,451 @@
+(ns snow-hall.hall.cluster
+  (:require [clojure.edn :as edn]
+            [clojure.string :as str]
+            [cheshire.core :as json]
+            [org.httpkit.client :as client]
+            [org.httpkit.server :as server]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.credentials :as credentials]
+            [snow-hall.hall.journal :as journal])
+  (:import [clojure.lang Murmur3]
+           [java.io ByteArrayInputStream]
+           [java.nio.charset StandardCharsets]
+           [java.security MessageDigest]
+           [java.util Base64]
+           [javax.crypto Mac]
+           [javax.crypto.spec SecretKeySpec]))
+
+; Partition of the hall across several nodes.
+; Rounds and gatherings are owned by the node their id hashes to on a
+; consistent-hash ring. Ids are allocated so that the node creating a round
+; or a gathering owns it, gathering ids following a prefix of their node so
+; that nodes never allocate the same id. Requests landing on another node are
+; forwarded to the owner, and resources are handed off to their new owner
+; when nodes join or leave. Visitors are replicated on all nodes.
+; Calls between nodes, forwarded requests included, are signed with
+; HALL_SECRET: the signature header holds the time of the call and the HMAC
+; of the call, its sender and its body. A node only accepts calls from the
+; nodes of its configuration, signed less than max-skew ago.
+
+(def forwarded-header "x-snow-hall-forwarded")
+(def signature-header "x-snow-hall-signature")
+(def ^:private max-skew 30000)
+
+(defn read-config
+  "Reads the configuration of the cluster from the system properties.
+  The hall runs alone when no nodes are given."
+  []
+  (when-let [nodes (System/getProperty "CLUSTER_NODES")]
+    {:self (System/getProperty "NODE_URL"
+                               (str "http://127.0.0.1:"
+                                    (Integer/getInteger "PORT" 3000)))
+     :nodes (->> (str/split nodes #",")
+                 (map str/trim)
+                 (remove str/blank?)
+                 (set))
+     :secret (System/getProperty "HALL_SECRET")
+     :vnodes (Integer/getInteger "CLUSTER_VNODES" 64)
+     :timeout (Long/getLong "CLUSTER_TIMEOUT" 5000)}))
+
+; Ring
+
+(defn- hash-key
+  [k]
+  (Murmur3/hashUnencodedChars (str k)))
+
+(defn create-ring
+  "Creates a ring placing vnodes points for each node."
+  [nodes vnodes]
+  (into (sorted-map)
+        (for [node nodes
+              i (range vnodes)]
+          [(hash-key (str node "#" i)) node])))
+
+(defn owner
+  "Gets the node owning a key on the ring."
+  [ring k]
+  (when (seq ring)
+    (val (or (first (subseq ring >= (hash-key k)))
+             (first ring)))))
+
+(defn create
+  "Creates the state of the cluster, or nil when the hall runs alone.
+  Nodes must share a secret to authenticate their calls."
+  [config]
+  (when config
+    (when (str/blank? (:secret config))
+      (throw (IllegalArgumentException. "HALL_SECRET is required to run a cluster")))
+    (let [nodes (conj (:nodes config) (:self config))]
+      (atom {:config config
+             :self (:self config)
+             :nodes nodes
+             :ring (create-ring nodes (:vnodes config))
+             :previous {}}))))
+
+(defn owns?
+  "Tests if the local node owns a key. A hall running alone owns all keys."
+  [cluster k]
+  (or (nil? cluster)
+      (let [{:keys [self ring]} @cluster]
+        (= self (owner ring k)))))
+
+(defn id-prefix
+  "Gets the prefix of the gathering ids allocated by the local node, empty
+  for a hall running alone."
+  [cluster]
+  (if cluster
+    (format "%08x-" (hash-key (:self @cluster)))
+    ""))
+
+(defn local-id
+  "Generates ids until finding one owned by the local node."
+  [cluster generate]
+  (->> (repeatedly 1000 generate)
+       (filter #(owns? cluster %))
+       (first)))
+
+(defn set-nodes!
+  "Changes the members of the cluster, keeping the previous ring to find
+  resources not handed off yet."
+  [cluster nodes]
+  (swap! cluster
+         (fn [{:keys [config ring] :as state}]
+           (assoc state
+                  :nodes nodes
+                  :ring (create-ring nodes (:vnodes config))
+                  :previous ring))))
+
+(defn member?
+  "Tests if a node is configured as a member of the cluster."
+  [cluster node]
+  (let [{:keys [config]} @cluster]
+    (or (= node (:self config))
+        (contains? (:nodes config) node))))
+
+; Calls to other nodes
+
+(defn- utf8
+  ^bytes [^String value]
+  (.getBytes value StandardCharsets/UTF_8))
+
+(defn- sign
+  [^String secret method path sender timestamp ^bytes body]
+  (let [mac (Mac/getInstance "HmacSHA256")]
+    (.init mac (SecretKeySpec. (utf8 secret) "HmacSHA256"))
+    (.update mac (utf8 (str (str/upper-case (name method)) " " path "\n"
+                            sender "\n"
+                            timestamp "\n")))
+    (when body
+      (.update mac body))
+    (.encodeToString (.withoutPadding (Base64/getUrlEncoder)) (.doFinal mac))))
+
+(defn signature
+  "Signs a call of the local node, at now in milliseconds."
+  ([cluster method path body]
+   (signature cluster method path body (System/currentTimeMillis)))
+  ([cluster method path body now]
+   (let [{:keys [self config]} @cluster]
+     (str now "." (sign (:secret config) method path self now body)))))
+
+(defn authentic?
+  "Tests if a request was signed by a member of the cluster, at most
+  max-skew milliseconds from now."
+  ([cluster req body]
+   (authentic? cluster req body (System/currentTimeMillis)))
+  ([cluster {:keys [request-method uri headers]} body now]
+   (let [sender (get headers forwarded-header)
+         [timestamp sig] (some-> (get headers signature-header)
+                                 (str/split #"\." 2))
+         timestamp (try (Long/parseLong timestamp)
+                        (catch NumberFormatException _ nil))]
+     (boolean
+      (and sender sig timestamp
+           (member? cluster sender)
+           (<= (Math/abs (long (- now timestamp))) max-skew)
+           (MessageDigest/isEqual
+            (utf8 sig)
+            (utf8 (sign (get-in @cluster [:config :secret])
+                        request-method uri sender timestamp body))))))))
+
+(defn- call!
+  "Calls another node, returning the promise of the response."
+  [cluster node method path content-type ^String body]
+  (client/request {:url (str node path)
+                   :method method
+                   :headers {"content-type" content-type
+                             forwarded-header (:self @cluster)
+                             signature-header (signature cluster method path (utf8 body))}
+                   :body body
+                   :timeout (get-in @cluster [:config :timeout])
+                   :as :text}))
+
+(defn- others
+  [cluster]
+  (let [{:keys [self nodes]} @cluster]
+    (disj nodes self)))
+
+(defn share-visitor!
+  "Sends a registered or edited visitor to the other nodes."
+  [cluster visitor]
+  (when cluster
+    (doseq [node (others cluster)]
+      (call! cluster
+             node
+             :put
+             (str "/cluster/visitors/" (:uuid visitor))
+             "application/json"
+             (json/generate-string visitor)))))
+
+; Handoff of resources
+
+(defn- drain-round!
+  "Waits for the moves already submitted to a scheduled round."
+  [scheduler ruid]
+  (let [done (promise)]
+    (scheduler/submit! scheduler ruid #(deliver done true))
+    (deref done 1000 nil)))
+
+(defn- misplaced
+  "Lists the gatherings and scheduled rounds owned by other nodes, per owner."
+  [cluster {:keys [tab rounds]}]
+  (let [{:keys [self ring]} @cluster
+        gatherings (for [[id gathering] @tab
+                         :let [node (owner ring id)]
+                         :when (not= node self)]
+                     [node :gatherings gathering])
+        moved-rounds (for [[ruid round] @rounds
+                           :when (rounds/scheduled? round)
+                           :let [node (owner ring ruid)]
+                           :when (not= node self)]
+                       [node :rounds round])]
+    (reduce (fn [acc [node kind item]]
+              (update-in acc [node kind] (fnil conj []) item))
+            {}
+            (concat gatherings moved-rounds))))
+
+(defn- hand-off-to!
+  [cluster {:keys [tab rounds scheduler journal]} node {gatherings :gatherings moved :rounds}]
+  (let [ids (map :id gatherings)
+        ruids (map :ruid moved)]
+    ; Removed first so that no move is accepted once the round is captured
+    (dosync
+     (alter tab butler/remove-gatherings ids)
+     (alter rounds #(apply dissoc % ruids)))
+    (doseq [ruid ruids]
+      (drain-round! scheduler ruid))
+    (let [payload {:gatherings (vec gatherings)
+                   :rounds (mapv rounds/snapshot moved)}
+          {:keys [status error]} @(call! cluster
+                                         node
+                                         :post
+                                         "/cluster/handoff"
+                                         "application/edn"
+                                         (pr-str payload))]
+      (if (and (not error) (= 200 status))
+        (do
+          (journal/record! journal {:type :handed-off
+                                    :rounds (vec ruids)
+                                    :gatherings (vec ids)})
+          (run! rounds/discard! moved))
+        (do
+          (println (str "Failed to hand off to " node ": " (or error status)))
+          (dosync
+           (alter tab #(reduce butler/put-gathering % gatherings))
+           (alter rounds into (map (juxt :ruid identity) moved))))))))
+
+(defn rebalance!
+  "Hands off the resources owned by other nodes to their owner."
+  [{:keys [cluster] :as context}]
+  (when cluster
+    (doseq [[node resources] (misplaced cluster context)]
+      (hand-off-to! cluster context node resources))))
+
+(defn receive!
+  "Takes over resources handed off by another node."
+  [{:keys [tab rounds games scheduler journal]} {gatherings :gatherings moved :rounds}]
+  (let [restored (vec (for [snapshot moved
+                            :let [game (get @games (:game snapshot))]
+                            :when game]
+                        (rounds/restore snapshot game scheduler)))]
+    (doseq [round restored]
+      (journal/track-round! journal round))
+    (dosync
+     (doseq [gathering gatherings]
+       (alter tab butler/register-gathering gathering)
+       (journal/record! journal {:type :gathering-created :gathering gathering}))
+     (alter rounds into (map (juxt :ruid identity) restored))
+     (doseq [round restored]
+       (journal/record! journal {:type :round-started
+                                 :round (rounds/snapshot round)})))
+    (run! rounds/resume-bots! restored)))
+
+; Membership
+
+(defn- import-visitors!
+  "Imports the visitors known by another node, and its revocations.
+  Visitors come without tokens: their signed tokens are checked on their own."
+  [{:keys [visitors journal credentials]} {imported :visitors revoked :revoked}]
+  (when credentials
+    (credentials/import-revocations! credentials revoked))
+  (dosync
+   (let [added (into {} (remove #(contains? @visitors (key %))) imported)]
+     (alter visitors merge added)
+     (doseq [visitor (vals added)]
+       (journal/record! journal {:type :visitor-registered :visitor visitor})))))
+
+(defn join!
+  "Announces the local node to the other members and imports their
+  visitors. Members hand off the resources the local node now owns."
+  [{:keys [cluster] :as context}]
+  (when cluster
+    (doseq [node (others cluster)]
+      (let [{:keys [status body error]}
+            @(call! cluster
+                    node
+                    :post
+                    "/cluster/nodes"
+                    "application/json"
+                    (json/generate-string {:url (:self @cluster)}))]
+        (if (and (not error) (= 200 status))
+          (import-visitors! context (edn/read-string (str body)))
+          (println (str "Node " node " unavailable: " (or error status))))))))
+
+(defn leave!
+  "Removes the local node from the cluster, handing off its resources."
+  [{:keys [cluster] :as context}]
+  (when cluster
+    (let [self (:self @cluster)
+          remaining (disj (:nodes @cluster) self)]
+      (doseq [node remaining]
+        @(call! cluster
+                node
+                :post
+                "/cluster/leave"
+                "application/json"
+                (json/generate-string {:url self})))
+      ; The local node is not on the new ring, so all resources move
+      (when (seq remaining)
+        (set-nodes! cluster remaining)
+        (rebalance! context)))))
+
+; Routing
+
+(defn- read-body
+  "Reads the body of a request, keeping it readable by the next handlers."
+  [req]
+  (if-let [body (:body req)]
+    (let [bytes (.readAllBytes ^java.io.InputStream body)]
+      [(assoc req :body (ByteArrayInputStream. bytes)) bytes])
+    [req nil]))
+
+(defn- route-target
+  "Gets the resource targeted by a request, as [kind id], with the request
+  to handle. Starting a round targets its gathering. Batches target no
+  resource, as their rounds may be anywhere."
+  [{:keys [uri request-method] :as req}]
+  (if-let [[_ kind id] (and (not= uri "/rounds/batch")
+                            (re-find #"^/(rounds|gatherings)/([^/]+)" uri))]
+    [[(keyword kind) id] req]
+    (if (and (= uri "/rounds") (= request-method :post))
+      (let [[req bytes] (read-body req)
+            guid (try (get (json/parse-string (String. ^bytes bytes "UTF-8"))
+                           "gathering")
+                      (catch Exception _ nil))]
+        [(when guid [:gatherings (str guid)]) req])
+      [nil req])))
+
+(defn- local?
+  [{:keys [rounds archives tab]} [kind id]]
+  (case kind
+    :rounds (let [ruid (try (java.util.UUID/fromString id)
+                            (catch IllegalArgumentException _ nil))]
+              (or (contains? @rounds ruid) (contains? @archives ruid)))
+    :gatherings (contains? @tab id)))
+
+(defn forward-target
+  "Gets the node to forward a request to, or nil to serve it locally.
+  Resources not found on their owner may still be on their previous owner."
+  [cluster id]
+  (let [{:keys [self ring previous]} @cluster
+        node (owner ring id)]
+    (if (not= node self)
+      node
+      (let [old-node (owner previous id)]
+        (when (and old-node (not= old-node self))
+          old-node)))))
+
+(defn- ->ring-response
+  [{:keys [status headers body error]}]
+  (if error
+    {:status 502
+     :body "Node unavailable"}
+    {:status status
+     :headers (->> (dissoc headers :content-length :transfer-encoding
+                           :connection :server :date)
+                   (map (fn [[k v]] [(name k) (str v)]))
+                   (into {}))
+     :body body}))
+
+(defn- forward!
+  [cluster node {:keys [request-method uri] :as req}]
+  (let [body (some-> ^java.io.InputStream (:body req) (.readAllBytes))]
+    (server/with-channel req channel
+      (client/request {:url (str node
+                                 uri
+                                 (when-let [q (:query-string req)] (str "?" q)))
+                       :method request-method
+                       :headers (-> (:headers req)
+                                    (dissoc "host" "content-length")
+                                    (assoc forwarded-header (:self @cluster)
+                                           signature-header (signature cluster request-method uri body)))
+                       :body body
+                       :timeout (get-in @cluster [:config :timeout])}
+                      #(server/send! channel (->ring-response %))))))
+
+(defn- forwarded
+  "Tells if a request was forwarded by a member of the cluster, as
+  [forwarded? req] with the request to handle. The forwarding headers of
+  requests not signed by a member are dropped."
+  [cluster req]
+  (if (get-in req [:headers forwarded-header])
+    (let [[req bytes] (read-body req)]
+      (if (authentic? cluster req bytes)
+        [true req]
+        [false (update req :headers dissoc forwarded-header signature-header)]))
+    [false req]))
+
+(defn wrap-routing
+  "Middleware forwarding the requests on rounds and gatherings to the node
+  owning them. Requests already forwarded, signed by a member of the
+  cluster, are always served locally."
+  [handler {:keys [cluster] :as context}]
+  (if-not cluster
+    handler
+    (fn [request]
+      (let [[forwarded? request] (forwarded cluster request)
+            [target req] (route-target request)
+            node (when (and target
+                            (not forwarded?)
+                            (not (local? context target)))
+                   (forward-target cluster (second target)))]
+        (if node
+          (forward! cluster node req)
+          (handler req))))))
+
+(defn wrap-authentication
+  "Middleware rejecting the calls to the cluster routes not signed by a
+  member of the cluster. Reading the members stays open."
+  [handler {:keys [cluster]}]
+  (if-not cluster
+    handler
+    (fn [{:keys [uri request-method] :as req}]
+      (if (and (str/starts-with? uri "/cluster")
+               (not= request-method :get))
+        (let [[req bytes] (read-body req)]
+          (if (authentic? cluster req bytes)
+            (handler req)
+            {:status 401
+             :body "Unknown node"}))
+        (handler req)))))
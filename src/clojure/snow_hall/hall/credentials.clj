@@ -0,0 +1,169 @@
+(ns snow-hall.hall.credentials
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str])
+  (:import [java.nio.charset StandardCharsets]
+           [java.nio.file FileAlreadyExistsException Files OpenOption StandardOpenOption]
+           [java.security MessageDigest SecureRandom]
+           [java.util Base64]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function BiFunction Function Predicate]
+           [javax.crypto Mac]
+           [javax.crypto.spec SecretKeySpec]))
+
+; Signed credentials of the visitors.
+; A token is `<uuid>.<issued-at>.<signature>`, the signature being the HMAC of
+; the uuid and the issue time with the key of the period it was issued in.
+; Keys are derived from the secret of the hall, so that all nodes sharing it
+; verify the tokens of the others, and change every key-period. Checking a
+; token reads neither the registry nor any ref: only the deny-list, holding
+; for each visitor who renewed a token the time before which its tokens are
+; revoked, until those tokens would have expired anyway.
+; Without HALL_SECRET, each node draws its own secret. With a journal, the
+; secret is stored in its directory, so that the tokens of the visitors
+; restored from the journal still hold after a restart; without one, the
+; tokens only hold until the node restarts.
+
+(defn read-config
+  "Reads the configuration of the credentials from the system properties."
+  []
+  {:secret (System/getProperty "HALL_SECRET")
+   :secret-dir (System/getProperty "JOURNAL_DIR")
+   :ttl (Long/getLong "VISITOR_TOKEN_TTL" (* 30 24 60 60 1000))
+   :key-period (Long/getLong "HALL_KEY_PERIOD" (* 24 60 60 1000))})
+
+(defn- random-secret
+  []
+  (let [bytes (byte-array 32)]
+    (.nextBytes (SecureRandom.) bytes)
+    bytes))
+
+(defn- stored-secret
+  "Reads the secret stored in a directory, storing a random one first if
+  there is none."
+  [dir]
+  (let [path (.toPath (io/file dir "secret"))]
+    (io/make-parents (.toFile path))
+    (try
+      (Files/write path
+                   (.getBytes (.encodeToString (Base64/getEncoder) (random-secret)) "UTF-8")
+                   ^"[Ljava.nio.file.OpenOption;" (into-array OpenOption [StandardOpenOption/CREATE_NEW]))
+      (catch FileAlreadyExistsException _ nil))
+    (.decode (Base64/getDecoder) (str/trim (String. (Files/readAllBytes path) "UTF-8")))))
+
+(defn- utf8
+  ^bytes [^String value]
+  (.getBytes value StandardCharsets/UTF_8))
+
+(defn- hmac
+  ^bytes [^bytes key ^String value]
+  (let [mac (Mac/getInstance "HmacSHA256")]
+    (.init mac (SecretKeySpec. key "HmacSHA256"))
+    (.doFinal mac (utf8 value))))
+
+(defn create
+  [{:keys [secret secret-dir] :as config}]
+  {:config config
+   :secret (cond
+             secret (utf8 secret)
+             secret-dir (stored-secret secret-dir)
+             :else (random-secret))
+   :period-keys (ConcurrentHashMap.)
+   :denied (ConcurrentHashMap.)})
+
+(defn- key-of
+  "Gets the key of a period, derived once from the secret."
+  [{:keys [secret ^ConcurrentHashMap period-keys]} period]
+  (.computeIfAbsent period-keys
+                    period
+                    (reify Function
+                      (apply [_ _] (hmac secret (str "snow-hall-key-" period))))))
+
+(defn- sign
+  [{:keys [config] :as credentials} uuid issued-at]
+  (let [period (quot issued-at (:key-period config))
+        payload (str uuid "." issued-at)]
+    (.encodeToString (.withoutPadding (Base64/getUrlEncoder))
+                     (hmac (key-of credentials period) payload))))
+
+(defn issue
+  "Issues a token for a visitor."
+  ([credentials uuid]
+   (issue credentials uuid (System/currentTimeMillis)))
+  ([credentials uuid issued-at]
+   (str uuid "." issued-at "." (sign credentials uuid issued-at))))
+
+(defn- parse
+  [token]
+  (when (string? token)
+    (let [[uuid issued-at signature :as parts] (str/split token #"\.")]
+      (when (= 3 (count parts))
+        (try
+          {:uuid uuid
+           :issued-at (Long/parseLong issued-at)
+           :signature signature}
+          (catch NumberFormatException _ nil))))))
+
+(defn signed?
+  "Tests if a token has the form of a signed token."
+  [token]
+  (some? (parse token)))
+
+(defn- revoked?
+  [{:keys [^ConcurrentHashMap denied]} uuid issued-at]
+  (when-let [before (.get denied uuid)]
+    (< issued-at before)))
+
+(defn verify
+  "Tests if a token is a valid token of the visitor uuid."
+  ([credentials uuid token]
+   (verify credentials uuid token (System/currentTimeMillis)))
+  ([{:keys [config] :as credentials} uuid token now]
+   (let [{:keys [issued-at signature] :as parsed} (parse token)]
+     (boolean
+      (and parsed
+           (= uuid (:uuid parsed))
+           (< now (+ issued-at (:ttl config)))
+           (not (revoked? credentials uuid issued-at))
+           (MessageDigest/isEqual (utf8 signature)
+                                  (utf8 (sign credentials uuid issued-at))))))))
+
+(def ^:private keep-latest
+  (reify BiFunction
+    (apply [_ a b] (max a b))))
+
+(defn revoke-before!
+  "Revokes the tokens of a visitor issued before the given token."
+  [{:keys [^ConcurrentHashMap denied]} uuid token]
+  (when-let [{:keys [issued-at]} (parse token)]
+    (.merge denied uuid issued-at keep-latest)))
+
+(defn revocations
+  "Gets the deny-list, as the time before which the tokens of each visitor
+  are revoked."
+  [{:keys [^ConcurrentHashMap denied]}]
+  (into {} denied))
+
+(defn import-revocations!
+  "Merges the deny-list of another node, keeping the latest revocations."
+  [{:keys [^ConcurrentHashMap denied]} revoked]
+  (doseq [[uuid before] revoked]
+    (.merge denied uuid (long before) keep-latest)))
+
+(defn renew!
+  "Issues a new token for a visitor, revoking all its previous tokens."
+  [credentials uuid]
+  (let [token (issue credentials uuid)]
+    (revoke-before! credentials uuid token)
+    token))
+
+(defn prune!
+  "Forgets the revocations and keys only concerning expired tokens."
+  ([credentials]
+   (prune! credentials (System/currentTimeMillis)))
+  ([{:keys [config ^ConcurrentHashMap period-keys ^ConcurrentHashMap denied]} now]
+   (let [{:keys [ttl key-period]} config
+         oldest (- now ttl)]
+     (.removeIf (.values denied) (reify Predicate
+                                   (test [_ before] (<= before oldest))))
+     (.removeIf (.keySet period-keys) (reify Predicate
+                                        (test [_ period] (< period (quot oldest key-period))))))))
@@ -0,0 +1,148 @@
+(ns snow-hall.hall.janitor
+  (:require [clojure.core.async :as async :refer [alts!! timeout]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.credentials :as credentials]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.hall.limiter :as limiter]
+            [snow-hall.hall.matchmaker :as matchmaker]
+            [snow-hall.hall.passivation :as passivation]
+            [snow-hall.hall.tournament :as tournament]
+            [snow-hall.metrics :refer [tracked-dosync]]))
+
+(defn read-config
+  "Reads the configuration of the janitor from the system properties.
+  All durations are in milliseconds."
+  []
+  {:finished-ttl (Long/getLong "ROUND_FINISHED_TTL" (* 5 60 1000))
+   :idle-ttl (Long/getLong "ROUND_IDLE_TTL" (* 60 60 1000))
+   :archive-ttl (Long/getLong "ARCHIVE_TTL" (* 24 60 60 1000))
+   :gathering-ttl (Long/getLong "GATHERING_TTL" (* 60 60 1000))
+   :period (Long/getLong "SWEEP_PERIOD" (* 30 1000))})
+
+(defn create-metrics
+  []
+  (atom {:sweeps 0
+         :finished-rounds 0
+         :abandoned-rounds 0
+         :expired-archives 0
+         :evicted-gatherings 0
+         :passivated-rounds 0
+         :last-sweep-duration 0}))
+
+(defn classify-round
+  "Decides what to do with a round at time now.
+  Returns :finished for an ended round kept long enough, :abandoned for a
+  round idle for too long, or nil if the round must stay in the hall."
+  [round {:keys [finished-ttl idle-ttl]} now]
+  (let [idle (- now (rounds/idle-since round))]
+    (cond
+      (and (rounds/ended? round) (> idle finished-ttl)) :finished
+      (> idle idle-ttl) :abandoned)))
+
+(defn- select-rounds
+  [rounds config now]
+  (into {}
+        (keep (fn [[ruid round]]
+                (when-let [outcome (classify-round round config now)]
+                  [ruid outcome])))
+        rounds))
+
+(defn- archive-rounds
+  "Moves the selected rounds to the archives, returning the evicted rounds
+  with their outcome."
+  [rounds archives outcomes]
+  (let [evicted (mapv (fn [[ruid outcome]] [(get @rounds ruid) outcome])
+                      outcomes)]
+    (alter archives into (map (fn [[round outcome]]
+                                [(:ruid round) (rounds/summarize round outcome)])
+                              evicted))
+    (alter rounds #(apply dissoc % (keys outcomes)))
+    evicted))
+
+(defn- expire-archives
+  [archives ended-before]
+  (let [expired (->> (vals @archives)
+                     (filter #(< (:ended-at %) ended-before))
+                     (map :ruid))]
+    (alter archives #(apply dissoc % expired))
+    (vec expired)))
+
+(defn- evict-gatherings
+  [tab created-before]
+  (let [before @tab
+        after (alter tab butler/evict-gatherings created-before)]
+    (vec (remove #(contains? after %) (keys before)))))
+
+(defn- count-outcomes
+  [evicted outcome]
+  (count (filter #(= outcome (second %)) evicted)))
+
+(defn sweep!
+  "Runs one pass of cleaning on the hall.
+  Finished and abandoned rounds are archived, old archives, gatherings,
+  matchmaking tickets, tournaments and revocations of expired tokens are
+  dropped. The engines of abandoned rounds are stopped and idle rounds are
+  passivated."
+  [{:keys [rounds archives tab janitor metrics journal matchmaker tournaments
+           passivation credentials limiter]} config]
+  (let [now (System/currentTimeMillis)
+        [evicted expired gatherings]
+        (tracked-dosync metrics "sweep"
+         (let [swept [(archive-rounds rounds
+                                      archives
+                                      (select-rounds @rounds config now))
+                      (expire-archives archives (- now (:archive-ttl config)))
+                      (evict-gatherings tab (- now (:gathering-ttl config)))]
+               [evicted expired gatherings] swept]
+           (when (or (seq evicted) (seq expired) (seq gatherings))
+             (journal/record! journal
+                              {:type :hall-swept
+                               :archived (vec (keep #(get @archives (:ruid (first %))) evicted))
+                               :expired expired
+                               :gatherings gatherings}))
+           swept))]
+    (doseq [[round outcome] evicted]
+      (when (= outcome :abandoned)
+        (game/stop (:engine round)))
+      (rounds/discard! round))
+    (when matchmaker
+      (matchmaker/forget-tickets! matchmaker (- now (:gathering-ttl config))))
+    (when tournaments
+      (tournament/forget-tournaments! tournaments (- now (:archive-ttl config))))
+    (when credentials
+      (credentials/prune! credentials now))
+    (when limiter
+      (limiter/prune! limiter))
+    (let [passivated (if passivation
+                       (passivation/passivate-idle!
+                        passivation
+                        @rounds
+                        (- now (get-in passivation [:config :idle-after])))
+                       0)]
+      (swap! janitor
+             #(-> %
+                  (update :sweeps inc)
+                  (update :finished-rounds + (count-outcomes evicted :finished))
+                  (update :abandoned-rounds + (count-outcomes evicted :abandoned))
+                  (update :expired-archives + (count expired))
+                  (update :evicted-gatherings + (count gatherings))
+                  (update :passivated-rounds + passivated)
+                  (assoc :last-sweep-duration (- (System/currentTimeMillis) now)))))))
+
+(defn start
+  "Starts sweeping the hall periodically.
+  Returns a function stopping the janitor."
+  [context config]
+  (let [stop (async/chan)]
+    (async/thread
+      (loop []
+        (let [[_ c] (alts!! [stop (timeout (:period config))])]
+          (when-not (= c stop)
+            (try
+              (sweep! context config)
+              (catch Exception e
+                (println (str "Failed to sweep the hall: " e))))
+            (recur)))))
+    #(async/close! stop)))
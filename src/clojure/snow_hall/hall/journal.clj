@@ -0,0 +1,374 @@
+(ns snow-hall.hall.journal
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.credentials :as credentials])
+  (:import [java.io BufferedWriter File FileOutputStream OutputStreamWriter]
+           [java.nio.charset StandardCharsets]
+           [java.nio.file CopyOption Files StandardCopyOption]
+           [java.util.concurrent LinkedBlockingQueue]))
+
+; Append-only journal of the hall events, with periodic snapshots.
+; Events are recorded in the transaction changing the hall, appended to a
+; pending ref by commute, so that they are queued in the order of the
+; commits: an event always follows the events whose changes its transaction
+; saw. A single thread, rung through an agent once the transaction commits,
+; writes the pending events and syncs the file once per batch.
+; Every snapshot-every events, the writer moves to a new segment and writes a
+; snapshot of the hall covering all previous segments, which are then
+; deleted. A snapshot may already contain some events of the next segments,
+; so replaying an event must leave the hall unchanged if it was applied.
+
+(defn read-config
+  "Reads the configuration of the journal from the system properties.
+  The journal is disabled when no directory is given."
+  []
+  {:dir (System/getProperty "JOURNAL_DIR")
+   :snapshot-every (Long/getLong "JOURNAL_SNAPSHOT_EVERY" 50000)
+   :max-batch (Integer/getInteger "JOURNAL_MAX_BATCH" 1024)})
+
+(defn create
+  "Creates the journal of the hall, or nil if it is disabled."
+  [config]
+  (when (:dir config)
+    {:config config
+     :pending (ref [])
+     :bell (agent nil)
+     :queue (LinkedBlockingQueue.)}))
+
+(defn- ring
+  [_ ^LinkedBlockingQueue queue]
+  (.offer queue true)
+  nil)
+
+(defn record!
+  "Queues an event to be written to the journal. Called in a transaction,
+  the event is queued when it commits, in the order of the commits."
+  [journal event]
+  (when journal
+    (dosync
+     (commute (:pending journal) conj event))
+    ; Sent on commit within a transaction
+    (send (:bell journal) ring (:queue journal))))
+
+(defn queue-size
+  [journal]
+  (if journal (count @(:pending journal)) 0))
+
+(defn- new-messages
+  "Lists the messages added by a step, as [uuid message]."
+  [old-state new-state]
+  (for [[uuid messages] (:messages new-state)
+        message (drop (count (get-in old-state [:messages uuid])) messages)]
+    [uuid message]))
+
+(defn- read-messages
+  "Lists the players who read their messages, with the time of the last one."
+  [old-state new-state]
+  (for [[uuid messages] (:messages old-state)
+        :when (< (count (get-in new-state [:messages uuid])) (count messages))]
+    [uuid (:timestamp (last messages))]))
+
+(defn- round-events
+  [ruid old-state new-state]
+  (cond
+    ; Passivating or loading back a round leaves it unchanged
+    (not= (:passivated old-state) (:passivated new-state))
+    []
+
+    (not= (:moves old-state) (:moves new-state))
+    (let [[pid move] (:last-move new-state)]
+      [{:type :move-played
+        :ruid ruid
+        :seq (:moves old-state 0)
+        :player pid
+        :move move
+        :messages (new-messages old-state new-state)
+        :updated-at (:updated-at new-state)}])
+
+    (and (= :ended (:status new-state)) (not= :ended (:status old-state)))
+    [{:type :round-stopped :ruid ruid}]
+
+    :else
+    (for [[uuid until] (read-messages old-state new-state)]
+      {:type :messages-read :ruid ruid :player uuid :until until})))
+
+(defn track-round!
+  "Records the moves played on a scheduled round with the messages they
+  emitted, the messages read by players and the end of the round."
+  [journal {:keys [ruid state]}]
+  (when journal
+    (add-watch state
+               ::journal
+               (fn [_ _ old-state new-state]
+                 (doseq [event (round-events ruid old-state new-state)]
+                   (record! journal event))))))
+
+; Files
+
+(def ^:private stop-event ::stop)
+
+(defn- file-id
+  [^File file prefix]
+  (when-let [[_ id] (re-matches (re-pattern (str prefix "-(\\d+)\\.edn"))
+                                (.getName file))]
+    (Long/parseLong id)))
+
+(defn- list-files
+  "Lists the files of a kind in the directory, sorted by id."
+  [dir prefix]
+  (->> (.listFiles (io/file dir))
+       (keep #(when-let [id (file-id % prefix)] [id %]))
+       (sort-by first)))
+
+(defn- file-of
+  [dir prefix id]
+  (io/file dir (format "%s-%020d.edn" prefix id)))
+
+(defn- ->line
+  [form]
+  (binding [*print-length* nil
+            *print-level* nil
+            *print-meta* false]
+    (str (pr-str form) "\n")))
+
+(defn- read-lines
+  "Reads the forms of a file, stopping at the first incomplete line left by a
+  crash."
+  [^File file]
+  (with-open [reader (io/reader file)]
+    (loop [lines (line-seq reader)
+           forms (transient [])]
+      (if-let [line (first lines)]
+        (let [form (try (edn/read-string line)
+                        (catch Exception _ ::invalid))]
+          (if (= form ::invalid)
+            (do (println (str "Ignoring the end of " (.getName file)))
+                (persistent! forms))
+            (recur (rest lines) (conj! forms form))))
+        (persistent! forms)))))
+
+(defn- open-segment
+  [dir id]
+  (let [stream (FileOutputStream. ^File (file-of dir "segment" id) true)]
+    {:id id
+     :stream stream
+     :writer (BufferedWriter.
+              (OutputStreamWriter. stream StandardCharsets/UTF_8))}))
+
+(defn- write-batch!
+  [{:keys [^BufferedWriter writer ^FileOutputStream stream]} events]
+  (doseq [event events]
+    (.write writer ^String (->line event)))
+  (.flush writer)
+  (.force (.getChannel stream) false))
+
+(defn- close-segment!
+  [{:keys [^BufferedWriter writer]}]
+  (.close writer))
+
+; Snapshots
+
+(defn- snapshot-forms
+  [{:keys [visitors tab rounds archives]}]
+  (let [[visitors tab rounds archives]
+        (dosync [@visitors @tab @rounds @archives])]
+    (concat
+     [[:last-gathering-id (-> tab meta (::butler/last-id 0))]]
+     (map #(vector :visitor %) (vals visitors))
+     (map #(vector :gathering %) (vals tab))
+     (keep #(some->> (rounds/snapshot %) (vector :round)) (vals rounds))
+     (map #(vector :archive %) (vals archives)))))
+
+(defn- write-snapshot!
+  "Writes the snapshot of the hall covering the segments up to id, then
+  deletes these segments and the older snapshots."
+  [context dir id]
+  (let [target (file-of dir "snapshot" id)
+        tmp (io/file dir (str (.getName target) ".tmp"))]
+    (with-open [stream (FileOutputStream. tmp)
+                writer (BufferedWriter.
+                        (OutputStreamWriter. stream StandardCharsets/UTF_8))]
+      (doseq [form (snapshot-forms context)]
+        (.write writer ^String (->line form)))
+      (.flush writer)
+      (.force (.getChannel stream) false))
+    (Files/move (.toPath tmp)
+                (.toPath target)
+                (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE]))
+    (doseq [[old-id file] (concat (list-files dir "segment")
+                                  (list-files dir "snapshot"))
+            :when (and (<= old-id id) (not= file target))]
+      (.delete ^File file))))
+
+; Recovery
+
+(defn- restore-round
+  [{:keys [games scheduler]} round-snapshot]
+  (when-let [game (get @games (:game round-snapshot))]
+    (rounds/restore round-snapshot game scheduler)))
+
+(defn- load-form!
+  [{:keys [visitors tab rounds archives] :as context} [kind value]]
+  (case kind
+    :last-gathering-id (alter tab vary-meta assoc ::butler/last-id value)
+    :visitor (do
+               ; The tokens a visitor renewed since are no longer valid
+               (when-let [credentials (:credentials context)]
+                 (credentials/revoke-before! credentials (:uuid value) (:token value)))
+               (alter visitors assoc (:uuid value) value))
+    :gathering (alter tab butler/put-gathering value)
+    :round (when-let [round (restore-round context value)]
+             (alter rounds assoc (:ruid round) round))
+    :archive (alter archives assoc (:ruid value) value)))
+
+(defn- join-if-free
+  [tab {:keys [id visitor token]}]
+  (let [gathering (get tab id)]
+    (if (and gathering (butler/get-token-idx (:players gathering) token))
+      (butler/join-gathering {:tab tab
+                              :user {:uuid visitor}
+                              :gathering-id id
+                              :token token})
+      tab)))
+
+(defn replay!
+  "Applies again an event on the hall. Must be called in a transaction."
+  [{:keys [visitors tab rounds archives] :as context} event]
+  (case (:type event)
+    :visitor-registered
+    (let [visitor (:visitor event)]
+      (alter visitors update (:uuid visitor) #(or % visitor)))
+
+    :nickname-changed
+    (when (contains? @visitors (:uuid event))
+      (alter visitors assoc-in [(:uuid event) :nickname] (:nickname event)))
+
+    :token-renewed
+    (do
+      (when-let [credentials (:credentials context)]
+        (credentials/revoke-before! credentials (:uuid event) (:token event)))
+      (when (contains? @visitors (:uuid event))
+        (alter visitors assoc-in [(:uuid event) :token] (:token event))))
+
+    :gathering-created
+    (let [gathering (:gathering event)]
+      (when-not (contains? @tab (:id gathering))
+        (alter tab butler/register-gathering gathering)))
+
+    :gathering-joined
+    (alter tab join-if-free event)
+
+    :round-started
+    (let [ruid (get-in event [:round :ruid])]
+      (when-not (or (contains? @rounds ruid) (contains? @archives ruid))
+        (when-let [round (restore-round context (:round event))]
+          (alter rounds assoc ruid round))))
+
+    :move-played
+    (when-let [round (get @rounds (:ruid event))]
+      (rounds/replay-move round event))
+
+    :messages-read
+    (when-let [round (get @rounds (:ruid event))]
+      (when (contains? (:messages @(:state round)) (:player event))
+        (swap! (:state round)
+               rounds/clear-old-messages
+               (:player event)
+               (:until event))))
+
+    :round-stopped
+    (when-let [round (get @rounds (:ruid event))]
+      (swap! (:state round) rounds/mark-as-ended))
+
+    :handed-off
+    (do
+      (alter rounds #(apply dissoc % (:rounds event)))
+      (alter tab butler/remove-gatherings (:gatherings event)))
+
+    :hall-swept
+    (let [{:keys [archived expired gatherings]} event]
+      (alter rounds #(apply dissoc % (map :ruid archived)))
+      (alter archives into (map (juxt :ruid identity) archived))
+      (alter archives #(apply dissoc % expired))
+      (alter tab butler/remove-gatherings gatherings))))
+
+(defn recover!
+  "Restores the hall from the last snapshot and the segments written after
+  it. Returns the id of the next segment to write."
+  [context dir]
+  (let [snapshot (last (list-files dir "snapshot"))
+        snapshot-id (if snapshot (first snapshot) 0)
+        segments (->> (list-files dir "segment")
+                      (filter #(> (first %) snapshot-id)))]
+    (when snapshot
+      (let [forms (read-lines (second snapshot))]
+        (dosync
+         (doseq [form forms]
+           (load-form! context form)))))
+    (doseq [[_ file] segments]
+      (let [events (read-lines file)]
+        (dosync
+         (doseq [event events]
+           (replay! context event)))))
+    (inc (reduce max snapshot-id (map first segments)))))
+
+; Writer
+
+(defn- take-batch!
+  "Takes the first pending events, waiting for some."
+  [{:keys [pending ^LinkedBlockingQueue queue]} max-batch]
+  (when (empty? @pending)
+    (.take queue))
+  (.clear queue)
+  (dosync
+   (let [events @pending
+         n (min max-batch (count events))]
+     (ref-set pending (into [] (subvec events n)))
+     (subvec events 0 n))))
+
+(defn- run-writer
+  [context {:keys [config] :as journal} first-segment]
+  (let [{:keys [dir snapshot-every max-batch]} config]
+    (loop [segment (open-segment dir first-segment)
+           written 0]
+      (let [batch (take-batch! journal max-batch)
+            events (remove #{stop-event} batch)
+            written (+ written (count events))]
+        (write-batch! segment events)
+        (cond
+          (some #{stop-event} batch)
+          (close-segment! segment)
+
+          (>= written snapshot-every)
+          (let [next-segment (open-segment dir (inc (:id segment)))]
+            (close-segment! segment)
+            (try
+              (write-snapshot! context dir (:id segment))
+              (catch Exception e
+                (println (str "Failed to write a snapshot: " e))))
+            (recur next-segment 0))
+
+          :else
+          (recur segment written))))))
+
+(defn start
+  "Recovers the hall from the journal, then starts writing the journal.
+  House bots of the recovered rounds resume playing. Returns a function stopping the writer once the queued events are written."
+  [{:keys [journal rounds] :as context}]
+  (if-let [dir (get-in journal [:config :dir])]
+    (do
+      (.mkdirs (io/file dir))
+      (let [next-segment (recover! context dir)
+            thread (Thread. #(run-writer context journal next-segment)
+                            "snow-hall-journal")]
+        (doseq [round (vals @rounds)
+                :when (rounds/scheduled? round)]
+          (track-round! journal round)
+          (rounds/resume-bots! round))
+        (.start thread)
+        (fn []
+          (record! journal stop-event)
+          (.join thread))))
+    (constantly nil)))
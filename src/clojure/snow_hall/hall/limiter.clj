@@ -0,0 +1,124 @@
+(ns snow-hall.hall.limiter
+  (:require [snow-hall.metrics :as metrics])
+  (:import [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicLong LongAdder]
+           [java.util.function Function Predicate]))
+
+; Rate limits of the requests, per visitor and per route.
+; Each visitor gets a token bucket per limited route, allowing burst requests
+; at once then rate requests per second. A bucket is a single AtomicLong, the
+; time at which it is full again: taking a token pushes that time by the
+; interval between two tokens, and is refused if the bucket would hold less
+; than nothing. Buckets are updated by compare-and-set, without locks, in a
+; ConcurrentHashMap, and full buckets are forgotten by the janitor.
+; Requests are counted per route and outcome with LongAdders.
+; Visitors are identified by their credentials when valid, by their address
+; otherwise.
+
+(def moves-route "POST /rounds/:id/messages")
+
+(defn read-config
+  "Reads the configuration of the rate limits from the system properties.
+  A rate of 0 disables the limit of the route."
+  []
+  {:limits {moves-route {:rate (Long/getLong "RATE_LIMIT_MOVES" 20)
+                         :burst (Long/getLong "RATE_LIMIT_MOVES_BURST" 40)}
+            "POST /gatherings" {:rate (Long/getLong "RATE_LIMIT_GATHERINGS" 2)
+                                :burst (Long/getLong "RATE_LIMIT_GATHERINGS_BURST" 10)}
+            "POST /visitors" {:rate (Long/getLong "RATE_LIMIT_VISITORS" 1)
+                              :burst (Long/getLong "RATE_LIMIT_VISITORS_BURST" 5)}}})
+
+(defn create
+  [{:keys [limits]}]
+  {:limits (into {}
+                 (for [[route {:keys [rate burst]}] limits
+                       :when (pos? rate)]
+                   [route {:interval (quot 1000000000 rate)
+                           :burst (max 1 burst)}]))
+   :buckets (ConcurrentHashMap.)
+   :counters (ConcurrentHashMap.)})
+
+(def ^:private new-bucket
+  (reify Function
+    (apply [_ _] (AtomicLong. Long/MIN_VALUE))))
+
+(def ^:private new-counter
+  (reify Function
+    (apply [_ _] (LongAdder.))))
+
+(defn- take-token!
+  "Takes a token of a bucket at now, in nanoseconds. Returns 0 if taken,
+  otherwise the nanoseconds to wait for the next token."
+  [^AtomicLong bucket {:keys [interval burst]} now]
+  (loop []
+    (let [full-at (.get bucket)
+          next-full-at (+ (max full-at now) interval)
+          wait (- next-full-at now (* burst interval))]
+      (cond
+        (pos? wait) wait
+        (.compareAndSet bucket full-at next-full-at) 0
+        :else (recur)))))
+
+(defn- count!
+  [{:keys [^ConcurrentHashMap counters]} route outcome]
+  (.increment ^LongAdder (.computeIfAbsent counters [route outcome] new-counter)))
+
+(defn acquire!
+  "Takes a token for a request of a visitor on a route.
+  Returns 0 if the request can be served, otherwise the milliseconds to
+  wait before trying again."
+  ([limiter route visitor-key]
+   (acquire! limiter route visitor-key (System/nanoTime)))
+  ([{:keys [limits ^ConcurrentHashMap buckets] :as limiter} route visitor-key now]
+   (if-let [limit (get limits route)]
+     (let [bucket (.computeIfAbsent buckets [route visitor-key] new-bucket)
+           wait (take-token! bucket limit now)]
+       (count! limiter route (if (zero? wait) :allowed :limited))
+       (if (zero? wait) 0 (quot (+ wait 999999) 1000000)))
+     0)))
+
+(defn prune!
+  "Forgets the buckets already full again."
+  ([limiter]
+   (prune! limiter (System/nanoTime)))
+  ([{:keys [^ConcurrentHashMap buckets]} now]
+   (.removeIf (.values buckets) (reify Predicate
+                                  (test [_ bucket] (<= (.get ^AtomicLong bucket) now))))))
+
+(defn bucket-count
+  [{:keys [^ConcurrentHashMap buckets]}]
+  (.size buckets))
+
+(defn request-counts
+  "Gets the number of requests per route and outcome, :allowed or :limited."
+  [{:keys [^ConcurrentHashMap counters]}]
+  (into {}
+        (map (fn [[k ^LongAdder counter]] [k (.sum counter)]))
+        counters))
+
+(defn retry-after
+  "Gets the value of the Retry-After header, in seconds, for a wait in
+  milliseconds."
+  [wait]
+  (str (long (Math/ceil (/ wait 1000.0)))))
+
+(defn wrap-limits
+  "Middleware answering 429 to the requests over the limit of their route.
+  authenticate gets the request with the uuid of its authenticated visitor,
+  if any, under :visitor-uuid, and is only called on the limited routes."
+  [handler {:keys [limiter] :as context} authenticate]
+  (if-not limiter
+    handler
+    (fn [request]
+      (let [route (metrics/normalize-route request)
+            limited? (contains? (:limits limiter) route)
+            req (if limited? (authenticate context request) request)
+            wait (if limited?
+                   (acquire! limiter route (or (:visitor-uuid req)
+                                               (:remote-addr req)))
+                   0)]
+        (if (zero? wait)
+          (handler req)
+          {:status 429
+           :headers {"Retry-After" (retry-after wait)}
+           :body "Too many requests"})))))
@@ -0,0 +1,156 @@
+(ns snow-hall.hall.matchmaker
+  (:require [snow-hall.uuid :as uuids]
+            [snow-hall.games.game :as games]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.cluster :as cluster]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.metrics :as metrics :refer [tracked-dosync]])
+  (:import [clojure.lang PersistentQueue]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function Function]))
+
+; Queues of visitors waiting for an opponent.
+; A visitor enqueues for a game with options and gets a ticket. Visitors
+; waiting for the same game with the same options are matched as soon as
+; enough of them are queued: the one completing the group creates the
+; gathering and starts the round. Each queue is its own atom, so that
+; enqueuing never touches the refs of the hall, only matches do.
+; Queues are local to each node and are not journaled.
+
+(defn create
+  []
+  {:queues (ConcurrentHashMap.)
+   :tickets (ConcurrentHashMap.)
+   :waiting (ConcurrentHashMap.)})
+
+(defn start-round!
+  "Starts a round for the players of a complete gathering.
+  Returns the started round."
+  [{:keys [rounds scheduler metrics journal cluster]} gathering game]
+  (let [ruid (cluster/local-id cluster uuids/random-uuid)
+        round (rounds/create-round gathering game scheduler ruid)]
+    ; Tracked before the round is visible, so that its moves follow its
+    ; start, recorded as it becomes visible
+    (when (rounds/scheduled? round)
+      (journal/track-round! journal round))
+    (tracked-dosync metrics "start-round"
+     (alter rounds assoc ruid round)
+     (when (rounds/scheduled? round)
+       (journal/record! journal {:type :round-started
+                                 :round (rounds/snapshot round)})))
+    (rounds/resume-bots! round)
+    round))
+
+(defn- queue-of
+  [{:keys [^ConcurrentHashMap queues]} k]
+  (.computeIfAbsent queues
+                    k
+                    (reify Function
+                      (apply [_ _] (atom PersistentQueue/EMPTY)))))
+
+(defn- update-ticket!
+  "Settles a waiting ticket, recording when."
+  [{:keys [^ConcurrentHashMap tickets ^ConcurrentHashMap waiting]} ticket changes]
+  (let [updated (merge ticket {:settled-at (System/currentTimeMillis)} changes)]
+    (.put tickets (:id ticket) updated)
+    (.remove waiting (:visitor ticket) (:id ticket))
+    updated))
+
+(defn- create-gathering!
+  [{:keys [tab metrics journal cluster]} game group]
+  (let [{:keys [visitor user-options]} (first group)
+        gathering (tracked-dosync metrics "match"
+                   (let [gathering (-> (butler/create-gathering
+                                        {:tab @tab
+                                         :user {:uuid visitor}
+                                         :game game
+                                         :user-options user-options
+                                         :id-prefix (cluster/id-prefix cluster)
+                                         :owned? (partial cluster/owns? cluster)})
+                                       (assoc :players (mapv :visitor group)))]
+                     (alter tab butler/register-gathering gathering)
+                     (journal/record! journal {:type :gathering-created :gathering gathering})
+                     gathering))]
+    gathering))
+
+(defn- match!
+  "Creates the gathering and starts the round of a group of tickets."
+  [{:keys [matchmaker metrics] :as context} game group]
+  (try
+    (let [gathering (create-gathering! context game group)
+          round (start-round! context gathering game)
+          now (System/currentTimeMillis)]
+      (doseq [ticket group]
+        (metrics/observe-match! metrics
+                                (:game ticket)
+                                (/ (- now (:enqueued-at ticket)) 1000.0))
+        (update-ticket! matchmaker ticket {:status :matched
+                                           :gathering (:id gathering)
+                                           :round (:ruid round)
+                                           :matched-at now
+                                           :settled-at now})))
+    (catch Exception e
+      (doseq [ticket group]
+        (update-ticket! matchmaker ticket {:status :failed
+                                           :reason (str e)})))))
+
+(defn enqueue!
+  "Queues a visitor for a game with options, matching the queued visitors
+  once enough are waiting. Returns the ticket of the visitor, or nil if the
+  visitor is already waiting."
+  [{:keys [matchmaker] :as context} visitor game user-options]
+  (let [{:keys [^ConcurrentHashMap tickets ^ConcurrentHashMap waiting]} matchmaker
+        options (games/read-options game user-options)
+        player-count (games/get-player-count game options)
+        ticket {:id (str (uuids/random-uuid))
+                :visitor (:uuid visitor)
+                :game (games/get-name game)
+                :user-options user-options
+                :status :waiting
+                :enqueued-at (System/currentTimeMillis)}]
+    (when (nil? (.putIfAbsent waiting (:visitor ticket) (:id ticket)))
+      (.put tickets (:id ticket) ticket)
+      (let [queue (queue-of matchmaker [(:game ticket) options])
+            [before _] (swap-vals! queue
+                                   #(let [q (conj % ticket)]
+                                      (if (>= (count q) player-count)
+                                        PersistentQueue/EMPTY
+                                        q)))
+            group (conj before ticket)]
+        (when (>= (count group) player-count)
+          (match! context game (vec group)))
+        (.get tickets (:id ticket))))))
+
+(defn get-ticket
+  [{:keys [^ConcurrentHashMap tickets]} id]
+  (.get tickets id))
+
+(defn leave!
+  "Removes a waiting ticket from its queue.
+  Returns the cancelled ticket, or nil if it was already matched."
+  [{:keys [matchmaker]} {:keys [id game user-options] :as ticket} game-definition]
+  (let [options (games/read-options game-definition user-options)
+        queue (queue-of matchmaker [game options])
+        [before after] (swap-vals! queue
+                                   (fn [q]
+                                     (into PersistentQueue/EMPTY
+                                           (remove #(= id (:id %)) q))))]
+    (when (< (count after) (count before))
+      (update-ticket! matchmaker ticket {:status :cancelled}))))
+
+(defn waiting-counts
+  "Counts the visitors waiting per game."
+  [{:keys [^ConcurrentHashMap queues]}]
+  (reduce (fn [acc [[game-name _] queue]]
+            (update acc game-name (fnil + 0) (count @queue)))
+          {}
+          queues))
+
+(defn forget-tickets!
+  "Drops the tickets matched, cancelled or failed before the given time."
+  [{:keys [^ConcurrentHashMap tickets]} ended-before]
+  (doseq [[id ticket] tickets
+          :when (and (not= :waiting (:status ticket))
+                     (< (:settled-at ticket) ended-before))]
+    (.remove tickets id ticket)))
@@ -0,0 +1,102 @@
+(ns snow-hall.hall.passivation
+  (:require [clojure.java.io :as io]
+            [snow-hall.uuid :refer [->uuid]]
+            [snow-hall.games.round :as rounds])
+  (:import [java.io File]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function BiFunction]))
+
+; Passivation of idle rounds.
+; Scheduled rounds without move for idle-after milliseconds get their state
+; written to a file of the directory, only a placeholder staying in memory.
+; Requests on a round pin it while they run, loading its state back first,
+; so that handlers always work on the whole state. Pinned rounds and rounds
+; with moves waiting for the scheduler are never passivated. Rounds bound to
+; their own engine keep their state in memory.
+
+(defn read-config
+  "Reads the configuration of the passivation from the system properties.
+  Passivation is disabled when no directory is given."
+  []
+  {:dir (System/getProperty "PASSIVATION_DIR")
+   :idle-after (Long/getLong "ROUND_PASSIVATE_AFTER" (* 10 60 1000))})
+
+(defn create
+  "Creates the passivation of the hall, or nil if it is disabled.
+  The files left by a previous run are deleted, the journal restoring their
+  rounds."
+  [{:keys [dir] :as config}]
+  (when dir
+    (.mkdirs (io/file dir))
+    (doseq [^File file (.listFiles (io/file dir))
+            :when (re-matches #"round-.*\.edn(\.tmp)?" (.getName file))]
+      (.delete file))
+    {:config config
+     :pins (ConcurrentHashMap.)}))
+
+(defn- file-of
+  [{:keys [config]} ruid]
+  (io/file (:dir config) (str "round-" ruid ".edn")))
+
+(def ^:private add-pin
+  (reify BiFunction
+    (apply [_ n _] (inc n))))
+
+(def ^:private remove-pin
+  (reify BiFunction
+    (apply [_ _ n] (when (> n 1) (dec n)))))
+
+(defn pin!
+  "Pins a round while a request runs on it, loading back its state if it was
+  passivated."
+  [{:keys [^ConcurrentHashMap pins]} round]
+  (locking (:state round)
+    (.merge pins (:ruid round) 1 add-pin)
+    (rounds/rehydrate! round)))
+
+(defn unpin!
+  [{:keys [^ConcurrentHashMap pins]} round]
+  (.computeIfPresent pins (:ruid round) remove-pin))
+
+(defn with-pinned
+  "Calls f with the rounds pinned."
+  [passivation rounds f]
+  (if passivation
+    (do
+      (run! (partial pin! passivation) rounds)
+      (try
+        (f)
+        (finally
+          (run! (partial unpin! passivation) rounds))))
+    (f)))
+
+(defn passivate-idle!
+  "Passivates the scheduled rounds playing without move since before
+  idle-before. Returns the number of rounds passivated."
+  [{:keys [^ConcurrentHashMap pins] :as passivation} rounds idle-before]
+  (count
+   (filter (fn [round]
+             (and (rounds/scheduled? round)
+                  (not (rounds/ended? round))
+                  (< (rounds/idle-since round) idle-before)
+                  (locking (:state round)
+                    (and (not (.containsKey pins (:ruid round)))
+                         (rounds/passivate! round (file-of passivation (:ruid round)))))))
+           (vals rounds))))
+
+(defn- target-round
+  [rounds uri]
+  (when-let [[_ id] (re-find #"^/rounds/([^/]+)" uri)]
+    (try
+      (get rounds (->uuid id))
+      (catch IllegalArgumentException _ nil))))
+
+(defn wrap-rehydrate
+  "Middleware pinning the round targeted by a request while it runs."
+  [handler {:keys [rounds passivation]}]
+  (if passivation
+    (fn [req]
+      (if-let [round (target-round @rounds (:uri req))]
+        (with-pinned passivation [round] #(handler req))
+        (handler req)))
+    handler))
@@ -0,0 +1,75 @@
+(ns snow-hall.hall.ranking)
+
+; Ranking of players by rating, updated one player at a time.
+; Ratings are counted per integer bin in a Fenwick tree, giving the rank of
+; any rating in O(log bins). Players sharing a rounded rating share the same
+; rank. A sorted set of [-rating player] lists the best players in order.
+
+(def bin-count 4096)
+
+(defn create
+  []
+  {:tree (vec (repeat (inc bin-count) 0))
+   :order (sorted-set)
+   :ratings {}})
+
+(defn- bin-of
+  "Gets the index, from 1, of the bin of a rating."
+  [rating]
+  (inc (max 0 (min (dec bin-count) (Math/round (double rating))))))
+
+(defn- tree-add
+  [tree idx delta]
+  (loop [tree tree
+         i idx]
+    (if (< i (count tree))
+      (recur (update tree i + delta) (+ i (bit-and i (- i))))
+      tree)))
+
+(defn- tree-sum
+  "Sums the counts of the bins up to idx."
+  [tree idx]
+  (loop [i idx
+         total 0]
+    (if (pos? i)
+      (recur (- i (bit-and i (- i))) (+ total (nth tree i)))
+      total)))
+
+(defn- remove-player
+  [{:keys [ratings] :as ranking} player]
+  (if-let [rating (get ratings player)]
+    (-> ranking
+        (update :tree tree-add (bin-of rating) -1)
+        (update :order disj [(- rating) player])
+        (update :ratings dissoc player))
+    ranking))
+
+(defn set-rating
+  "Sets the rating of a player, adding the player if needed."
+  [ranking player rating]
+  (-> ranking
+      (remove-player player)
+      (update :tree tree-add (bin-of rating) 1)
+      (update :order conj [(- rating) player])
+      (update :ratings assoc player rating)))
+
+(defn rating
+  [ranking player]
+  (get-in ranking [:ratings player]))
+
+(defn rank-of-rating
+  "Gets the rank of a rating: one more than the number of players with a
+  better rounded rating."
+  [{:keys [tree ratings]} rating]
+  (inc (- (count ratings) (tree-sum tree (bin-of rating)))))
+
+(defn rank
+  "Gets the rank of a player, or nil for players not ranked."
+  [ranking player]
+  (some->> (rating ranking player) (rank-of-rating ranking)))
+
+(defn top
+  "Lists the n best players as `[rank player rating]`."
+  [ranking n]
+  (for [[neg-rating player] (take n (:order ranking))]
+    [(rank-of-rating ranking (- neg-rating)) player (- neg-rating)]))
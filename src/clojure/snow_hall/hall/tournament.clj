@@ -0,0 +1,357 @@
+(ns snow-hall.hall.tournament
+  (:require [clojure.string :as str]
+            [snow-hall.uuid :as uuids]
+            [snow-hall.games.game :as games]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.hall.matchmaker :as matchmaker]
+            [snow-hall.hall.ranking :as ranking])
+  (:import [clojure.lang PersistentQueue]
+           [java.util.concurrent Semaphore]))
+
+; Tournaments of two-player games between registered visitors.
+; A tournament is played by stages of matches: all the stages of a
+; round-robin are known from the start, while the stages of Swiss and single
+; elimination tournaments are paired once the previous stage is over.
+; Matches are regular rounds, started as slots free up on the node, and their
+; results are read from the end messages of the engine. A round leaving the
+; node before its end, handed off or passivated, frees its slot, its match
+; counting as played without result. Ratings are updated after each result
+; and ranked, so that standings never replay the results.
+; Tournaments are local to each node and are not journaled.
+
+(def formats #{:round-robin :swiss :elimination})
+
+(def initial-rating 1500.0)
+(def k-factor 32.0)
+
+(defn read-config
+  "Reads the configuration of the tournaments from the system properties."
+  []
+  {:max-rounds (Integer/getInteger "TOURNAMENT_MAX_ROUNDS" 16)})
+
+(defn create
+  [{:keys [max-rounds]}]
+  {:store (atom (sorted-map))
+   :slots (Semaphore. max-rounds)})
+
+; Pairings
+
+(defn round-robin-stages
+  "Pairs every player with every other one, by the circle method.
+  With an odd number of players, one of them rests at each stage."
+  [players]
+  (let [seats (vec (cond-> players (odd? (count players)) (conj nil)))
+        n (count seats)]
+    (for [stage (range (dec n))
+          :let [circle (vec (cons (first seats)
+                                  (take (dec n) (drop stage (cycle (rest seats))))))]]
+      (for [i (range (quot n 2))
+            :let [a (nth circle i)
+                  b (nth circle (- n 1 i))]
+            :when (and a b)]
+        [a b]))))
+
+(defn- seed-order
+  "Orders the seeds of a bracket so that the best seeds meet last."
+  [size]
+  (loop [order [1]]
+    (if (< (count order) size)
+      (let [n (* 2 (count order))]
+        (recur (vec (mapcat (fn [seed] [seed (- (inc n) seed)]) order))))
+      order)))
+
+(defn create-bracket
+  "Places the players, best seed first, in a bracket whose size is a power
+  of two. Empty places are byes."
+  [players]
+  (let [size (loop [size 1] (if (< size (count players)) (recur (* 2 size)) size))
+        players (vec players)]
+    (mapv #(get players (dec %)) (seed-order size))))
+
+(defn- standing-order
+  [{:keys [players scores ranking]}]
+  (sort-by (fn [player]
+             [(- (get scores player 0)) (- (ranking/rating ranking player))])
+           players))
+
+(defn swiss-pairs
+  "Pairs the players of similar scores, avoiding rematches when possible.
+  Returns `[pairs bye]`, bye being the player left out, if any."
+  [{:keys [played] :as tournament}]
+  (loop [left (standing-order tournament)
+         pairs []]
+    (if (< (count left) 2)
+      [pairs (first left)]
+      (let [[a & others] left
+            b (or (first (remove #(contains? played #{a %}) others))
+                  (first others))]
+        (recur (remove #(= b %) others) (conj pairs [a b]))))))
+
+(defn default-stages
+  "Gets the number of Swiss stages needed to tell a winner apart."
+  [player-count]
+  (loop [stages 0 size 1]
+    (if (< size player-count) (recur (inc stages) (* 2 size)) (max 1 stages))))
+
+; Results
+
+(defn- expected-score
+  [rating other]
+  (/ 1.0 (+ 1.0 (Math/pow 10.0 (/ (- other rating) 400.0)))))
+
+(defn rate
+  "Updates the ratings of the two players of a match, from the score of the
+  first one (1, 0.5 or 0)."
+  [rank [a b] score]
+  (let [ra (ranking/rating rank a)
+        rb (ranking/rating rank b)
+        delta (* k-factor (- score (expected-score ra rb)))]
+    (-> rank
+        (ranking/set-rating a (+ ra delta))
+        (ranking/set-rating b (- rb delta)))))
+
+(defn read-outcome
+  "Reads the scores of the players of an ended round from its end messages.
+  Returns nil when the round ended without result."
+  [round]
+  (let [[a b] (map #(str (:content (rounds/read-last-state round %)))
+                   (:players round))]
+    (cond
+      (str/starts-with? a "WIN") [1 0]
+      (str/starts-with? b "WIN") [0 1]
+      (and (str/starts-with? a "DRAW") (str/starts-with? b "DRAW")) [0.5 0.5])))
+
+(defn- winner-of
+  "Gets the player going through an elimination match. A draw or a match
+  without result lets the best rated player through."
+  [rank [a b] outcome]
+  (cond
+    (= [1 0] outcome) a
+    (= [0 1] outcome) b
+    (>= (ranking/rating rank a) (ranking/rating rank b)) a
+    :else b))
+
+(defn- score-match
+  [tournament {[a b :as players] :players :as match} outcome]
+  (cond-> (-> tournament
+              (update :results conj (assoc match :scores outcome))
+              (update :played conj (set players)))
+    (= :elimination (:format tournament))
+    (update :winners assoc (:slot match) (winner-of (:ranking tournament)
+                                                    players
+                                                    outcome))
+    outcome
+    (-> (update :ranking rate players (first outcome))
+        (update-in [:scores a] (fnil + 0) (first outcome))
+        (update-in [:scores b] (fnil + 0) (second outcome)))))
+
+; Stages
+
+(defn- queue-matches
+  [tournament pairs extra]
+  (-> tournament
+      (update :stage inc)
+      (update :pending into (map #(merge {:stage (inc (:stage tournament))
+                                          :players %}
+                                         extra)
+                                 pairs))))
+
+(defn- finish
+  [tournament]
+  (assoc tournament
+         :status :finished
+         :ended-at (System/currentTimeMillis)))
+
+(defn- next-swiss-stage
+  [{:keys [stage stages] :as tournament}]
+  (if (< stage stages)
+    (let [[pairs bye] (swiss-pairs tournament)]
+      (cond-> (queue-matches tournament pairs {})
+        bye (update-in [:scores bye] (fnil + 0) 1)))
+    (finish tournament)))
+
+(defn- next-elimination-stage
+  [{:keys [bracket winners] :as tournament}]
+  (let [bracket (if (seq winners)
+                  (mapv winners (range (quot (count bracket) 2)))
+                  bracket)]
+    (if (= 1 (count bracket))
+      (-> tournament
+          (assoc :bracket bracket :winners {} :champion (first bracket))
+          (finish))
+      (let [slots (map-indexed vector (partition 2 bracket))
+            byes (for [[slot [a b]] slots :when (not (and a b))] [slot (or a b)])
+            tournament (-> tournament
+                           (assoc :bracket bracket :winners (into {} byes))
+                           (update :stage inc))]
+        (update tournament
+                :pending
+                into
+                (for [[slot [a b]] slots :when (and a b)]
+                  {:stage (:stage tournament) :slot slot :players [a b]}))))))
+
+(defn- advance
+  "Pairs the next stage once all the matches of the current one are over."
+  [tournament]
+  (if (or (= :finished (:status tournament))
+          (seq (:pending tournament))
+          (seq (:running tournament)))
+    tournament
+    (recur (case (:format tournament)
+             :round-robin (finish tournament)
+             :swiss (next-swiss-stage tournament)
+             :elimination (next-elimination-stage tournament)))))
+
+(defn create-tournament
+  "Creates a tournament of a game between players, with its first stage."
+  [{:keys [game options format players stages]}]
+  {:pre [(contains? formats format) (>= (count players) 2)]}
+  (let [base {:id (str (uuids/random-uuid))
+              :game (games/get-name game)
+              :options options
+              :format format
+              :players (vec players)
+              :status :running
+              :created-at (System/currentTimeMillis)
+              :stage 0
+              :stages (case format
+                        :round-robin (- (count players) (if (odd? (count players)) 0 1))
+                        :swiss (or stages (default-stages (count players)))
+                        :elimination (default-stages (count players)))
+              :pending PersistentQueue/EMPTY
+              :running {}
+              :results []
+              :scores (zipmap players (repeat 0))
+              :played #{}
+              :ranking (reduce #(ranking/set-rating %1 %2 initial-rating)
+                               (ranking/create)
+                               players)}]
+    (case format
+      :round-robin (reduce (fn [t pairs] (queue-matches t pairs {}))
+                           base
+                           (round-robin-stages players))
+      :swiss (advance base)
+      :elimination (advance (assoc base :bracket (create-bracket players) :winners {})))))
+
+(defn record-result
+  "Records the outcome of a running match and pairs the next stage if it is
+  the last one of its stage."
+  [tournament ruid outcome]
+  (if-let [match (get-in tournament [:running ruid])]
+    (-> tournament
+        (update :running dissoc ruid)
+        (score-match (assoc match :round ruid) outcome)
+        (advance))
+    tournament))
+
+; Scheduling
+
+(declare dispatch!)
+
+(defn- take-match!
+  [tournament]
+  (let [[before _] (swap-vals! tournament
+                               #(cond-> % (seq (:pending %)) (update :pending pop)))]
+    (peek (:pending before))))
+
+(defn- end-match!
+  [{:keys [tournaments] :as context} tournament ruid outcome]
+  (let [[before _] (swap-vals! tournament record-result ruid outcome)]
+    (when (contains? (:running before) ruid)
+      (.release ^Semaphore (:slots tournaments))
+      (future (dispatch! context)))))
+
+(defn- watch-round!
+  "Ends a match once its round ends, or once the round leaves the registry
+  of the node, handed off or passivated, without result."
+  [{:keys [rounds] :as context} tournament {:keys [ruid] :as round}]
+  (let [k [::tournament ruid]
+        end! (fn []
+               (remove-watch (:state round) k)
+               (remove-watch rounds k)
+               (end-match! context
+                           tournament
+                           ruid
+                           (when (rounds/ended? round) (read-outcome round))))]
+    (add-watch (:state round)
+               k
+               (fn [_ _ _ next-state]
+                 (when (= :ended (:status next-state))
+                   (end!))))
+    (add-watch rounds
+               k
+               (fn [_ _ before after]
+                 (when (and (contains? before ruid)
+                            (not (contains? after ruid)))
+                   (end!))))
+    ; The round may have ended or left before the watches were added
+    (when (or (rounds/ended? round)
+              (not (contains? @rounds ruid)))
+      (end!))))
+
+(defn- start-match!
+  [{:keys [games] :as context} tournament match]
+  (let [{:keys [game options]} @tournament
+        definition (get @games game)
+        gathering {:game game
+                   :players (:players match)
+                   :options (games/read-options definition options)}
+        round (matchmaker/start-round! context gathering definition)]
+    (swap! tournament assoc-in [:running (:ruid round)] match)
+    (watch-round! context tournament round)))
+
+(defn dispatch!
+  "Starts the pending matches of the tournaments while slots are free."
+  [{:keys [tournaments] :as context}]
+  (let [{:keys [store ^Semaphore slots]} tournaments]
+    (doseq [tournament (vals @store)]
+      (loop []
+        (when (.tryAcquire slots)
+          (if-let [match (take-match! tournament)]
+            (do
+              (try
+                (start-match! context tournament match)
+                (catch Exception e
+                  (.release slots)
+                  (swap! tournament #(-> %
+                                         (score-match (assoc match :error (str e)) nil)
+                                         (advance)))))
+              (recur))
+            (.release slots)))))))
+
+(defn start!
+  "Registers a tournament and starts its first matches.
+  Returns the atom of the tournament."
+  [{:keys [tournaments] :as context} params]
+  (let [tournament (atom (create-tournament params))]
+    (swap! (:store tournaments) assoc (:id @tournament) tournament)
+    (dispatch! context)
+    tournament))
+
+(defn get-tournament
+  [{:keys [store]} id]
+  (get @store id))
+
+(defn standings
+  "Lists the n best players as `[rank player rating score]`."
+  [{:keys [scores] :as tournament} n]
+  (for [[rank player rating] (ranking/top (:ranking tournament) n)]
+    [rank player rating (get scores player 0)]))
+
+(defn standing
+  "Gets the standing of a player, or nil for players of other tournaments."
+  [{rank :ranking :keys [scores]} player]
+  (when-let [rating (ranking/rating rank player)]
+    [(ranking/rank-of-rating rank rating) player rating (get scores player 0)]))
+
+(defn forget-tournaments!
+  "Drops the tournaments finished before the given time."
+  [{:keys [store]} ended-before]
+  (swap! store
+         (fn [tournaments]
+           (reduce-kv (fn [acc id tournament]
+                        (if (< (:ended-at @tournament Long/MAX_VALUE) ended-before)
+                          (dissoc acc id)
+                          acc))
+                      tournaments
+                      tournaments))))
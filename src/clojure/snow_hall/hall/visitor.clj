@@ -17,10 +17,14 @@
 (def validate-fn (create-validation ::visitors))
 
 (defn create
-  "Creates a new user, with only a UUID and its secret token"
-  []
-  {:uuid (str (uuids/random-uuid))
-   :token (str (uuids/random-uuid))})
+  "Creates a new user, with only a UUID and its secret token.
+  The token is issued by issue-token from the UUID, random by default."
+  ([]
+   (create (fn [_] (str (uuids/random-uuid)))))
+  ([issue-token]
+   (let [uuid (str (uuids/random-uuid))]
+     {:uuid uuid
+      :token (issue-token uuid)})))
 
 (defn on
   [registry uuid action]
@@ -0,0 +1,235 @@
+(ns snow-hall.metrics
+  (:require [clojure.string :as str]
+            [clojure.core.async.impl.channels])
+  (:import [clojure.core.async.impl.channels ManyToManyChannel]
+           [java.util LinkedList]))
+
+; Metrics collected by the hall while serving requests.
+; Gauges describing the hall itself are read when rendered, only counters and
+; histograms are kept in the registry.
+
+(def latency-buckets
+  "Upper bounds, in seconds, of the buckets of the latency histograms."
+  [0.001 0.005 0.01 0.025 0.05 0.1 0.25 0.5 1 2.5 5 10])
+
+(def match-buckets
+  "Upper bounds, in seconds, of the buckets of the time waited for a match."
+  [0.1 0.5 1 5 10 30 60 120 300 600])
+
+(defn create-registry
+  []
+  (atom {:latencies {}
+         :transactions {}
+         :matches {}}))
+
+(defn- observe
+  [histogram bounds value]
+  (let [idx (count (take-while #(< % value) bounds))]
+    (-> (or histogram {:bounds bounds
+                       :buckets (vec (repeat (count bounds) 0))
+                       :sum 0.0
+                       :count 0})
+        (update :buckets #(if (< idx (count %)) (update % idx inc) %))
+        (update :sum + value)
+        (update :count inc))))
+
+(defn observe-latency!
+  "Records the time, in seconds, spent to answer a request on a route."
+  [registry route seconds]
+  (swap! registry update-in [:latencies route] observe latency-buckets seconds))
+
+(defn observe-match!
+  "Records the time, in seconds, a visitor waited for a match in a game."
+  [registry game-name seconds]
+  (when registry
+    (swap! registry update-in [:matches game-name] observe match-buckets seconds)))
+
+(defn record-attempt!
+  [registry tx-name]
+  (when registry
+    (swap! registry update-in [:transactions tx-name :attempts] (fnil inc 0))))
+
+(defn record-run!
+  [registry tx-name]
+  (when registry
+    (swap! registry update-in [:transactions tx-name :runs] (fnil inc 0))))
+
+(defmacro tracked-dosync
+  "Runs body in a transaction like dosync, counting its attempts in the
+  registry. Every attempt beyond the first of a run is a retry of the STM."
+  [registry tx-name & body]
+  `(let [registry# ~registry
+         tx-name# ~tx-name]
+     (try
+       (dosync
+        (record-attempt! registry# tx-name#)
+        ~@body)
+       (finally
+         (record-run! registry# tx-name#)))))
+
+(defn- id-segment?
+  [segment]
+  (boolean
+   (or (re-matches #"\d+" segment)
+       (re-matches #"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}"
+                   segment))))
+
+(defn normalize-route
+  "Gets the route of a request, replacing ids in the path by :id so that all
+  rounds or gatherings share the same route."
+  [{:keys [request-method uri]}]
+  (let [path (->> (str/split (or uri "/") #"/")
+                  (map #(if (id-segment? %) ":id" %))
+                  (str/join "/"))]
+    (str (str/upper-case (name (or request-method :get)))
+         " "
+         (if (str/blank? path) "/" path))))
+
+(def unmatched-route
+  "Label of the requests matching no route."
+  "other")
+
+(defn- decode-segment
+  [segment]
+  (java.net.URLDecoder/decode (str/replace segment "+" "%2B") "UTF-8"))
+
+(defn- route-template
+  "Gets the template of the route matched by a request, with the values of
+  the parameters of its contexts replaced by their names."
+  [{:keys [request-method context route-params] :as req}]
+  (let [[_ path] (:compojure/route req)
+        names (into {} (map (fn [[k v]] [v (str k)])) route-params)
+        prefix (->> (str/split (or context "") #"/")
+                    (map #(get names (decode-segment %) %))
+                    (str/join "/"))]
+    (str (str/upper-case (name (or request-method :get)))
+         " "
+         (let [template (str prefix path)]
+           (if (str/blank? template) "/" template)))))
+
+(defn wrap-route-label
+  "Route middleware, applied with compojure's wrap-routes, telling
+  wrap-latency the template of the matched route."
+  [handler]
+  (fn [req]
+    (when-let [label (::route req)]
+      (vreset! label (route-template req)))
+    (handler req)))
+
+(defn wrap-latency
+  "Middleware recording the latency of each request per route, labelled by
+  the template of the route, as given by wrap-route-label, or as
+  unmatched-route for the requests matching none.
+  Asynchronous responses are timed until the handler returns."
+  [handler registry]
+  (fn [req]
+    (let [start (System/nanoTime)
+          label (volatile! unmatched-route)]
+      (try
+        (handler (assoc req ::route label))
+        (finally
+          (observe-latency! registry
+                            @label
+                            (/ (- (System/nanoTime) start) 1e9)))))))
+
+(defn buffered-count
+  "Gets the number of values waiting in the buffer of a channel."
+  [c]
+  (if-let [buf (and (instance? ManyToManyChannel c)
+                    (.-buf ^ManyToManyChannel c))]
+    (count buf)
+    0))
+
+(defn pending-puts
+  "Gets the number of puts parked on a channel, waiting for room."
+  [c]
+  (if (instance? ManyToManyChannel c)
+    (.size ^LinkedList (.-puts ^ManyToManyChannel c))
+    0))
+
+; Rendering to the Prometheus text format
+
+(defn- escape-label
+  [value]
+  (-> (str value)
+      (str/replace "\\" "\\\\")
+      (str/replace "\"" "\\\"")
+      (str/replace "\n" "\\n")))
+
+(defn- format-labels
+  [labels]
+  (if (empty? labels)
+    ""
+    (str "{"
+         (->> labels
+              (map (fn [[k v]] (str (name k) "=\"" (escape-label v) "\"")))
+              (str/join ","))
+         "}")))
+
+(defn- format-value
+  [value]
+  (if (integer? value) (str value) (str (double value))))
+
+(defn- format-family
+  [{metric-name :name :keys [type help samples]}]
+  (concat
+   [(str "# HELP " metric-name " " help)
+    (str "# TYPE " metric-name " " (name type))]
+   (for [[labels value] samples]
+     (str metric-name (format-labels labels) " " (format-value value)))))
+
+(defn- format-histogram
+  [{metric-name :name :keys [help samples]}]
+  (concat
+   [(str "# HELP " metric-name " " help)
+    (str "# TYPE " metric-name " histogram")]
+   (mapcat
+    (fn [[labels {:keys [bounds buckets sum count]}]]
+      (concat
+       (map (fn [bound total]
+              (str metric-name "_bucket"
+                   (format-labels (assoc labels :le bound))
+                   " " total))
+            (concat (map format-value bounds) ["+Inf"])
+            (concat (reductions + buckets) [count]))
+       [(str metric-name "_sum" (format-labels labels) " " (format-value sum))
+        (str metric-name "_count" (format-labels labels) " " count)]))
+    samples)))
+
+(defn registry-families
+  "Gets the metric families of the counters and histograms of the registry."
+  [registry]
+  (let [{:keys [latencies transactions matches]} @registry]
+    [{:name "snow_hall_request_duration_seconds"
+      :type :histogram
+      :help "Latency of the requests per route"
+      :samples (for [[route histogram] (sort-by key latencies)]
+                 [{:route route} histogram])}
+     {:name "snow_hall_match_wait_seconds"
+      :type :histogram
+      :help "Time visitors waited in the matchmaking queues per game"
+      :samples (for [[game-name histogram] (sort-by key matches)]
+                 [{:game game-name} histogram])}
+     {:name "snow_hall_stm_transactions_total"
+      :type :counter
+      :help "Transactions run on the hall refs"
+      :samples (for [[tx-name {:keys [runs]}] (sort-by key transactions)]
+                 [{:transaction tx-name} (or runs 0)])}
+     {:name "snow_hall_stm_retries_total"
+      :type :counter
+      :help "Retries of the transactions on the hall refs"
+      :samples (for [[tx-name {:keys [attempts runs]}] (sort-by key transactions)]
+                 [{:transaction tx-name}
+                  (max 0 (- (or attempts 0) (or runs 0)))])}]))
+
+(defn render
+  "Renders metric families to the Prometheus text format.
+  Each family is a map of :name, :type, :help and :samples, a sequence of
+  [labels value]."
+  [families]
+  (str (->> families
+            (mapcat #(if (= :histogram (:type %))
+                       (format-histogram %)
+                       (format-family %)))
+            (str/join "\n"))
+       "\n"))
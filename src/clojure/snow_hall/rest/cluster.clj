@@ -0,0 +1,83 @@
+(ns snow-hall.rest.cluster
+  (:require [clojure.edn :as edn]
+            [compojure.core :as http]
+            [snow-hall.hall.cluster :as cluster]
+            [snow-hall.hall.credentials :as credentials]
+            [snow-hall.hall.journal :as journal]))
+
+(defn get-cluster-request
+  [{:keys [cluster]} _req]
+  (let [{:keys [self nodes]} @cluster]
+    {:status 200
+     :body {:self self
+            :nodes (sort nodes)}}))
+
+(defn- public-visitors
+  "Gets the visitors of the hall without their tokens."
+  [visitors]
+  (into {}
+        (map (fn [[uuid visitor]] [uuid (dissoc visitor :token)]))
+        visitors))
+
+(defn join-request
+  "Adds a configured node to the cluster, answering with the visitors of the
+  hall, without their tokens, and the revoked tokens. The resources now owned
+  by the new node are handed off in background."
+  [{:keys [cluster visitors credentials] :as context} req]
+  (let [url (get-in req [:body "url"])]
+    (if-not (cluster/member? cluster url)
+      {:status 403
+       :body "Unknown node"}
+      (do
+        (cluster/set-nodes! cluster (conj (:nodes @cluster) url))
+        (future (cluster/rebalance! context))
+        {:status 200
+         :headers {"Content-Type" "application/edn"}
+         :body (pr-str {:visitors (public-visitors @visitors)
+                        :revoked (some-> credentials credentials/revocations)})}))))
+
+(defn leave-request
+  [{:keys [cluster]} req]
+  (let [url (get-in req [:body "url"])]
+    (if-not (cluster/member? cluster url)
+      {:status 403
+       :body "Unknown node"}
+      (do
+        (cluster/set-nodes! cluster (disj (:nodes @cluster) url))
+        {:status 200
+         :body "Ok"}))))
+
+(defn share-visitor-request
+  [{:keys [visitors journal credentials]} uuid req]
+  (let [{:strs [token nickname]} (:body req)
+        visitor (cond-> {:uuid uuid :token token}
+                  nickname (assoc :nickname nickname))
+        previous (get @visitors uuid)]
+    ; A new token of a known visitor revokes the previous ones
+    (when (and credentials previous (not= token (:token previous)))
+      (credentials/revoke-before! credentials uuid token))
+    (dosync
+     (alter visitors assoc uuid visitor)
+     (journal/record! journal {:type :visitor-registered :visitor visitor})
+     (when nickname
+       (journal/record! journal {:type :nickname-changed
+                                 :uuid uuid
+                                 :nickname nickname})))
+    {:status 200
+     :body "Ok"}))
+
+(defn handoff-request
+  [context req]
+  (cluster/receive! context (edn/read-string (slurp (:body req))))
+  {:status 200
+   :body "Ok"})
+
+(defn create-routes
+  [{:keys [cluster] :as context}]
+  (when cluster
+    [(http/context "/cluster" []
+       (http/GET "/" [] (partial get-cluster-request context))
+       (http/POST "/nodes" [] (partial join-request context))
+       (http/POST "/leave" [] (partial leave-request context))
+       (http/PUT "/visitors/:uuid" [uuid] (partial share-visitor-request context uuid))
+       (http/POST "/handoff" [] (partial handoff-request context)))]))
@@ -2,9 +2,15 @@
   (:require [compojure.core :as http]
             [clojure.string :as str]
             [snow-hall.uuid :refer [->uuid]]
+            [snow-hall.games.game :as games]
             [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.credentials :as credentials]
             [snow-hall.hall.visitor :as visitor]
-            [snow-hall.rest.core :refer [resolved rejected with]]))
+            [snow-hall.hall.cluster :as cluster]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.metrics :refer [tracked-dosync]]
+            [snow-hall.rest.core :refer [resolved resolved? rejected with]]
+            [snow-hall.rest.pagination :as pages]))
 
 (defn format-gathering
   [gathering]
@@ -22,14 +28,34 @@
                {:uuid uuid :token token})
       :else nil)))
 
+(defn- check-visitor
+  [{:keys [visitors credentials]} req]
+  (let [{:keys [uuid token]} (extract-user-info req)]
+    (if (and credentials (credentials/signed? token))
+      (if (credentials/verify credentials uuid token)
+        (resolved {:uuid uuid})
+        (rejected {:status 403}))
+      (let [v (get @visitors uuid)]
+        (cond
+          (nil? v) (rejected {:status 401})
+          (visitor/validate-token v token) (resolved v)
+          :else (rejected {:status 403}))))))
+
 (defn with-visitor
-  [visitors req & _]
-  (let [{:keys [uuid token]} (extract-user-info req)
-        v (visitors uuid)]
-    (cond
-      (nil? v) (rejected {:status 401})
-      (visitor/validate-token v token) (resolved v)
-      :else (rejected {:status 403}))))
+  "Authenticates the visitor of a request, unless authenticate already did.
+  Signed tokens are checked on their own, other tokens against the registry."
+  [context req & _]
+  (or (::authentication req)
+      (check-visitor context req)))
+
+(defn authenticate
+  "Authenticates the visitor of a request, keeping the outcome on the
+  request for with-visitor, and the uuid of the visitor, if authenticated,
+  under :visitor-uuid."
+  [context req]
+  (let [[_ v :as r] (check-visitor context req)]
+    (cond-> (assoc req ::authentication r)
+      (resolved? r) (assoc :visitor-uuid (str (:uuid v))))))
 
 ; TODO edit to have a getter instead of always reading it from the req
 (defn with-game
@@ -45,35 +71,106 @@
     (rejected {:status 404})))
 
 (defn with-options
-  [req & _] 
-  (resolved (or (get-in req [:body "options"]) {})))
+  "Reads the options of the gathering, rejecting those invalid for the game."
+  [req {:keys [game]} & _]
+  (let [options (or (get-in req [:body "options"]) {})]
+    (try
+      (games/read-options game options)
+      (resolved options)
+      (catch IllegalArgumentException e
+        (rejected {:status 400
+                   :body (.getMessage e)})))))
+
+(defn with-house-bot
+  "Reads if the house bot should take a seat, rejecting games without bot."
+  [req {:keys [game]} & _]
+  (let [house-bot? (boolean (get-in req [:body "house-bot"]))]
+    (if (and house-bot? (not (games/house-bot? game)))
+      (rejected {:status 400
+                 :body (str "No house bot for " (games/get-name game))})
+      (resolved house-bot?))))
+
+(defn- gathering-filter
+  [req]
+  (let [{:strs [game status]} (:query-params req)]
+    (fn [gathering]
+      (and (or (nil? game) (= game (:game gathering)))
+           (or (nil? status)
+               (= status (if (some :token (:players gathering)) "open" "full")))))))
+
+(defn with-seats
+  "Reads the number of free seats asked for, only for the open gatherings
+  of a game."
+  [req & _]
+  (let [{:strs [game status seats]} (:query-params req)]
+    (cond
+      (nil? seats) (resolved nil)
+      (not (and game (= "open" status))) (rejected {:status 400
+                                                    :body "seats needs a game and the open status"})
+      :else (try
+              (resolved (Integer/parseInt seats))
+              (catch NumberFormatException _
+                (rejected {:status 400
+                           :body "Invalid seats"}))))))
+
+(defn- select-page
+  "Selects a page of gatherings. The open gatherings of a game are read from
+  the lobby index, other listings scan the tab."
+  [tab req page seats]
+  (let [{:strs [game status]} (:query-params req)]
+    (if (and game (= "open" status))
+      (pages/page-keys tab
+                       (if seats
+                         (butler/open-gatherings tab game seats)
+                         (butler/open-gatherings tab game))
+                       page)
+      (pages/page tab page (gathering-filter req)))))
 
 (defn list-gathering-request
-  [{:keys [tab]} _req]
-  {:status 200
-   :headers {"Content-Type" "application/json"}
-   :body (map format-gathering (vals @tab))})
+  "Lists a page of the gatherings, optionally of a game or with a status
+  (open or full). Open gatherings of a game can be filtered by their number
+  of free seats."
+  [{:keys [tab]} req]
+  (with
+   {:page (partial pages/with-page-request req identity)
+    :seats (partial with-seats req)}
+   (fn [{:keys [page seats]}]
+     (pages/stream-page req
+                        (select-page @tab req page seats)
+                        format-gathering))))
 
 (defn do-create-gathering
-  [tab visitor game options]
+  [tab visitor game options cluster house-bot?]
   (let [new-gathering (butler/create-gathering
                        {:tab @tab
                         :user visitor
                         :game game
-                        :user-options options})]
+                        :user-options options
+                        :id-prefix (cluster/id-prefix cluster)
+                        :owned? (partial cluster/owns? cluster)
+                        :house-bot? house-bot?})]
     (alter tab butler/register-gathering new-gathering)
     {:status 200
      :body new-gathering}))
 
 (defn create-gathering-request
-  [{:keys [visitors tab games]} req]
+  [{:keys [tab games metrics journal] :as context} req]
   (with
-   {:visitor (partial with-visitor @visitors req)
+   {:visitor (partial with-visitor context req)
     :game (partial with-game @games req)
-    :options (partial with-options req)}
-   (fn [{:keys [visitor game options]}]
-     (dosync 
-      (do-create-gathering tab visitor game options)))))
+    :options (partial with-options req)
+    :house-bot (partial with-house-bot req)}
+   (fn [{:keys [visitor game options house-bot]}]
+     (tracked-dosync metrics "create-gathering"
+      (let [response (do-create-gathering tab
+                                          visitor
+                                          game
+                                          options
+                                          (:cluster context)
+                                          house-bot)]
+        (journal/record! journal {:type :gathering-created
+                                  :gathering (:body response)})
+        response)))))
 
 (defn get-invit-list
   [gathering visitor]
@@ -86,9 +183,9 @@
       {:status 403})))
 
 (defn list-invit-request
-  [{:keys [visitors tab]} guid req]
+  [{:keys [tab] :as context} guid req]
   (with
-   {:visitor (partial with-visitor @visitors req)
+   {:visitor (partial with-visitor context req)
     :gathering (partial with-gathering @tab (constantly guid))}
    (fn [{:keys [visitor gathering]}]
      (get-invit-list gathering visitor))))
@@ -102,14 +199,19 @@
   {:status 200})
 
 (defn join-gathering-request
-  [{:keys [visitors tab]} guid req]
+  [{:keys [tab metrics journal] :as context} guid req]
   (with
-   {:visitor (partial with-visitor @visitors req)
+   {:visitor (partial with-visitor context req)
     :gathering (partial with-gathering @tab (constantly guid))}
    (fn [{:keys [visitor gathering]}]
      (let [token (->uuid (get-in req [:body "token"]))]
-       (dosync 
-        (do-join-gathering tab gathering visitor token))))))
+       (tracked-dosync metrics "join-gathering"
+        (let [response (do-join-gathering tab gathering visitor token)]
+          (journal/record! journal {:type :gathering-joined
+                                    :id (:id gathering)
+                                    :visitor (:uuid visitor)
+                                    :token token})
+          response))))))
 
 (defn create-routes
   [context]
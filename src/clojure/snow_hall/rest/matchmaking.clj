@@ -0,0 +1,62 @@
+(ns snow-hall.rest.matchmaking
+  (:require [compojure.core :as http]
+            [snow-hall.hall.matchmaker :as matchmaker]
+            [snow-hall.rest.core :refer [resolved rejected with]]
+            [snow-hall.rest.gatherings :refer [with-visitor with-game with-options]]))
+
+(defn format-ticket
+  [ticket]
+  (dissoc ticket :user-options))
+
+(defn with-ticket
+  "Resolves a ticket of the visitor."
+  [matchmaker id {:keys [visitor]} & _]
+  (let [ticket (matchmaker/get-ticket matchmaker id)]
+    (if (and ticket (= (:visitor ticket) (:uuid visitor)))
+      (resolved ticket)
+      (rejected {:status 404
+                 :body (str "No ticket " id)}))))
+
+(defn enqueue-request
+  [{:keys [games] :as context} req]
+  (with
+   {:visitor (partial with-visitor context req)
+    :game (partial with-game @games req)
+    :options (partial with-options req)}
+   (fn [{:keys [visitor game options]}]
+     (if-let [ticket (matchmaker/enqueue! context visitor game options)]
+       {:status 200
+        :body (format-ticket ticket)}
+       {:status 409
+        :body "Already waiting for a match"}))))
+
+(defn get-ticket-request
+  [{:keys [matchmaker] :as context} id req]
+  (with
+   {:visitor (partial with-visitor context req)
+    :ticket (partial with-ticket matchmaker id)}
+   (fn [{:keys [ticket]}]
+     {:status 200
+      :body (format-ticket ticket)})))
+
+(defn leave-request
+  [{:keys [games matchmaker] :as context} id req]
+  (with
+   {:visitor (partial with-visitor context req)
+    :ticket (partial with-ticket matchmaker id)}
+   (fn [{:keys [ticket]}]
+     (if-let [cancelled (matchmaker/leave! context
+                                           ticket
+                                           (get @games (:game ticket)))]
+       {:status 200
+        :body (format-ticket cancelled)}
+       {:status 409
+        :body "Ticket no longer waiting"}))))
+
+(defn create-routes
+  [context]
+  [(http/context "/matchmaking" []
+     (http/POST "/" [] (partial enqueue-request context))
+     (http/context "/:id" [id]
+       (http/GET "/" [] (partial get-ticket-request context id))
+       (http/DELETE "/" [] (partial leave-request context id))))])
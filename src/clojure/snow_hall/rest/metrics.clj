@@ -0,0 +1,167 @@
+(ns snow-hall.rest.metrics
+  (:require [compojure.core :as http]
+            [snow-hall.metrics :as metrics]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.hall.limiter :as limiter]
+            [snow-hall.hall.matchmaker :as matchmaker])
+  (:import [clojure.lang Agent]))
+
+(defn- gauge
+  [metric-name help samples]
+  {:name metric-name
+   :type :gauge
+   :help help
+   :samples samples})
+
+(defn- counter
+  [metric-name help samples]
+  (assoc (gauge metric-name help samples) :type :counter))
+
+(defn- count-by
+  [f coll]
+  (sort-by key (frequencies (map f coll))))
+
+(defn- round-channels
+  [round]
+  (mapcat (juxt :in :out) (game/ios (:engine round))))
+
+(defn mailbox-depth
+  "Gets the number of moves of a round waiting for its engine."
+  [round]
+  (if (rounds/scheduled? round)
+    (reduce + @(get-in round [:engine :pending]))
+    (->> (game/ios (:engine round))
+         (map (comp metrics/buffered-count :in))
+         (reduce +))))
+
+(defn- agent-queue
+  [round]
+  (let [state (:state round)]
+    (when (instance? Agent state)
+      (.getQueueCount ^Agent state))))
+
+(defn- round-queues
+  "Gets the moves and agent actions waiting in each round."
+  [live]
+  (for [round live]
+    {:round (:ruid round)
+     :game (:game round)
+     :mailbox-depth (mailbox-depth round)
+     :agent-queue (agent-queue round)}))
+
+(defn- per-game
+  "Aggregates a value of the round queues per game, skipping nil values."
+  [queues k f]
+  (for [[game-name values] (sort-by key (group-by :game queues))
+        :let [values (keep k values)]
+        :when (seq values)]
+    [{:game game-name} (reduce f values)]))
+
+(defn- round-families
+  [rounds archives]
+  (let [live (vals rounds)
+        queues (round-queues live)]
+    [(gauge "snow_hall_rounds"
+            "Rounds in the hall per game and status"
+            (for [[[game-name status] c]
+                  (count-by (juxt :game #(cond
+                                            (rounds/ended? %) "ended"
+                                            (rounds/passivated? %) "passivated"
+                                            :else "active"))
+                            live)]
+              [{:game game-name :status status} c]))
+     (gauge "snow_hall_archived_rounds"
+            "Archived rounds per game and outcome"
+            (for [[[game-name outcome] c]
+                  (count-by (juxt :game (comp name :outcome)) (vals archives))]
+              [{:game game-name :outcome outcome} c]))
+     (gauge "snow_hall_round_mailbox_depth"
+            "Moves waiting for the engines of the rounds per game"
+            (per-game queues :mailbox-depth +))
+     (gauge "snow_hall_round_mailbox_depth_max"
+            "Most moves waiting for the engine of a round per game"
+            (per-game queues :mailbox-depth max))
+     (gauge "snow_hall_round_agent_queue_length"
+            "Actions waiting on the state agents of the rounds per game"
+            (per-game queues :agent-queue +))
+     (gauge "snow_hall_round_agent_queue_length_max"
+            "Most actions waiting on the state agent of a round per game"
+            (per-game queues :agent-queue max))
+     (gauge "snow_hall_channel_pending_puts"
+            "Puts parked on the channels of the round engines"
+            [[{} (->> live
+                      (mapcat round-channels)
+                      (map metrics/pending-puts)
+                      (reduce +))]])]))
+
+(defn- hall-families
+  [{:keys [tab visitors janitor scheduler journal matchmaker]}]
+  [(gauge "snow_hall_gatherings"
+          "Gatherings in the hall"
+          [[{} (count @tab)]])
+   (gauge "snow_hall_visitors"
+          "Registered visitors"
+          [[{} (count @visitors)]])
+   (gauge "snow_hall_scheduler_queue_size"
+          "Steps waiting for each worker of the scheduler"
+          (map-indexed (fn [idx size] [{:worker idx} size])
+                       (scheduler/queue-sizes scheduler)))
+   (gauge "snow_hall_matchmaking_waiting"
+          "Visitors waiting for a match per game"
+          (for [[game-name c] (sort-by key (matchmaker/waiting-counts matchmaker))]
+            [{:game game-name} c]))
+   (gauge "snow_hall_journal_queue_size"
+          "Events waiting to be written to the journal"
+          [[{} (journal/queue-size journal)]])
+   (counter "snow_hall_janitor_sweeps_total"
+            "Cleaning passes on the hall"
+            [[{} (:sweeps @janitor)]])
+   (counter "snow_hall_janitor_evictions_total"
+            "Items removed from the hall by the janitor"
+            (let [m @janitor]
+              (for [k [:finished-rounds :abandoned-rounds
+                       :expired-archives :evicted-gatherings]]
+                [{:kind (name k)} (get m k)])))
+   (counter "snow_hall_janitor_passivations_total"
+            "Idle rounds passivated by the janitor"
+            [[{} (:passivated-rounds @janitor)]])])
+
+(defn- limiter-families
+  [limiter]
+  (when limiter
+    [(gauge "snow_hall_rate_limit_buckets"
+            "Token buckets of the visitors not full yet"
+            [[{} (limiter/bucket-count limiter)]])
+     (counter "snow_hall_rate_limited_requests_total"
+              "Requests per limited route and outcome"
+              (for [[[route outcome] c] (sort-by key (limiter/request-counts limiter))]
+                [{:route route :outcome (name outcome)} c]))]))
+
+(defn collect
+  "Collects the metric families of the hall."
+  [{:keys [rounds archives metrics limiter] :as context}]
+  (concat
+   (round-families @rounds @archives)
+   (hall-families context)
+   (limiter-families limiter)
+   (metrics/registry-families metrics)))
+
+(defn metrics-request
+  [context _req]
+  {:status 200
+   :headers {"Content-Type" "text/plain; version=0.0.4"}
+   :body (metrics/render (collect context))})
+
+(defn round-queues-request
+  "Lists the queues of each round, too many series for the metrics."
+  [{:keys [rounds]} _req]
+  {:status 200
+   :body (vec (round-queues (vals @rounds)))})
+
+(defn create-routes
+  [context]
+  [(http/GET "/metrics" [] (partial metrics-request context))
+   (http/GET "/metrics/rounds" [] (partial round-queues-request context))])
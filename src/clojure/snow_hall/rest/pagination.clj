@@ -0,0 +1,87 @@
+(ns snow-hall.rest.pagination
+  (:require [cheshire.core :as json]
+            [org.httpkit.server :as server]
+            [snow-hall.rest.core :refer [resolved rejected]])
+  (:import [java.nio.charset StandardCharsets]
+           [java.util Base64]))
+
+; Listings are served by pages of the sorted stores of the hall. The cursor
+; of the next page is the opaque encoding of the last key of the page, sent
+; in the X-Next-Cursor header. Pages are written item by item on the
+; response, so that no listing is built as a whole in memory.
+; Filtered listings read at most max-scan entries of the store per page: when
+; few entries match, the page holds less than its limit, with the cursor of
+; the last entry read to continue from.
+
+(def default-limit 50)
+(def max-limit 500)
+(def max-scan 10000)
+
+(def next-cursor-header "X-Next-Cursor")
+
+(defn encode-cursor
+  [k]
+  (.encodeToString (Base64/getUrlEncoder)
+                   (.getBytes (str k) StandardCharsets/UTF_8)))
+
+(defn decode-cursor
+  [cursor]
+  (String. (.decode (Base64/getUrlDecoder) ^String cursor) StandardCharsets/UTF_8))
+
+(defn with-page-request
+  "Reads the limit and the cursor of a listing request.
+  read-key rebuilds the key of the store from the decoded cursor."
+  [req read-key & _]
+  (let [{:strs [limit cursor]} (:query-params req)]
+    (try
+      (let [limit (if limit (Integer/parseInt limit) default-limit)]
+        (if (<= 1 limit max-limit)
+          (resolved {:limit limit
+                     :after (some-> cursor decode-cursor read-key)})
+          (rejected {:status 400
+                     :body (str "Limit must be within 1-" max-limit)})))
+      (catch IllegalArgumentException _
+        (rejected {:status 400
+                   :body "Invalid limit or cursor"})))))
+
+(defn page
+  "Selects the values of a sorted store accepted by pred, after the key
+  after, reading at most scan entries. Returns `[values next-key]`,
+  next-key being nil on the last page."
+  [store {:keys [limit after scan] :or {scan max-scan}} pred]
+  (let [entries (if (some? after) (subseq store > after) (seq store))
+        [scanned more] (split-at scan entries)
+        selected (vec (take (inc limit) (filter (comp pred val) scanned)))]
+    (cond
+      (> (count selected) limit) [(map val (take limit selected))
+                                  (key (nth selected (dec limit)))]
+      (seq more) [(map val selected) (key (last scanned))]
+      :else [(map val selected) nil])))
+
+(defn page-keys
+  "Selects the values of a store for the keys of a sorted set, after the key
+  after. Returns `[values next-key]`, as page."
+  [store ks {:keys [limit after]}]
+  (let [selected (vec (take (inc limit) (if (some? after) (subseq ks > after) (seq ks))))]
+    [(keep #(get store %) (take limit selected))
+     (when (> (count selected) limit)
+       (nth selected (dec limit)))]))
+
+(defn stream-page
+  "Answers with a page written as a JSON array, one item at a time, on the
+  channel of the request."
+  [req [values next-key] format-item]
+  (server/with-channel req channel
+    (server/send! channel
+                  {:status 200
+                   :headers (cond-> {"Content-Type" "application/json"}
+                              (some? next-key) (assoc next-cursor-header
+                                                      (encode-cursor next-key)))
+                   :body "["}
+                  false)
+    (doseq [[idx value] (map-indexed vector values)]
+      (server/send! channel
+                    (str (when (pos? idx) ",")
+                         (json/generate-string (format-item value)))
+                    false))
+    (server/send! channel "]" true)))
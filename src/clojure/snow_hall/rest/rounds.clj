@@ -1,9 +1,20 @@
 (ns snow-hall.rest.rounds
   (:require [compojure.core :as http]
+            [clojure.core.async :as async]
+            [cheshire.core :as json]
+            [org.httpkit.server :as server]
             [snow-hall.uuid :refer [->uuid]]
+            [snow-hall.games.game :as game]
             [snow-hall.games.round :as rounds]
+            [snow-hall.games.spectators :as spectators]
+            [snow-hall.hall.cluster :as cluster]
+            [snow-hall.hall.limiter :as limiter]
+            [snow-hall.hall.matchmaker :as matchmaker]
+            [snow-hall.hall.passivation :as passivation]
             [snow-hall.rest.core :refer [checked-with with resolved rejected]]
-            [snow-hall.rest.gatherings :refer [with-visitor]]))
+            [snow-hall.rest.pagination :as pages]
+            [snow-hall.rest.gatherings :refer [with-visitor]])
+  (:import [java.io ByteArrayInputStream]))
 
 (defn with-round
   [rounds ruid-getter & _]
@@ -14,14 +25,27 @@
       (rejected {:status 404
                  :body (str "No round " (str ruid))}))))
 
+(defn with-round-or-summary
+  "Resolves a live round or, if it was archived, its summary."
+  [rounds archives ruid-getter & _]
+  (let [ruid (ruid-getter)]
+    (if-let [summary (and (not (contains? rounds ruid))
+                          (get archives ruid))]
+      (resolved summary)
+      (with-round rounds (constantly ruid)))))
+
 (defn with-gathering
+  "Resolves a gathering by id, rejecting ids which are not strings, such as
+  numbers read from a JSON body, as the tab cannot compare them."
   [gatherings guid-getter & _]
   (let [guid (guid-getter)
-        gathering (get gatherings guid)]
-    (if guid
-      (resolved gathering)
-      (rejected {:status 404
-                 :body (str "No gathering " (str guid))}))))
+        gathering (when (string? guid) (get gatherings guid))]
+    (cond
+      (not (string? guid)) (rejected {:status 400
+                                      :body "Invalid gathering id"})
+      gathering (resolved gathering)
+      :else (rejected {:status 404
+                       :body (str "No gathering " guid)}))))
 
 (defn with-game
   [games name-getter]
@@ -38,73 +62,343 @@
     (rejected {:status 400
                :body "Gathering not complete"})))
 
+(defn- round-filter
+  [req]
+  (let [{:strs [game status]} (:query-params req)]
+    (fn [round]
+      (and (or (nil? game) (= game (:game round)))
+           (or (nil? status)
+               (= status (if (rounds/ended? round) "ended" "active")))))))
+
+(defn- format-round
+  [round]
+  {:id (:ruid round)
+   :players (:players round)
+   :game (:game round)
+   :status (if (rounds/ended? round) "ended" "active")})
+
 (defn list-round-request
-  [{:keys [rounds]} _req]
-  (let [content (map #(hash-map :id (:ruid %)
-                                :players (:players %)
-                                :game (:game %))
-                     (vals rounds))]
-    {:status 200
-     :body content}))
+  "Lists a page of the rounds, optionally of a game or with a status
+  (active or ended)."
+  [{:keys [rounds]} req]
+  (with
+   {:page (partial pages/with-page-request req ->uuid)}
+   (fn [{:keys [page]}]
+     (pages/stream-page req
+                        (pages/page @rounds page (round-filter req))
+                        format-round))))
 
 (defn start-round-request
-  [{:keys [rounds tab visitors games]} req]
+  [{:keys [tab games] :as context} req]
   (checked-with
    [
     [:gathering (partial with-gathering
                          @tab
                          (constantly (get-in req [:body "gathering"])))]
     [:game #(with-game @games (constantly (get-in % [:gathering :game])))]
-    [:visitor (partial with-visitor @visitors req)]]
+    [:visitor (partial with-visitor context req)]]
    [#(full-gathering? (:gathering %))]
    (fn [{:keys [gathering game visitor]}]
      (if (= ((comp first :players) gathering) (:uuid visitor))
-       (let [created-round (rounds/create-round gathering game)]
-         (dosync
-          (alter rounds assoc (:ruid created-round) created-round))
+       (let [created-round (matchmaker/start-round! context gathering game)]
          {:status 200
           :body (-> created-round
-                    (dissoc :ruid :state :engine)
+                    (select-keys [:game :players])
                     (assoc :id (:ruid created-round)))})
        {:status 403
         :body "Not the creator"}))))
 
+; Polls of the state and the messages are answered with an ETag made of the
+; epoch of the round, renewed when the round is restored, and the version of
+; its state. Clients sending it back get 304 until the state changes. The JSON
+; of the last version read by each player is kept on the round.
+
+(defn- etag
+  [round version]
+  (str "\"" (:epoch round) "-" version "\""))
+
+(defn- encode-cached!
+  "Encodes the body of a response, reusing the bytes encoded for the same
+  version of the round."
+  [round k version body]
+  (let [responses (:responses round)
+        [cached-version cached] (get @responses k)]
+    (if (= cached-version version)
+      cached
+      (let [encoded (.getBytes ^String (json/generate-string body) "UTF-8")]
+        (swap! responses assoc k [version encoded])
+        encoded))))
+
+(defn versioned-response
+  "Answers with the content read from a round, or with 304 if the client
+  already has its current version. read-fn returns `[version content]`."
+  [round kind uuid req read-fn]
+  (let [if-none-match (get-in req [:headers "if-none-match"])]
+    (if (= if-none-match (etag round (rounds/version round)))
+      {:status 304
+       :headers {"ETag" if-none-match}}
+      (let [[version content] (read-fn)]
+        {:status 200
+         :headers {"Content-Type" "application/json"
+                   "ETag" (etag round version)}
+         :body (ByteArrayInputStream.
+                (encode-cached! round [kind uuid] version content))}))))
+
 (defn get-state-request
-  [{:keys [rounds visitors]} ruid req]
+  [{:keys [rounds archives] :as context} ruid req]
   (with
-   {:visitor (partial with-visitor @visitors req)
-    :round (partial with-round @rounds (constantly ruid))}
+   {:visitor (partial with-visitor context req)
+    :round (partial with-round-or-summary @rounds @archives (constantly ruid))}
    (fn [{:keys [visitor round]}]
-     (let [state (rounds/read-last-state round (:uuid visitor))]
-       {:status 200
-        :body state}))))
+     (let [uuid (:uuid visitor)]
+       (if (:engine round)
+         (versioned-response round :state uuid req
+                             #(rounds/read-versioned-state round uuid))
+         {:status 200
+          :body (rounds/read-archived-state round uuid)})))))
 
 (defn list-messages-request
-  [{:keys [rounds visitors]} ruid req]
+  [{:keys [rounds] :as context} ruid req]
   (with
-   {:visitor (partial with-visitor @visitors req)
+   {:visitor (partial with-visitor context req)
     :round (partial with-round @rounds (constantly ruid))}
    (fn [{:keys [visitor round]}]
-     (let [messages (rounds/read-messages round (:uuid visitor))]
-       {:status 200
-        :body messages}))))
+     (let [uuid (:uuid visitor)]
+       (versioned-response round :messages uuid req
+                           #(rounds/read-versioned-messages round uuid))))))
+
+(def default-sync-timeout 5000)
+(def max-sync-timeout 30000)
+
+(defn with-sync-timeout
+  "Reads the time to wait for the answer of the engine, nil if the move is
+  played asynchronously."
+  [req & _]
+  (let [{:strs [sync timeout]} (:body req)]
+    (cond
+      (not sync) (resolved nil)
+      (nil? timeout) (resolved default-sync-timeout)
+      (and (integer? timeout) (not (neg? timeout))) (resolved (min timeout max-sync-timeout))
+      :else (rejected {:status 400
+                       :body "Invalid timeout"}))))
+
+(defn rejected-move
+  [outcome]
+  (case outcome
+    :full {:status 429
+           :headers {"Retry-After" "1"}
+           :body "Too many pending moves"}
+    :ended {:status 409
+            :body "Round ended"}
+    nil {:status 403
+         :body "Not a player"}))
+
+(defn- answer-when-played
+  "Answers the request with the next message to the player, or with 202 if
+  the engine did not answer in time."
+  [req response]
+  (server/with-channel req channel
+    (async/take! response
+                 #(server/send! channel
+                                (if %
+                                  {:status 200
+                                   :headers {"Content-Type" "application/json"}
+                                   :body (json/generate-string %)}
+                                  {:status 202
+                                   :body "Accepted"})))))
 
 (defn play-request
-  [{:keys [rounds visitors]} ruid req]
+  [{:keys [rounds] :as context} ruid req]
   (with
-   {:visitor (partial with-visitor @visitors req)
-    :round (partial with-round @rounds (constantly ruid))}
-   (fn [{:keys [visitor round]}]
-     (let [move (get-in req [:body "move"])]
-       (rounds/play-round round (:uuid visitor) move)
-       {:status 200
-        :body "Ok"}))))
+   {:visitor (partial with-visitor context req)
+    :round (partial with-round @rounds (constantly ruid))
+    :sync-timeout (partial with-sync-timeout req)}
+   (fn [{:keys [visitor round sync-timeout]}]
+     (let [move (get-in req [:body "move"])
+           uuid (:uuid visitor)
+           ; Watched before playing, not to miss a fast answer of the engine
+           response (when sync-timeout
+                      (rounds/next-message round uuid sync-timeout))
+           outcome (rounds/play-round round uuid move)]
+       (cond
+         (not= outcome :accepted) (do
+                                    (some-> response async/close!)
+                                    (rejected-move outcome))
+         response (answer-when-played req response)
+         :else {:status 200
+                :body "Ok"})))))
+
+; Spectators read the public view of a round without being players. They
+; either stream its frames, one JSON document per line, or poll the first
+; frame after the version they saw. Frames are encoded once per version and
+; shared by all spectators. Only the games giving a public view of their
+; rounds can be spectated.
+
+(def spectate-timeout 30000)
+
+(defn- frame-body
+  [frame]
+  (ByteArrayInputStream. ^bytes (:bytes frame)))
+
+(defn- stream-frames
+  [spectators round game req]
+  (server/with-channel req channel
+    (server/send! channel
+                  {:status 200
+                   :headers {"Content-Type" "application/x-ndjson"}}
+                  false)
+    (let [unsubscribe (spectators/subscribe!
+                       spectators
+                       round
+                       game
+                       #(server/send! channel (frame-body %) (:ended? %))
+                       #(server/close channel))]
+      (server/on-close channel (fn [_] (unsubscribe))))))
+
+(defn- answer-next-frame
+  [spectators round game req seen-version]
+  (server/with-channel req channel
+    (async/take! (spectators/next-frame spectators round game seen-version spectate-timeout)
+                 #(server/send! channel
+                                (if %
+                                  {:status 200
+                                   :headers {"Content-Type" "application/json"}
+                                   :body (frame-body %)}
+                                  {:status 304})))))
+
+(defn with-seen-version
+  [req & _]
+  (try
+    (resolved (Long/parseLong (get-in req [:query-params "version"] "-1")))
+    (catch NumberFormatException _
+      (rejected {:status 400
+                 :body "Invalid version"}))))
+
+(defn with-spectated-game
+  [games {:keys [round]} & _]
+  (let [game (get games (:game round))]
+    (if (and game (game/spectated? game))
+      (resolved (game/definition game))
+      (rejected {:status 403
+                 :body (str "Rounds of " (:game round) " cannot be spectated")}))))
+
+(defn spectate-request
+  [{:keys [rounds games spectators]} ruid req]
+  (with
+   [[:round (partial with-round @rounds (constantly ruid))]
+    [:game (partial with-spectated-game @games)]
+    [:seen-version (partial with-seen-version req)]]
+   (fn [{:keys [round game seen-version]}]
+     (if (= "true" (get-in req [:query-params "stream"]))
+       (stream-frames spectators round game req)
+       (answer-next-frame spectators round game req seen-version)))))
+
+; Batches of operations on rounds, for clients playing many rounds at once.
+; The visitor is authenticated once for all operations. Each operation gets
+; its own result, with the status its single request would have answered.
+
+(def max-batch-size 1000)
+
+(defn with-operations
+  [req & _]
+  (let [operations (get-in req [:body "operations"])]
+    (if (and (sequential? operations)
+             (<= (count operations) max-batch-size))
+      (resolved operations)
+      (rejected {:status 400
+                 :body (str "Expected up to " max-batch-size " operations")}))))
+
+(defn- versioned-result
+  [round tag read-fn]
+  (if (= tag (etag round (rounds/version round)))
+    {:status 304 :etag tag}
+    (let [[version content] (read-fn)]
+      {:status 200
+       :etag (etag round version)
+       :body content})))
+
+(defn- play-operation
+  "Plays a move of a batch, charged to the move limit of the visitor as its
+  own request would be."
+  [limiter round uuid move]
+  (let [wait (if limiter
+               (limiter/acquire! limiter limiter/moves-route (str uuid))
+               0)
+        outcome (when (zero? wait)
+                  (rounds/play-round round uuid move))]
+    (cond
+      (pos? wait) {:status 429
+                   :retry-after (limiter/retry-after wait)
+                   :body "Too many requests"}
+      (= outcome :accepted) {:status 200 :body "Ok"}
+      :else (select-keys (rejected-move outcome) [:status :body]))))
+
+(defn- run-operation
+  [limiter live archived uuid ruid {:strs [op move] tag "etag"}]
+  (let [round (get live ruid)
+        summary (get archived ruid)]
+    (cond
+      (not (#{"state" "messages" "move"} op))
+      {:status 400 :body (str "Unknown operation " op)}
+
+      (and (= op "state") (nil? round) summary)
+      {:status 200 :body (rounds/read-archived-state summary uuid)}
+
+      (nil? round)
+      {:status 404 :body (str "No round " ruid)}
+
+      (= op "state")
+      (versioned-result round tag #(rounds/read-versioned-state round uuid))
+
+      (= op "messages")
+      (versioned-result round tag #(rounds/read-versioned-messages round uuid))
+
+      :else
+      (play-operation limiter round uuid move))))
+
+(defn- batch-result
+  [{:keys [cluster limiter]} live archived uuid {:strs [round op] :as operation}]
+  (let [ruid (try (->uuid round)
+                  (catch IllegalArgumentException _ nil))
+        node (when (and ruid
+                        cluster
+                        (not (contains? live ruid))
+                        (not (contains? archived ruid)))
+               (cluster/forward-target cluster (str ruid)))]
+    (merge {:round round :op op}
+           (cond
+             (nil? ruid) {:status 400 :body (str "Invalid round " round)}
+             node {:status 421 :node node}
+             :else (run-operation limiter live archived uuid ruid operation)))))
+
+(defn batch-request
+  "Runs operations on several rounds: reading the state or the messages of
+  the visitor, or playing a move. Moves are always played asynchronously,
+  each one charged to the move limit of the visitor. Rounds owned by another node of the cluster answer 421 with the node."
+  [{:keys [rounds archives passivation] :as context} req]
+  (with
+   {:visitor (partial with-visitor context req)
+    :operations (partial with-operations req)}
+   (fn [{:keys [visitor operations]}]
+     (let [live @rounds
+           archived @archives
+           uuid (:uuid visitor)
+           targets (distinct (keep #(get live (try (->uuid (get % "round"))
+                                                   (catch IllegalArgumentException _ nil)))
+                                   operations))]
+       (passivation/with-pinned
+         passivation
+         targets
+         #(hash-map :status 200
+                    :body (mapv (partial batch-result context live archived uuid)
+                                operations)))))))
 
 (defn create-routes
   [context]
   [(http/context "/rounds" []
      (http/GET "/" [] (partial list-round-request context))
      (http/POST "/" [] (partial start-round-request context))
+     (http/POST "/batch" [] (partial batch-request context))
      (http/context "/:ruid" [ruid]
        (http/GET "/state" [] (partial get-state-request
                                       context
@@ -114,4 +408,7 @@
                                          (->uuid ruid)))
        (http/POST "/messages" [] (partial play-request
                                           context
-                                          (->uuid ruid)))))])
+                                          (->uuid ruid)))
+       (http/GET "/spectate" [] (partial spectate-request
+                                         context
+                                         (->uuid ruid)))))])
@@ -0,0 +1,127 @@
+(ns snow-hall.rest.tournaments
+  (:require [compojure.core :as http]
+            [snow-hall.games.game :as games]
+            [snow-hall.hall.tournament :as tournament]
+            [snow-hall.rest.core :refer [resolved rejected with]]
+            [snow-hall.rest.gatherings :refer [with-visitor with-game with-options]]
+            [snow-hall.rest.pagination :as pages]))
+
+(defn format-tournament
+  [{:keys [pending running results] :as t}]
+  (-> t
+      (select-keys [:id :game :options :format :players :status :stage :stages
+                    :created-at :ended-at :champion])
+      (assoc :matches {:pending (count pending)
+                       :running (count running)
+                       :played (count results)})))
+
+(defn format-standing
+  [[rank player rating score]]
+  {:rank rank
+   :player player
+   :rating (Math/round (double rating))
+   :score score})
+
+(defn with-format
+  [req & _]
+  (let [format (keyword (get-in req [:body "format"] "round-robin"))]
+    (if (contains? tournament/formats format)
+      (resolved format)
+      (rejected {:status 400
+                 :body (str "Format must be one of " (sort (map name tournament/formats)))}))))
+
+(defn with-players
+  "Reads the players of the tournament, all registered and distinct."
+  [visitors req {:keys [game options]} & _]
+  (let [players (get-in req [:body "players"])]
+    (cond
+      (not= 2 (games/get-player-count game (games/read-options game options)))
+      (rejected {:status 400
+                 :body "Tournaments are played by two players"})
+      (or (not (sequential? players)) (< (count players) 2))
+      (rejected {:status 400
+                 :body "At least two players are required"})
+      (not (apply distinct? players))
+      (rejected {:status 400
+                 :body "Players must be distinct"})
+      (not-every? visitors players)
+      (rejected {:status 400
+                 :body (str "Unknown players " (vec (remove visitors players)))})
+      :else (resolved (vec players)))))
+
+(defn with-stages
+  [req {:keys [players]} & _]
+  (let [stages (get-in req [:body "stages"])]
+    (if (or (nil? stages)
+            (and (int? stages) (<= 1 stages (dec (count players)))))
+      (resolved stages)
+      (rejected {:status 400
+                 :body (str "Stages must be within 1-" (dec (count players)))}))))
+
+(defn with-tournament
+  [tournaments id & _]
+  (if-let [t (tournament/get-tournament tournaments id)]
+    (resolved @t)
+    (rejected {:status 404
+               :body (str "No tournament " id)})))
+
+(defn create-tournament-request
+  [{:keys [visitors games] :as context} req]
+  (with
+   {:visitor (partial with-visitor context req)
+    :game (partial with-game @games req)
+    :options (partial with-options req)
+    :format (partial with-format req)
+    :players (partial with-players @visitors req)
+    :stages (partial with-stages req)}
+   (fn [params]
+     {:status 200
+      :body (format-tournament @(tournament/start! context params))})))
+
+(defn list-tournaments-request
+  [{:keys [tournaments]} req]
+  (with
+   {:page (partial pages/with-page-request req identity)}
+   (fn [{:keys [page]}]
+     (pages/stream-page req
+                        (pages/page @(:store tournaments) page (constantly true))
+                        (comp format-tournament deref)))))
+
+(defn get-tournament-request
+  [{:keys [tournaments]} id _req]
+  (with
+   {:tournament (partial with-tournament tournaments id)}
+   (fn [{t :tournament}]
+     {:status 200
+      :body (format-tournament t)})))
+
+(defn list-standings-request
+  [{:keys [tournaments]} id req]
+  (with
+   {:tournament (partial with-tournament tournaments id)
+    :page (partial pages/with-page-request req identity)}
+   (fn [{t :tournament {:keys [limit]} :page}]
+     {:status 200
+      :body (map format-standing (tournament/standings t limit))})))
+
+(defn get-standing-request
+  [{:keys [tournaments]} id player _req]
+  (with
+   {:tournament (partial with-tournament tournaments id)}
+   (fn [{t :tournament}]
+     (if-let [standing (tournament/standing t player)]
+       {:status 200
+        :body (format-standing standing)}
+       {:status 404
+        :body (str "No player " player " in tournament " id)}))))
+
+(defn create-routes
+  [context]
+  [(http/context "/tournaments" []
+     (http/GET "/" [] (partial list-tournaments-request context))
+     (http/POST "/" [] (partial create-tournament-request context))
+     (http/context "/:id" [id]
+       (http/GET "/" [] (partial get-tournament-request context id))
+       (http/GET "/standings" [] (partial list-standings-request context id))
+       (http/GET "/standings/:player" [player]
+         (partial get-standing-request context id player))))])
@@ -1,5 +1,9 @@
 (ns snow-hall.rest.visitors
   (:require [snow-hall.hall.visitor :as visitor]
+            [snow-hall.hall.cluster :as cluster]
+            [snow-hall.hall.credentials :as credentials]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.metrics :refer [tracked-dosync]]
             [compojure.core :as http]))
 
 (defn list-users-request
@@ -11,36 +15,70 @@
      :body cleansed-visitors}))
 
 (defn create-visitor
-  [{:strs [nickname]}]
-  (-> (visitor/create)
+  [credentials {:strs [nickname]}]
+  (-> (if credentials
+        (visitor/create (partial credentials/issue credentials))
+        (visitor/create))
       (#(if nickname (visitor/set-nickname %1 nickname) %1))))
 
 (defn register-visitor-request
-  [registry req]
-  (let [visitor (create-visitor (:body req))]
-    (dosync
-     (alter registry visitor/register visitor))
+  [{registry :visitors :keys [metrics journal cluster credentials]} req]
+  (let [visitor (create-visitor credentials (:body req))]
+    (tracked-dosync metrics "register-visitor"
+     (alter registry visitor/register visitor)
+     (journal/record! journal {:type :visitor-registered :visitor visitor}))
+    (cluster/share-visitor! cluster visitor)
     {:status 200
      :headers {"Content-Type" "application/json"}
      :body visitor}))
 
 (defn update-nickname-request
-  [registry uuid req]
+  [{registry :visitors :keys [metrics journal cluster]} uuid req]
   (let [{:strs [token nickname]} (:body req)]
-    (dosync
+    (tracked-dosync metrics "update-nickname"
      (alter
       registry
       visitor/edit
       uuid
       token
-      #(visitor/set-nickname % nickname)))
+      #(visitor/set-nickname % nickname))
+     (journal/record! journal {:type :nickname-changed
+                               :uuid uuid
+                               :nickname nickname}))
+    (cluster/share-visitor! cluster (get @registry uuid))
     {:status 200
      :headers {"Content-Type" "application/json"}
      :body {:uuid uuid :nickname nickname}}))
 
+(defn renew-token-request
+  "Issues a new token to a visitor, revoking its previous ones."
+  [{registry :visitors :keys [metrics journal cluster credentials]} uuid req]
+  (let [token (get-in req [:body "token"])]
+    (cond
+      (nil? credentials)
+      {:status 404}
+
+      (not (or (credentials/verify credentials uuid token)
+               (some-> (get @registry uuid) (visitor/validate-token token))))
+      {:status 403}
+
+      :else
+      (let [renewed (credentials/renew! credentials uuid)]
+        (tracked-dosync metrics "renew-token"
+         (when (contains? @registry uuid)
+           (alter registry assoc-in [uuid :token] renewed))
+         (journal/record! journal {:type :token-renewed
+                                   :uuid uuid
+                                   :token renewed}))
+        (cluster/share-visitor! cluster (get @registry uuid {:uuid uuid :token renewed}))
+        {:status 200
+         :headers {"Content-Type" "application/json"}
+         :body {:uuid uuid :token renewed}}))))
+
 (defn create-routes
-  [{:keys [visitors]}]
+  [{:keys [visitors] :as context}]
   [(http/context "/visitors" []
      (http/GET "/" [] (partial list-users-request visitors))
-     (http/POST "/" [] (partial register-visitor-request visitors))
-     (http/PUT "/:uuid/nickname" [uuid] (partial update-nickname-request visitors uuid)))])
+     (http/POST "/" [] (partial register-visitor-request context))
+     (http/PUT "/:uuid/nickname" [uuid] (partial update-nickname-request context uuid))
+     (http/POST "/:uuid/token" [uuid] (partial renew-token-request context uuid)))])
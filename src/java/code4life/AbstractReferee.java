@@ -25,6 +25,7 @@ abstract class AbstractReferee {
 		private String info;
 		private String reasonCode;
 		private String[] nextInput;
+		private int expectedOutputLineCount;
 
 		public PlayerStatus(final int id) {
 			this.id = id;
@@ -263,6 +264,7 @@ abstract class AbstractReferee {
 					throw new GameOverException("maxRoundsCountReached");
 				}
 
+				final boolean simultaneous = !this.isTurnBasedGame() && this.isQueryingSimultaneously();
 				if (this.newRound) {
 					prepare(this.round);
 					if (!this.isTurnBasedGame()) {
@@ -274,18 +276,21 @@ abstract class AbstractReferee {
 							}
 						}
 					}
+					if (simultaneous) {
+						for (final PlayerStatus player : this.players) {
+							if (!player.lost && !player.win) {
+								requestOutput(player);
+							}
+						}
+					}
 				}
-
-				this.out.println("###Input " + this.nextPlayer);
-				for (final String line : this.players[this.nextPlayer].nextInput) {
-					this.out.println(line);
+				if (!simultaneous) {
+					requestOutput(this.playerStatus);
 				}
 
-				final int expectedOutputLineCount = getExpectedOutputLineCountForPlayer(this.nextPlayer);
-				this.out.println("###Output " + this.nextPlayer + " " + expectedOutputLineCount);
 				try {
-					final String[] outputs = new String[expectedOutputLineCount];
-					for (int i = 0; i < expectedOutputLineCount; i++) {
+					final String[] outputs = new String[this.playerStatus.expectedOutputLineCount];
+					for (int i = 0; i < outputs.length; i++) {
 						outputs[i] = s.nextLine();
 					}
 					handlePlayerOutput(0, this.round, this.nextPlayer, outputs);
@@ -309,6 +314,7 @@ abstract class AbstractReferee {
 			this.err.println(this.reason);
 			prepare(this.round);
 			updateScores();
+			onGameOver(this.round);
 			if (this.players[0].score > this.players[1].score) {
 				this.out.println("###End 0 1");
 			} else if (this.players[0].score < this.players[1].score) {
@@ -321,6 +327,19 @@ abstract class AbstractReferee {
 		}
 	}
 
+	/**
+	 * Sends its input to a player and asks for its output.
+	 */
+	private void requestOutput(final PlayerStatus player) {
+		this.out.println("###Input " + player.id);
+		for (final String line : player.nextInput) {
+			this.out.println(line);
+		}
+
+		player.expectedOutputLineCount = getExpectedOutputLineCountForPlayer(player.id);
+		this.out.println("###Output " + player.id + " " + player.expectedOutputLineCount);
+	}
+
 	private PlayerStatus nextPlayer() throws GameOverException {
 		// TODO break the loop when all players are lost
 
@@ -509,6 +528,23 @@ abstract class AbstractReferee {
 		return false;
 	}
 
+	/**
+	 * Whether all the players of a round of a game not turn based are asked for their outputs at once, before their
+	 * outputs are read in order. Players then play at the same time, each against its own deadline, and the outputs
+	 * are handled as if the players were asked one after the other.
+	 */
+	protected boolean isQueryingSimultaneously() {
+		return false;
+	}
+
+	/**
+	 * Called once the game is over and the scores are final, before the ranking is sent.
+	 *
+	 * @param round last round played
+	 */
+	protected void onGameOver(final int round) {
+	}
+
 	protected abstract void handleInitInputForReferee(int playerCount, String[] init) throws InvalidFormatException;
 
 	protected abstract String[] getInitDataForView();
@@ -0,0 +1,274 @@
+package code4life;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Baseline bot for Code4Life, reading the inputs of the referee and answering one command per turn.
+ *
+ * Bots are deterministic, the same inputs giving the same commands, and never send a command making them lose, so
+ * that matches between bots last all their rounds. They play in-process through {@link BotPlayers}, or on their
+ * standard streams with {@link #main(String...)}.
+ */
+public abstract class Bot {
+	public static final String[] MODULES = {"SAMPLES", "DIAGNOSIS", "MOLECULES", "LABORATORY"};
+	public static final String MOLECULES = "ABCDE";
+	public static final String WAIT = "WAIT";
+
+	public static final class Robot {
+		public String target;
+		public int eta, score;
+		public final int[] storage = new int[MOLECULES.length()];
+		public final int[] expertise = new int[MOLECULES.length()];
+	}
+
+	public static final class Sample {
+		public int id, carrier, rank, health;
+		public String gain;
+		public final int[] cost = new int[MOLECULES.length()];
+
+		public boolean isDiagnosed() {
+			return this.health >= 0;
+		}
+	}
+
+	protected final List<int[]> projects = new ArrayList<>();
+	protected final List<Sample> samples = new ArrayList<>();
+	protected Robot me, other;
+	protected int[] available = new int[MOLECULES.length()];
+
+	/**
+	 * Creates a bot by name: {@code random}, {@code greedy} or {@code project}.
+	 */
+	public static Bot create(final String name, final long seed) {
+		switch (name) {
+		case "random":
+			return new RandomBot(seed);
+		case "greedy":
+			return new GreedyBot();
+		case "project":
+			return new ProjectBot();
+		default:
+			throw new IllegalArgumentException("Unknown bot " + name);
+		}
+	}
+
+	/**
+	 * Reads the input lines of a turn, preceded by the science projects on the first turn.
+	 */
+	public void update(final String[] lines) {
+		int line = 0;
+		if (lines.length > 0 && Character.isDigit(lines[0].trim().charAt(0))) {
+			final int projectCount = Integer.parseInt(lines[0].trim());
+			this.projects.clear();
+			for (int i = 1; i <= projectCount; ++i) {
+				this.projects.add(parseInts(lines[i].trim().split("\\s+"), 0));
+			}
+			line = projectCount + 1;
+		}
+		if (line >= lines.length) {
+			return;
+		}
+
+		this.me = parseRobot(lines[line++]);
+		this.other = parseRobot(lines[line++]);
+		this.available = parseInts(lines[line++].trim().split("\\s+"), 0);
+		final int sampleCount = Integer.parseInt(lines[line++].trim());
+		this.samples.clear();
+		for (int i = 0; i < sampleCount; ++i) {
+			this.samples.add(parseSample(lines[line++]));
+		}
+	}
+
+	/**
+	 * Gets the command of the turn last read.
+	 */
+	public String play() {
+		if (this.me == null || this.me.eta > 0) {
+			return WAIT;
+		}
+		final String command = decide();
+		return legalCommands().contains(command) ? command : WAIT;
+	}
+
+	/**
+	 * Chooses the command of a turn, once the robot reached its module.
+	 */
+	protected abstract String decide();
+
+	/**
+	 * Lists the commands not making the bot lose, once the robot reached its module.
+	 */
+	protected List<String> legalCommands() {
+		final List<String> commands = new ArrayList<>();
+		commands.add(WAIT);
+		for (final String module : MODULES) {
+			if (!module.equals(this.me.target)) {
+				commands.add(goTo(module));
+			}
+		}
+
+		final List<Sample> tray = tray();
+		switch (this.me.target) {
+		case "SAMPLES":
+			if (tray.size() < Referee.MAX_TRAY) {
+				for (int rank = 1; rank <= Referee.SAMPLE_RANK_COUNT; ++rank) {
+					commands.add(connect(rank));
+				}
+			}
+			break;
+		case "DIAGNOSIS":
+			for (final Sample sample : this.samples) {
+				if (sample.carrier == 0 || (sample.carrier == -1 && tray.size() < Referee.MAX_TRAY)) {
+					commands.add(connect(sample.id));
+				}
+			}
+			break;
+		case "MOLECULES":
+			if (storageSize() < Referee.MAX_STORAGE) {
+				for (int i = 0; i < MOLECULES.length(); ++i) {
+					if (this.available[i] > 0) {
+						commands.add(connect(MOLECULES.charAt(i)));
+					}
+				}
+			}
+			break;
+		case "LABORATORY":
+			for (final Sample sample : tray) {
+				if (canProduce(sample)) {
+					commands.add(connect(sample.id));
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		return commands;
+	}
+
+	protected List<Sample> tray() {
+		return carriedBy(0);
+	}
+
+	protected List<Sample> cloud() {
+		return carriedBy(-1);
+	}
+
+	private List<Sample> carriedBy(final int carrier) {
+		final List<Sample> carried = new ArrayList<>();
+		for (final Sample sample : this.samples) {
+			if (sample.carrier == carrier) {
+				carried.add(sample);
+			}
+		}
+		return carried;
+	}
+
+	protected int storageSize() {
+		int size = 0;
+		for (final int count : this.me.storage) {
+			size += count;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the molecules of a type the robot must pay for a sample, its expertise paying for the others.
+	 */
+	protected int need(final Sample sample, final int molecule) {
+		return Math.max(0, sample.cost[molecule] - this.me.expertise[molecule]);
+	}
+
+	protected boolean canProduce(final Sample sample) {
+		if (!sample.isDiagnosed()) {
+			return false;
+		}
+		for (int i = 0; i < MOLECULES.length(); ++i) {
+			if (need(sample, i) > this.me.storage[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected static String goTo(final String module) {
+		return "GOTO " + module;
+	}
+
+	protected static String connect(final Object data) {
+		return "CONNECT " + data;
+	}
+
+	private static int[] parseInts(final String[] tokens, final int from) {
+		final int[] values = new int[MOLECULES.length()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = Integer.parseInt(tokens[from + i]);
+		}
+		return values;
+	}
+
+	private static Robot parseRobot(final String line) {
+		final String[] tokens = line.trim().split("\\s+");
+		final Robot robot = new Robot();
+		robot.target = tokens[0];
+		robot.eta = Integer.parseInt(tokens[1]);
+		robot.score = Integer.parseInt(tokens[2]);
+		System.arraycopy(parseInts(tokens, 3), 0, robot.storage, 0, robot.storage.length);
+		System.arraycopy(parseInts(tokens, 3 + MOLECULES.length()), 0, robot.expertise, 0, robot.expertise.length);
+		return robot;
+	}
+
+	private static Sample parseSample(final String line) {
+		final String[] tokens = line.trim().split("\\s+");
+		final Sample sample = new Sample();
+		sample.id = Integer.parseInt(tokens[0]);
+		sample.carrier = Integer.parseInt(tokens[1]);
+		sample.rank = Integer.parseInt(tokens[2]);
+		sample.gain = tokens[3];
+		sample.health = Integer.parseInt(tokens[4]);
+		System.arraycopy(parseInts(tokens, 5), 0, sample.cost, 0, sample.cost.length);
+		return sample;
+	}
+
+	/**
+	 * Plays on streams, reading the science projects then the inputs of each turn.
+	 */
+	public void run(final InputStream is, final PrintStream out) {
+		final Scanner in = new Scanner(is);
+		final List<String> lines = new ArrayList<>();
+		lines.add(in.nextLine());
+		final int projectCount = Integer.parseInt(lines.get(0).trim());
+		for (int i = 0; i < projectCount; ++i) {
+			lines.add(in.nextLine());
+		}
+		update(lines.toArray(new String[lines.size()]));
+
+		while (in.hasNextLine()) {
+			lines.clear();
+			for (int i = 0; i < 3; ++i) {
+				lines.add(in.nextLine());
+			}
+			final String count = in.nextLine();
+			lines.add(count);
+			for (int i = Integer.parseInt(count.trim()); i > 0; --i) {
+				lines.add(in.nextLine());
+			}
+			update(lines.toArray(new String[lines.size()]));
+			out.println(play());
+			out.flush();
+		}
+	}
+
+	/**
+	 * Runs a bot on the standard streams. Arguments are the name of the bot, {@code greedy} by default, and the seed
+	 * of the random bot.
+	 */
+	public static void main(final String... args) {
+		final String name = args.length > 0 ? args[0] : "greedy";
+		final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		create(name, seed).run(System.in, System.out);
+	}
+}
@@ -0,0 +1,39 @@
+package code4life;
+
+/**
+ * Players of a {@link RefereeSession} played by bots, in the thread of the session.
+ */
+public class BotPlayers implements RefereeSession.Players {
+	private final Bot[] bots;
+	private String ranking;
+
+	public BotPlayers(final Bot... bots) {
+		this.bots = bots;
+	}
+
+	@Override
+	public void onInput(final int playerIdx, final String[] lines) {
+		this.bots[playerIdx].update(lines);
+	}
+
+	@Override
+	public String[] onOutput(final int playerIdx, final int lineCount) {
+		final String[] lines = new String[lineCount];
+		for (int i = 0; i < lineCount; ++i) {
+			lines[i] = i == 0 ? this.bots[playerIdx].play() : "";
+		}
+		return lines;
+	}
+
+	@Override
+	public void onEnd(final String ranking) {
+		this.ranking = ranking;
+	}
+
+	/**
+	 * Gets the ranking given by the referee, once the game ended.
+	 */
+	public String getRanking() {
+		return this.ranking;
+	}
+}
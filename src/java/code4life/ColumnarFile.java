@@ -0,0 +1,483 @@
+package code4life;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * Append-only file of rows stored by column.
+ *
+ * The file starts with its schema, followed by blocks of rows. Each block holds its row count, then the values of
+ * each column for all its rows, one column after the other, in little endian. Rows are buffered by the writer and
+ * written one block at a time, so that a block is either complete or ignored when reading. Readers map the file
+ * in memory by regions of whole blocks, up to 1 GB each, and scan a column without decoding the others.
+ */
+public final class ColumnarFile {
+	private static final int MAGIC = 0x52344C43; // C4LR
+	private static final int VERSION = 1;
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	public static final long MAX_REGION_SIZE = 1L << 30;
+
+	public enum Type {
+		INT(Integer.BYTES), LONG(Long.BYTES);
+
+		final int size;
+
+		private Type(final int size) {
+			this.size = size;
+		}
+	}
+
+	public static final class Column {
+		private final String name;
+		private final Type type;
+
+		public Column(final String name, final Type type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public Type getType() {
+			return this.type;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Column)) {
+				return false;
+			}
+			final Column other = (Column) o;
+			return this.name.equals(other.name) && this.type == other.type;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.name.hashCode() * 31 + this.type.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return this.name + ":" + this.type;
+		}
+	}
+
+	private ColumnarFile() {
+	}
+
+	private static int indexOf(final List<Column> columns, final String name) {
+		for (int i = 0; i < columns.size(); ++i) {
+			if (columns.get(i).name.equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown column " + name);
+	}
+
+	private static int rowSize(final List<Column> columns) {
+		int size = 0;
+		for (final Column column : columns) {
+			size += column.type.size;
+		}
+		return size;
+	}
+
+	private static ByteBuffer encodeHeader(final List<Column> columns) {
+		int size = 3 * Integer.BYTES;
+		for (final Column column : columns) {
+			size += 1 + Short.BYTES + column.name.getBytes(StandardCharsets.UTF_8).length;
+		}
+		final ByteBuffer header = ByteBuffer.allocate(size).order(ORDER);
+		header.putInt(MAGIC).putInt(VERSION).putInt(columns.size());
+		for (final Column column : columns) {
+			final byte[] name = column.name.getBytes(StandardCharsets.UTF_8);
+			header.put((byte) column.type.ordinal()).putShort((short) name.length).put(name);
+		}
+		return header.flip();
+	}
+
+	/**
+	 * Gets the position of a column in a block of rowCount rows.
+	 */
+	private static int offsetOf(final List<Column> columns, final int column, final int rowCount) {
+		int offset = 0;
+		for (int i = 0; i < column; ++i) {
+			offset += columns.get(i).type.size * rowCount;
+		}
+		return offset;
+	}
+
+	private static List<Column> decodeHeader(final ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < 3 * Integer.BYTES || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a columnar file");
+		}
+		if (buffer.getInt() != VERSION) {
+			throw new IOException("Unsupported version of columnar file");
+		}
+		final int count = buffer.getInt();
+		final List<Column> columns = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			final Type type = Type.values()[buffer.get()];
+			final byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+			columns.add(new Column(new String(name, StandardCharsets.UTF_8), type));
+		}
+		return columns;
+	}
+
+	private static List<Column> readHeader(final FileChannel channel) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 64 * 1024)).order(ORDER);
+		channel.read(buffer, 0);
+		return decodeHeader(buffer.flip());
+	}
+
+	private static int headerSize(final List<Column> columns) {
+		return encodeHeader(columns).remaining();
+	}
+
+	/**
+	 * Lists the offsets and row counts of the complete blocks of a file.
+	 *
+	 * @return the offset after the last complete block and the total row count
+	 */
+	private static long[] listBlocks(final FileChannel channel, final List<Column> columns, final List<Long> offsets,
+			final List<Integer> rowCounts) throws IOException {
+		final long size = channel.size();
+		final long rowSize = rowSize(columns);
+		final ByteBuffer count = ByteBuffer.allocate(Integer.BYTES).order(ORDER);
+		long position = headerSize(columns);
+		long rows = 0;
+		while (position + Integer.BYTES <= size) {
+			count.clear();
+			channel.read(count, position);
+			final int rowCount = count.flip().getInt();
+			final long end = position + Integer.BYTES + rowCount * rowSize;
+			if (rowCount <= 0 || end > size) {
+				break;
+			}
+			offsets.add(position);
+			rowCounts.add(rowCount);
+			rows += rowCount;
+			position = end;
+		}
+		return new long[]{position, rows};
+	}
+
+	/**
+	 * Writer appending rows to a file. Rows are visible to readers once their block is written.
+	 */
+	public static final class Writer implements Closeable {
+		private final FileChannel channel;
+		private final List<Column> columns;
+		private final int blockSize;
+		private final long[][] values;
+		private int buffered;
+		private long rowCount;
+
+		/**
+		 * Opens a file to append rows, creating it if needed. An incomplete block left at the end of the file is
+		 * dropped.
+		 *
+		 * @throws IOException if the file has another schema
+		 */
+		public Writer(final Path path, final List<Column> columns, final int blockSize) throws IOException {
+			this.columns = List.copyOf(columns);
+			this.blockSize = blockSize;
+			this.values = new long[columns.size()][blockSize];
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				if (this.channel.size() == 0) {
+					this.channel.write(encodeHeader(this.columns), 0);
+					this.channel.position(headerSize(this.columns));
+				} else {
+					final List<Column> existing = readHeader(this.channel);
+					if (!existing.equals(this.columns)) {
+						throw new IOException("Columns " + existing + " of " + path + " differ from " + this.columns);
+					}
+					final long[] end = listBlocks(this.channel, this.columns, new ArrayList<>(), new ArrayList<>());
+					this.channel.truncate(end[0]);
+					this.channel.position(end[0]);
+					this.rowCount = end[1];
+				}
+			} catch (final IOException e) {
+				this.channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Appends a row, with the values of all columns in order.
+		 *
+		 * @return the index of the row in the file
+		 */
+		public synchronized long append(final long... row) throws IOException {
+			if (row.length != this.columns.size()) {
+				throw new IllegalArgumentException("Expected " + this.columns.size() + " values, got " + row.length);
+			}
+			for (int i = 0; i < row.length; ++i) {
+				this.values[i][this.buffered] = row[i];
+			}
+			++this.buffered;
+			if (this.buffered == this.blockSize) {
+				flush();
+			}
+			return this.rowCount++;
+		}
+
+		/**
+		 * Writes the buffered rows as a block.
+		 */
+		public synchronized void flush() throws IOException {
+			if (this.buffered == 0) {
+				return;
+			}
+			final ByteBuffer block = ByteBuffer.allocate(Integer.BYTES + this.buffered * rowSize(this.columns))
+					.order(ORDER);
+			block.putInt(this.buffered);
+			for (int i = 0; i < this.columns.size(); ++i) {
+				final long[] column = this.values[i];
+				if (this.columns.get(i).type == Type.INT) {
+					for (int row = 0; row < this.buffered; ++row) {
+						block.putInt((int) column[row]);
+					}
+				} else {
+					for (int row = 0; row < this.buffered; ++row) {
+						block.putLong(column[row]);
+					}
+				}
+			}
+			block.flip();
+			while (block.hasRemaining()) {
+				this.channel.write(block);
+			}
+			this.buffered = 0;
+		}
+
+		public synchronized long getRowCount() {
+			return this.rowCount;
+		}
+
+		/**
+		 * Drops the rows from the given index on. The block holding the first dropped row is written again with its
+		 * previous rows.
+		 */
+		public synchronized void truncate(final long rows) throws IOException {
+			if (rows >= this.rowCount) {
+				return;
+			}
+			flush();
+			final List<Long> offsets = new ArrayList<>();
+			final List<Integer> counts = new ArrayList<>();
+			listBlocks(this.channel, this.columns, offsets, counts);
+			long first = 0;
+			int b = 0;
+			while (first + counts.get(b) <= rows) {
+				first += counts.get(b++);
+			}
+			final long offset = offsets.get(b);
+			final int count = counts.get(b);
+			final int kept = (int) (rows - first);
+			final int rowSize = rowSize(this.columns);
+			final ByteBuffer old = ByteBuffer.allocate(count * rowSize).order(ORDER);
+			while (old.hasRemaining()) {
+				this.channel.read(old, offset + Integer.BYTES + old.position());
+			}
+			final ByteBuffer block = ByteBuffer.allocate(Integer.BYTES + kept * rowSize).order(ORDER);
+			block.putInt(kept);
+			for (int i = 0; i < this.columns.size(); ++i) {
+				final int size = this.columns.get(i).type.size;
+				final int from = offsetOf(this.columns, i, count);
+				block.put(old.array(), from, kept * size);
+			}
+			block.flip();
+
+			this.channel.truncate(offset);
+			this.channel.position(offset);
+			if (kept > 0) {
+				while (block.hasRemaining()) {
+					this.channel.write(block);
+				}
+			}
+			this.rowCount = rows;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				this.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Reader of the blocks written when it was opened.
+	 */
+	public static final class Reader implements Closeable {
+		private final FileChannel channel;
+		private final List<Column> columns;
+		private final ByteBuffer[] blocks;
+		private final int[] rowCounts;
+		private final long[] firstRows;
+		private final long rowCount;
+
+		public Reader(final Path path) throws IOException {
+			this(path, MAX_REGION_SIZE);
+		}
+
+		/**
+		 * Opens a file, mapping it by regions of at most maxRegionSize bytes, or of a single block when larger.
+		 */
+		public Reader(final Path path, final long maxRegionSize) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				this.columns = readHeader(this.channel);
+				final List<Long> offsets = new ArrayList<>();
+				final List<Integer> counts = new ArrayList<>();
+				this.rowCount = listBlocks(this.channel, this.columns, offsets, counts)[1];
+				final long rowSize = rowSize(this.columns);
+				this.blocks = new ByteBuffer[offsets.size()];
+				this.rowCounts = new int[offsets.size()];
+				this.firstRows = new long[offsets.size()];
+				long first = 0;
+				MappedByteBuffer region = null;
+				long regionStart = 0;
+				for (int i = 0; i < this.blocks.length; ++i) {
+					this.rowCounts[i] = counts.get(i);
+					this.firstRows[i] = first;
+					final long start = offsets.get(i) + Integer.BYTES;
+					final long end = start + this.rowCounts[i] * rowSize;
+					if (region == null || end - regionStart > region.capacity()) {
+						// Maps the next blocks fitting in a region
+						regionStart = start;
+						long regionEnd = end;
+						for (int j = i + 1; j < offsets.size()
+								&& offsets.get(j) + Integer.BYTES + counts.get(j) * rowSize - start <= maxRegionSize; ++j) {
+							regionEnd = offsets.get(j) + Integer.BYTES + counts.get(j) * rowSize;
+						}
+						region = this.channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+					}
+					this.blocks[i] = region.duplicate().position((int) (start - regionStart))
+							.limit((int) (end - regionStart)).slice().order(ORDER);
+					first += this.rowCounts[i];
+				}
+			} catch (final IOException e) {
+				this.channel.close();
+				throw e;
+			}
+		}
+
+		public List<Column> getColumns() {
+			return this.columns;
+		}
+
+		public long getRowCount() {
+			return this.rowCount;
+		}
+
+		private int offsetOf(final int column, final int rowCount) {
+			return ColumnarFile.offsetOf(this.columns, column, rowCount);
+		}
+
+		private int checkedIndex(final String name, final Type type) {
+			final int column = indexOf(this.columns, name);
+			if (this.columns.get(column).type != type) {
+				throw new IllegalArgumentException("Column " + name + " is not of type " + type);
+			}
+			return column;
+		}
+
+		/**
+		 * Calls the consumer with the values of an INT column, in row order.
+		 */
+		public void forEachInt(final String name, final IntConsumer consumer) {
+			final int column = checkedIndex(name, Type.INT);
+			for (int b = 0; b < this.blocks.length; ++b) {
+				final ByteBuffer values = this.blocks[b].duplicate().order(ORDER);
+				values.position(offsetOf(column, this.rowCounts[b]));
+				for (int row = 0; row < this.rowCounts[b]; ++row) {
+					consumer.accept(values.getInt());
+				}
+			}
+		}
+
+		/**
+		 * Calls the consumer with the values of a LONG column, in row order.
+		 */
+		public void forEachLong(final String name, final LongConsumer consumer) {
+			final int column = checkedIndex(name, Type.LONG);
+			for (int b = 0; b < this.blocks.length; ++b) {
+				final ByteBuffer values = this.blocks[b].duplicate().order(ORDER);
+				values.position(offsetOf(column, this.rowCounts[b]));
+				for (int row = 0; row < this.rowCounts[b]; ++row) {
+					consumer.accept(values.getLong());
+				}
+			}
+		}
+
+		/**
+		 * Sums the values of a column.
+		 */
+		public long sum(final String name) {
+			final long[] sum = {0};
+			if (this.columns.get(indexOf(this.columns, name)).type == Type.INT) {
+				forEachInt(name, value -> sum[0] += value);
+			} else {
+				forEachLong(name, value -> sum[0] += value);
+			}
+			return sum[0];
+		}
+
+		/**
+		 * Counts the rows whose value of an INT column matches the predicate.
+		 */
+		public long count(final String name, final IntPredicate predicate) {
+			final long[] count = {0};
+			forEachInt(name, value -> {
+				if (predicate.test(value)) {
+					++count[0];
+				}
+			});
+			return count[0];
+		}
+
+		/**
+		 * Gets the value of a column for a row.
+		 */
+		public long get(final String name, final long row) {
+			if (row < 0 || row >= this.rowCount) {
+				throw new IndexOutOfBoundsException("Row " + row + " of " + this.rowCount);
+			}
+			final int column = indexOf(this.columns, name);
+			int b = Arrays.binarySearch(this.firstRows, row);
+			if (b < 0) {
+				b = -b - 2;
+			}
+			final Type type = this.columns.get(column).type;
+			final int position = offsetOf(column, this.rowCounts[b]) + (int) (row - this.firstRows[b]) * type.size;
+			return type == Type.INT ? this.blocks[b].getInt(position) : this.blocks[b].getLong(position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package code4life;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bot taking samples, diagnosing them, gathering the molecules of the most valuable ones and producing them.
+ *
+ * Samples it cannot afford with the molecules left are sent back to the cloud.
+ */
+public class GreedyBot extends Bot {
+	/**
+	 * Turns waited at the molecules for the other robot to give some back, before giving up on the samples.
+	 */
+	private static final int PATIENCE = 5;
+
+	private int waited;
+
+	@Override
+	protected String decide() {
+		final List<Sample> tray = tray();
+		switch (this.me.target) {
+		case "SAMPLES":
+			if (tray.size() < Referee.MAX_TRAY) {
+				return connect(rankToTake());
+			}
+			return goTo("DIAGNOSIS");
+		case "DIAGNOSIS":
+			return atDiagnosis(tray);
+		case "MOLECULES":
+			return atMolecules(tray);
+		case "LABORATORY":
+			return atLaboratory(tray);
+		default:
+			return goTo("SAMPLES");
+		}
+	}
+
+	private String atDiagnosis(final List<Sample> tray) {
+		for (final Sample sample : tray) {
+			if (!sample.isDiagnosed()) {
+				return connect(sample.id);
+			}
+		}
+		for (final Sample sample : tray) {
+			if (!fits(List.of(sample))) {
+				return connect(sample.id);
+			}
+		}
+		if (tray.size() < Referee.MAX_TRAY) {
+			for (final Sample sample : byValue(cloud())) {
+				final List<Sample> planned = new ArrayList<>(plan(tray));
+				planned.add(sample);
+				if (fits(planned)) {
+					return connect(sample.id);
+				}
+			}
+		}
+		if (tray.isEmpty()) {
+			return goTo("SAMPLES");
+		}
+		return goTo(tray.stream().anyMatch(this::canProduce) ? "LABORATORY" : "MOLECULES");
+	}
+
+	private String atMolecules(final List<Sample> tray) {
+		final int[] missing = missing(plan(tray));
+		int molecule = -1;
+		for (int i = 0; i < missing.length; ++i) {
+			if (missing[i] > 0 && this.available[i] > 0 && (molecule < 0 || missing[i] > missing[molecule])) {
+				molecule = i;
+			}
+		}
+		if (molecule >= 0 && storageSize() < Referee.MAX_STORAGE) {
+			this.waited = 0;
+			return connect(MOLECULES.charAt(molecule));
+		}
+		if (tray.stream().anyMatch(this::canProduce)) {
+			return goTo("LABORATORY");
+		}
+		if (++this.waited > PATIENCE) {
+			this.waited = 0;
+			return goTo("DIAGNOSIS");
+		}
+		return WAIT;
+	}
+
+	private String atLaboratory(final List<Sample> tray) {
+		for (final Sample sample : tray) {
+			if (canProduce(sample)) {
+				return connect(sample.id);
+			}
+		}
+		if (!plan(tray).isEmpty()) {
+			return goTo("MOLECULES");
+		}
+		return goTo(tray.size() < Referee.MAX_TRAY ? "SAMPLES" : "DIAGNOSIS");
+	}
+
+	/**
+	 * Gets the rank of the next sample to take, higher as the robot gains expertise.
+	 */
+	protected int rankToTake() {
+		int expertise = 0;
+		for (final int count : this.me.expertise) {
+			expertise += count;
+		}
+		if (expertise < 4) {
+			return 1;
+		}
+		return expertise < 9 ? 2 : 3;
+	}
+
+	/**
+	 * Gets the value of a diagnosed sample, the samples of higher value being produced first.
+	 */
+	protected int value(final Sample sample) {
+		return sample.health;
+	}
+
+	private List<Sample> byValue(final List<Sample> candidates) {
+		final List<Sample> sorted = new ArrayList<>();
+		for (final Sample sample : candidates) {
+			if (sample.isDiagnosed()) {
+				sorted.add(sample);
+			}
+		}
+		sorted.sort(Comparator.comparingInt(this::value).reversed());
+		return sorted;
+	}
+
+	/**
+	 * Selects the diagnosed samples of the tray to produce, by value, as long as their molecules can be gathered.
+	 */
+	private List<Sample> plan(final List<Sample> tray) {
+		final List<Sample> planned = new ArrayList<>();
+		for (final Sample sample : byValue(tray)) {
+			planned.add(sample);
+			if (!fits(planned)) {
+				planned.remove(planned.size() - 1);
+			}
+		}
+		return planned;
+	}
+
+	private int[] missing(final List<Sample> planned) {
+		final int[] missing = new int[MOLECULES.length()];
+		for (int i = 0; i < missing.length; ++i) {
+			int total = 0;
+			for (final Sample sample : planned) {
+				total += need(sample, i);
+			}
+			missing[i] = Math.max(0, total - this.me.storage[i]);
+		}
+		return missing;
+	}
+
+	/**
+	 * Checks that the molecules missing to produce samples are left and can be carried.
+	 */
+	private boolean fits(final List<Sample> planned) {
+		final int[] missing = missing(planned);
+		int total = 0;
+		for (int i = 0; i < missing.length; ++i) {
+			if (missing[i] > this.available[i]) {
+				return false;
+			}
+			total += missing[i];
+		}
+		return total <= Referee.MAX_STORAGE - storageSize();
+	}
+}
@@ -0,0 +1,199 @@
+package code4life;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import code4life.ColumnarFile.Column;
+import code4life.ColumnarFile.Type;
+
+/**
+ * Results of the matches played by referees, stored in two columnar files of a directory.
+ *
+ * {@code matches.col} holds one row per match, its index in the file identifying the match. {@code turns.col} holds
+ * one row per player and turn, with the index of its match. Both files are written by blocks of their own, so that
+ * the turns of a match may be written before the match: opening the results drops the turns of matches lost in a
+ * crash.
+ */
+public final class MatchResults implements Consumer<MatchResults.Match>, Closeable {
+	public static final int PLAYER_COUNT = 2;
+	public static final String MATCHES_FILE = "matches.col";
+	public static final String TURNS_FILE = "turns.col";
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	public static final List<Column> MATCH_COLUMNS;
+	public static final List<Column> TURN_COLUMNS;
+
+	private static final String[] PLAYER_COLUMNS = {"score", "samples_produced", "molecules_taken",
+			"projects_completed", "death_round", "death_reason"};
+
+	static {
+		final List<Column> matches = new ArrayList<>();
+		matches.add(new Column("seed", Type.LONG));
+		matches.add(new Column("league", Type.INT));
+		matches.add(new Column("rounds", Type.INT));
+		for (int i = 0; i < PLAYER_COUNT; ++i) {
+			for (final String name : PLAYER_COLUMNS) {
+				matches.add(new Column(playerColumn(i, name), Type.INT));
+			}
+		}
+		MATCH_COLUMNS = Collections.unmodifiableList(matches);
+
+		final List<Column> turns = new ArrayList<>();
+		turns.add(new Column("match", Type.LONG));
+		for (final String name : new String[]{"round", "player", "score", "storage", "expertise", "samples_produced",
+				"molecules_taken", "projects_completed"}) {
+			turns.add(new Column(name, Type.INT));
+		}
+		TURN_COLUMNS = Collections.unmodifiableList(turns);
+	}
+
+	/**
+	 * Reason of the elimination of a player, stored by ordinal.
+	 */
+	public enum DeathReason {
+		NONE, INVALID_INPUT, INVALID_ACTION, TIMEOUT
+	}
+
+	public static final class PlayerResult {
+		public int score, samplesProduced, moleculesTaken, projectsCompleted;
+		public int deathRound = -1;
+		public DeathReason deathReason = DeathReason.NONE;
+	}
+
+	public static final class Turn {
+		public int round, player, score, storage, expertise, samplesProduced, moleculesTaken, projectsCompleted;
+	}
+
+	public static final class Match {
+		public long seed;
+		public int league, rounds;
+		public final PlayerResult[] players = new PlayerResult[PLAYER_COUNT];
+		public final List<Turn> turns = new ArrayList<>();
+	}
+
+	private final ColumnarFile.Writer matches;
+	private final ColumnarFile.Writer turns;
+
+	private MatchResults(final ColumnarFile.Writer matches, final ColumnarFile.Writer turns) {
+		this.matches = matches;
+		this.turns = turns;
+	}
+
+	/**
+	 * Opens the results of a directory to append matches, creating it if needed.
+	 */
+	public static MatchResults open(final Path dir) throws IOException {
+		return open(dir, BLOCK_SIZE);
+	}
+
+	/**
+	 * Opens the results of a directory to append matches, writing blocks of blockSize rows.
+	 */
+	public static MatchResults open(final Path dir, final int blockSize) throws IOException {
+		Files.createDirectories(dir);
+		final ColumnarFile.Writer matches = new ColumnarFile.Writer(dir.resolve(MATCHES_FILE), MATCH_COLUMNS,
+				blockSize);
+		ColumnarFile.Writer turns = null;
+		try {
+			turns = new ColumnarFile.Writer(dir.resolve(TURNS_FILE), TURN_COLUMNS, blockSize);
+			turns.truncate(firstOrphanTurn(dir, matches.getRowCount()));
+			return new MatchResults(matches, turns);
+		} catch (final IOException e) {
+			try {
+				matches.close();
+			} finally {
+				if (turns != null) {
+					turns.close();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds the first turn of a match not written, turns being stored in the order of their matches.
+	 */
+	private static long firstOrphanTurn(final Path dir, final long matchCount) throws IOException {
+		try (ColumnarFile.Reader turns = readTurns(dir)) {
+			long low = 0;
+			long high = turns.getRowCount();
+			while (low < high) {
+				final long middle = (low + high) >>> 1;
+				if (turns.get("match", middle) < matchCount) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	public static ColumnarFile.Reader readMatches(final Path dir) throws IOException {
+		return new ColumnarFile.Reader(dir.resolve(MATCHES_FILE));
+	}
+
+	public static ColumnarFile.Reader readTurns(final Path dir) throws IOException {
+		return new ColumnarFile.Reader(dir.resolve(TURNS_FILE));
+	}
+
+	/**
+	 * Gets the name of the column of a player result in the matches.
+	 */
+	public static String playerColumn(final int playerIdx, final String name) {
+		return "p" + playerIdx + "_" + name;
+	}
+
+	/**
+	 * Appends a match and its turns.
+	 */
+	@Override
+	public synchronized void accept(final Match match) {
+		final long[] row = new long[MATCH_COLUMNS.size()];
+		int column = 0;
+		row[column++] = match.seed;
+		row[column++] = match.league;
+		row[column++] = match.rounds;
+		for (final PlayerResult player : match.players) {
+			row[column++] = player.score;
+			row[column++] = player.samplesProduced;
+			row[column++] = player.moleculesTaken;
+			row[column++] = player.projectsCompleted;
+			row[column++] = player.deathRound;
+			row[column++] = player.deathReason.ordinal();
+		}
+		try {
+			final long index = this.matches.append(row);
+			for (final Turn turn : match.turns) {
+				this.turns.append(index, turn.round, turn.player, turn.score, turn.storage, turn.expertise,
+						turn.samplesProduced, turn.moleculesTaken, turn.projectsCompleted);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the buffered matches, then their turns.
+	 */
+	public synchronized void flush() throws IOException {
+		this.matches.flush();
+		this.turns.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			this.matches.close();
+		} finally {
+			this.turns.close();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package code4life;
+
+/**
+ * Greedy bot favouring the samples giving the expertise still missing for the science projects.
+ */
+public class ProjectBot extends GreedyBot {
+	private static final int PROJECT_BONUS = 10;
+
+	@Override
+	protected int value(final Sample sample) {
+		final int gain = MOLECULES.indexOf(sample.gain);
+		int value = sample.health;
+		if (gain >= 0) {
+			for (final int[] project : this.projects) {
+				if (isOpen(project) && project[gain] > this.me.expertise[gain]) {
+					value += PROJECT_BONUS;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Checks that a project is completed by neither robot.
+	 */
+	private boolean isOpen(final int[] project) {
+		return !isCompletedBy(this.me, project) && !isCompletedBy(this.other, project);
+	}
+
+	private static boolean isCompletedBy(final Robot robot, final int[] project) {
+		for (int i = 0; i < project.length; ++i) {
+			if (robot.expertise[i] < project[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,30 @@
+package code4life;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Bot playing a random command among those not making it lose, connecting to its module every other turn when it
+ * can.
+ */
+public class RandomBot extends Bot {
+	private final Random random;
+
+	public RandomBot(final long seed) {
+		this.random = new Random(seed);
+	}
+
+	@Override
+	protected String decide() {
+		final List<String> commands = legalCommands();
+		final List<String> connections = new ArrayList<>();
+		for (final String command : commands) {
+			if (command.startsWith("CONNECT")) {
+				connections.add(command);
+			}
+		}
+		final List<String> choices = !connections.isEmpty() && this.random.nextBoolean() ? connections : commands;
+		return choices.get(this.random.nextInt(choices.size()));
+	}
+}
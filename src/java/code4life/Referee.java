@@ -16,6 +16,8 @@ import java.util.Optional;
 import java.util.Properties;
 import java.util.Random;
 import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -40,6 +42,12 @@ public class Referee extends MultiReferee {
 	public static final int SCIENCE_PROJECT_VALUE = LEAGUE_LEVEL < 3 ? 30 : 50;
 	public static final int MAX_SCORE = 170;
 
+	/**
+	 * Recorder of the results of the referees created in the current thread. The referee plays in its constructor,
+	 * so that the recorder cannot be given as an argument.
+	 */
+	private static final ThreadLocal<Consumer<MatchResults.Match>> RECORDER = new ThreadLocal<>();
+
 	enum MoleculeType {
 		A(0), B(1), C(2), D(3), E(4);
 
@@ -62,6 +70,8 @@ public class Referee extends MultiReferee {
 		int[] storage, expertise;
 		boolean dead, attemptConnection, moved;
 		int eta, score, deadAt, index;
+		int samplesProduced, moleculesTaken, projectsCompleted;
+		MatchResults.DeathReason deathReason;
 		String message, connectionData;
 		List<Sample> tray;
 		Module from, target;
@@ -76,12 +86,14 @@ public class Referee extends MultiReferee {
 			this.index = index;
 			this.score = 0;
 			this.tray = new ArrayList<>(3);
+			this.deathReason = MatchResults.DeathReason.NONE;
 		}
 
-		public void die(final int round) {
+		public void die(final int round, final MatchResults.DeathReason reason) {
 			if (!this.dead) {
 				this.dead = true;
 				this.deadAt = round;
+				this.deathReason = reason;
 				this.score = -1;
 			}
 		}
@@ -106,7 +118,7 @@ public class Referee extends MultiReferee {
 	}
 
 	static class Sample {
-		public static int ENTITY_COUNT = 0;
+		public static final AtomicInteger ENTITY_COUNT = new AtomicInteger();
 
 		MoleculeType expertise;
 		int life;
@@ -201,6 +213,7 @@ public class Referee extends MultiReferee {
 			}
 
 			this.player.score += this.sample.life;
+			this.player.samplesProduced++;
 			if (this.sample.expertise != null) {
 				this.player.expertise[this.sample.expertise.index]++;
 			}
@@ -283,6 +296,7 @@ public class Referee extends MultiReferee {
 		@Override
 		public void apply(final Referee referee) {
 			this.player.storage[this.resourceType.index]++;
+			this.player.moleculesTaken++;
 			referee.molecules.put(this.resourceType, referee.molecules.get(this.resourceType) - 1);
 		}
 
@@ -339,6 +353,8 @@ public class Referee extends MultiReferee {
 	List<Sample> storedSamples;
 	List<ScienceProject> scienceProjects;
 	private long seed;
+	private Consumer<MatchResults.Match> recorder;
+	private MatchResults.Match match;
 	Map<MoleculeType, Integer> molecules;
 	Map<ModulePair, Integer> distances;
 
@@ -346,12 +362,30 @@ public class Referee extends MultiReferee {
 		super(is, out, err);
 	}
 
+	/**
+	 * Creates referees recording their results.
+	 */
+	public static RefereeSession.Factory recordingTo(final Consumer<MatchResults.Match> recorder) {
+		return (is, out, err) -> {
+			RECORDER.set(recorder);
+			try {
+				new Referee(is, out, err);
+			} finally {
+				RECORDER.remove();
+			}
+		};
+	}
+
 	@Override
 	protected void initReferee(final int playerCount, final Properties prop) throws InvalidFormatException {
 		this.seed = Long.valueOf(prop.getProperty("seed", String.valueOf(new Random(System.currentTimeMillis()).nextLong())));
 
 		this.random = new Random(this.seed);
 
+		// results
+		this.recorder = RECORDER.get();
+		this.match = (this.recorder == null) ? null : new MatchResults.Match();
+
 		// map
 		initMap();
 
@@ -516,7 +550,7 @@ public class Referee extends MultiReferee {
 			final Sample sample = this.samplePool.get(rank).pop();
 			this.samplePool.get(rank).add(sample.clone());
 
-			sample.id = Sample.ENTITY_COUNT++;
+			sample.id = Sample.ENTITY_COUNT.getAndIncrement();
 			sample.rank = rank;
 			sample.setDiscovered(true);
 			if (LEAGUE_LEVEL <= 1) {
@@ -681,11 +715,14 @@ public class Referee extends MultiReferee {
 
 			throw new InvalidInputException(EXPECTED_BY_LEAGUE_LEVEL[LEAGUE_LEVEL], line);
 
-		} catch (final LostException | InvalidInputException e) {
-			player.die(round);
+		} catch (final LostException e) {
+			player.die(round, MatchResults.DeathReason.INVALID_ACTION);
+			throw e;
+		} catch (final InvalidInputException e) {
+			player.die(round, MatchResults.DeathReason.INVALID_INPUT);
 			throw e;
 		} catch (final Exception e) {
-			player.die(round);
+			player.die(round, MatchResults.DeathReason.INVALID_INPUT);
 			throw new InvalidInputException(EXPECTED_BY_LEAGUE_LEVEL[LEAGUE_LEVEL], line);
 		}
 	}
@@ -786,7 +823,7 @@ public class Referee extends MultiReferee {
 				this.cloudRequests.put(sample, transfer);
 			} else if (LEAGUE_LEVEL == 0) {
 				final Sample clonedSample = sample.clone();
-				clonedSample.id = Sample.ENTITY_COUNT++;
+				clonedSample.id = Sample.ENTITY_COUNT.getAndIncrement();
 				clonedSample.setDiscovered(true);
 				transfer.setClone(clonedSample);
 				this.cloudRequests.put(clonedSample, transfer);
@@ -818,7 +855,7 @@ public class Referee extends MultiReferee {
 		// Just recycle it right back in there.
 		this.samplePool.get(rank - 1).add(sample.clone());
 
-		sample.id = Sample.ENTITY_COUNT++;
+		sample.id = Sample.ENTITY_COUNT.getAndIncrement();
 		sample.rank = rank - 1;
 		sample.setDiscovered(false);
 
@@ -865,6 +902,7 @@ public class Referee extends MultiReferee {
 						this.scienceProjects.remove(project);
 					});
 					player.score += SCIENCE_PROJECT_VALUE;
+					player.projectsCompleted++;
 					this.projectCompletions.add(new ProjectCompletion(player, project));
 					addToolTip(player.index, translate("ProjectTooltip", player.index));
 				}
@@ -875,6 +913,47 @@ public class Referee extends MultiReferee {
 			r.run();
 		}
 
+		if (this.match != null) {
+			recordTurn(round);
+		}
+	}
+
+	private void recordTurn(final int round) {
+		for (final PlayerData player : this.players) {
+			final MatchResults.Turn turn = new MatchResults.Turn();
+			turn.round = round;
+			turn.player = player.index;
+			turn.score = player.score;
+			turn.storage = Arrays.stream(player.storage).sum();
+			turn.expertise = Arrays.stream(player.expertise).sum();
+			turn.samplesProduced = player.samplesProduced;
+			turn.moleculesTaken = player.moleculesTaken;
+			turn.projectsCompleted = player.projectsCompleted;
+			this.match.turns.add(turn);
+		}
+	}
+
+	@Override
+	protected void onGameOver(final int round) {
+		if (this.match == null) {
+			return;
+		}
+		this.match.seed = this.seed;
+		this.match.league = LEAGUE_LEVEL;
+		this.match.rounds = round;
+		for (final PlayerData player : this.players) {
+			final MatchResults.PlayerResult result = new MatchResults.PlayerResult();
+			result.score = player.score;
+			result.samplesProduced = player.samplesProduced;
+			result.moleculesTaken = player.moleculesTaken;
+			result.projectsCompleted = player.projectsCompleted;
+			if (player.dead) {
+				result.deathRound = player.deadAt;
+				result.deathReason = player.deathReason;
+			}
+			this.match.players[player.index] = result;
+		}
+		this.recorder.accept(this.match);
 	}
 
 	private boolean completedProject(final PlayerData player, final ScienceProject project) {
@@ -1040,6 +1119,11 @@ public class Referee extends MultiReferee {
 		return "$" + playerIdx + ": Eliminated!";
 	}
 
+	@Override
+	protected boolean isQueryingSimultaneously() {
+		return true;
+	}
+
 	@Override
 	protected int getMillisTimeForRound() {
 		return 50;
@@ -1098,7 +1182,7 @@ public class Referee extends MultiReferee {
 	@Override
 	protected void setPlayerTimeout(final int frame, final int round, final int playerIdx) {
 		final PlayerData player = this.players.get(playerIdx);
-		player.die(round);
+		player.die(round, MatchResults.DeathReason.TIMEOUT);
 	}
 
 	@Override
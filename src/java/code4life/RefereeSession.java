@@ -0,0 +1,205 @@
+package code4life;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a referee in the current thread, without any process.
+ *
+ * The referee protocol ({@code ###Input}, {@code ###Output}, {@code ###End}) is decoded from the output of the
+ * referee and the player outputs are fed back to its input, as requested.
+ */
+public class RefereeSession implements Runnable {
+	private static final Pattern INPUT_PATTERN = Pattern.compile("^###Input (?<player>\\d+)$");
+	private static final Pattern OUTPUT_PATTERN = Pattern.compile("^###Output (?<player>\\d+) (?<lineCount>\\d+)$");
+	private static final Pattern END_PATTERN = Pattern.compile("^###End (?<ranking>.+)$");
+	private static final Pattern LINE_BREAK_PATTERN = Pattern.compile("[\\r\\n\\u2028\\u2029\\u0085]");
+	private static final byte[] EMPTY_LINE = { '\n' };
+
+	/**
+	 * Players of the session, receiving the inputs from the referee and providing their outputs.
+	 */
+	public interface Players {
+		/**
+		 * Sends the input lines to a player.
+		 */
+		void onInput(int playerIdx, String[] lines);
+
+		/**
+		 * Gets the output of a player, blocking until it is available.
+		 *
+		 * @throws IOException to abort the session
+		 */
+		String[] onOutput(int playerIdx, int lineCount) throws IOException;
+
+		/**
+		 * Notifies the end of the game.
+		 *
+		 * @param ranking ranking of the players, as given by the referee. Players with the same rank are not separated by
+		 *        a space ({@code "01"} for a draw)
+		 */
+		void onEnd(String ranking);
+	}
+
+	/**
+	 * Creates the referee, which plays the whole game in its constructor.
+	 */
+	public interface Factory {
+		void create(InputStream is, PrintStream out, PrintStream err) throws IOException;
+	}
+
+	private static class OutputRequest {
+		int player, lineCount;
+
+		public OutputRequest(final int player, final int lineCount) {
+			this.player = player;
+			this.lineCount = lineCount;
+		}
+	}
+
+	private final Players players;
+	private final Factory factory;
+	private final LinkedList<OutputRequest> requests;
+
+	public RefereeSession(final Players players) {
+		this(players, Referee::new);
+	}
+
+	public RefereeSession(final Players players, final Factory factory) {
+		this.players = players;
+		this.factory = factory;
+		this.requests = new LinkedList<>();
+	}
+
+	@Override
+	public void run() {
+		final PrintStream out = new PrintStream(new RefereeOutputStream(), true, StandardCharsets.UTF_8);
+		final PrintStream err = new PrintStream(OutputStream.nullOutputStream());
+		try {
+			this.factory.create(new PlayerInputStream(), out, err);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private byte[] readPlayerOutputs() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		while (!this.requests.isEmpty()) {
+			final OutputRequest request = this.requests.pop();
+			final String[] lines = this.players.onOutput(request.player, request.lineCount);
+			for (final String line : lines) {
+				// A line break in an output would make the referee read more lines than requested
+				bytes.write(LINE_BREAK_PATTERN.matcher(line).replaceAll(" ").getBytes(StandardCharsets.UTF_8));
+				bytes.write('\n');
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Input of the referee, reading the player outputs only when the referee needs them.
+	 *
+	 * The stream never ends: a {@link java.util.Scanner} seeing the end once would not read anymore. Reading while
+	 * no output is requested cannot block either, the requests coming from the referee itself, nor return 0, which
+	 * readers take for an error: the referee reads an empty line instead, as the output of a player saying nothing.
+	 */
+	private class PlayerInputStream extends InputStream {
+		private byte[] buffer = "###Start 2\n".getBytes(StandardCharsets.UTF_8);
+		private int position = 0;
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (this.position >= this.buffer.length) {
+				this.buffer = readPlayerOutputs();
+				this.position = 0;
+				if (this.buffer.length == 0) {
+					this.buffer = EMPTY_LINE;
+				}
+			}
+			final int count = Math.min(len, this.buffer.length - this.position);
+			System.arraycopy(this.buffer, this.position, b, off, count);
+			this.position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.length - this.position;
+		}
+	}
+
+	/**
+	 * Output of the referee, decoding the protocol line by line.
+	 */
+	private class RefereeOutputStream extends OutputStream {
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private List<String> inputLines;
+		private int inputPlayer;
+
+		@Override
+		public void write(final int b) {
+			if (b == '\n') {
+				handleLine(new String(this.line.toByteArray(), StandardCharsets.UTF_8).trim());
+				this.line.reset();
+			} else {
+				this.line.write(b);
+			}
+		}
+
+		private void handleLine(final String line) {
+			Matcher match = INPUT_PATTERN.matcher(line);
+			if (match.matches()) {
+				flushInput();
+				this.inputPlayer = Integer.parseInt(match.group("player"));
+				this.inputLines = new ArrayList<>();
+				return;
+			}
+
+			match = OUTPUT_PATTERN.matcher(line);
+			if (match.matches()) {
+				flushInput();
+				RefereeSession.this.requests.add(new OutputRequest(
+						Integer.parseInt(match.group("player")),
+						Integer.parseInt(match.group("lineCount"))));
+				return;
+			}
+
+			match = END_PATTERN.matcher(line);
+			if (match.matches()) {
+				flushInput();
+				RefereeSession.this.players.onEnd(match.group("ranking"));
+				return;
+			}
+
+			if (this.inputLines != null) {
+				this.inputLines.add(line);
+			}
+		}
+
+		private void flushInput() {
+			if (this.inputLines != null) {
+				RefereeSession.this.players.onInput(this.inputPlayer, this.inputLines.toArray(new String[this.inputLines.size()]));
+				this.inputLines = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+(ns integration.load
+  (:require [clojure.pprint :refer [print-table]]
+            [integration.story :as s]
+            [integration.common :refer [authenticate auth-header]]
+            [snow-hall.metrics :refer [normalize-route]])
+  (:import [java.util.concurrent ConcurrentLinkedQueue TimeUnit]))
+
+; Load generator driving a running hall with the steps of the stories.
+; Sessions of two virtual visitors arrive at a fixed rate. Each session
+; registers its visitors, gathers them, starts a round and plays it to the
+; end, every request being timed per route.
+; Run with `(integration.load/run {:base-url "http://localhost:3000"})` from
+; the REPL, or `lein run -m integration.load http://localhost:3000 20 60`.
+
+(def default-options
+  {:base-url s/*base-url*
+   :rate 10
+   :duration 60
+   :games [:tic-tac-toe :rpsls]
+   :grace 30})
+
+(defn- status-of
+  [^Throwable e]
+  (if-let [[_ status] (re-find #"Failed \[(\d+)\]" (str (.getMessage e)))]
+    status
+    "error"))
+
+(defn- timed
+  "Runs a request, recording its latency and outcome for its route."
+  [samples method url f]
+  (let [route (normalize-route {:request-method method :uri url})
+        start (System/nanoTime)]
+    (try
+      (let [result (f)]
+        (.add ^ConcurrentLinkedQueue samples [route (- (System/nanoTime) start) nil])
+        result)
+      (catch Throwable e
+        (.add ^ConcurrentLinkedQueue samples [route (- (System/nanoTime) start) (status-of e)])
+        (throw e)))))
+
+(defn- get!
+  [samples url player]
+  (timed samples :get url #(s/get url {"Authorization" (auth-header player)})))
+
+(defn- post!
+  [samples url content]
+  (timed samples :post url #(s/post url content)))
+
+; Scenarios
+
+(defn- gather!
+  "Registers two visitors and starts a round of the game between them."
+  [samples game-name options]
+  (let [[creator guest] (repeatedly 2 #(post! samples "/visitors" {}))
+        gathering (post! samples "/gatherings" {"user" (authenticate creator)
+                                                "game-id" game-name
+                                                "options" options})
+        token (some #(get % "token") (gathering "players"))]
+    (post! samples
+           (str "/gatherings/" (gathering "id"))
+           {"user" (authenticate guest)
+            "token" token})
+    (let [round (post! samples "/rounds" {"user" (authenticate creator)
+                                          "gathering" (gathering "id")})]
+      [(round "id") creator guest])))
+
+(defn- play-solo!
+  "Registers a visitor and starts a round of the game against the house bot."
+  [samples game-name options]
+  (let [visitor (post! samples "/visitors" {})
+        gathering (post! samples "/gatherings" {"user" (authenticate visitor)
+                                                "game-id" game-name
+                                                "options" options
+                                                "house-bot" true})
+        round (post! samples "/rounds" {"user" (authenticate visitor)
+                                        "gathering" (gathering "id")})]
+    [(round "id") visitor]))
+
+(defn- play!
+  "Plays a move, waiting for the engine to answer, then lets the other
+  player read its messages."
+  [samples round player other move]
+  (let [url (str "/rounds/" round "/messages")]
+    (post! samples url {"user" (authenticate player)
+                        "move" move
+                        "sync" true})
+    (get! samples url other)))
+
+(def tic-tac-toe-moves
+  [[0 0] [2 2] [1 1] [2 1] [0 2] [2 0]])
+
+(defn- play-tic-tac-toe!
+  [samples]
+  (let [[round creator guest] (gather! samples "Tic Tac Toe" {})]
+    (doseq [[move [player other]] (map vector
+                                       tic-tac-toe-moves
+                                       (cycle [[creator guest] [guest creator]]))]
+      (play! samples round player other move))
+    (get! samples (str "/rounds/" round "/state") creator)))
+
+(defn- answered?
+  "Tests if the bot played its move on a board."
+  [board]
+  (= (count (filter #{\X} board)) (count (filter #{\O} board))))
+
+(defn- play-tic-tac-toe-bot!
+  "Plays the first free cell each time the bot answered, until the end."
+  [samples]
+  (let [[round visitor] (play-solo! samples "Tic Tac Toe" {})
+        url (str "/rounds/" round "/messages")]
+    (loop [polls 0]
+      (let [content (get (get! samples (str "/rounds/" round "/state") visitor)
+                         "content")]
+        (when (and (re-matches #"[XO-]+" (str content)) (< polls 100))
+          (if (answered? content)
+            (let [cell (.indexOf ^String content "-")]
+              (post! samples url {"user" (authenticate visitor)
+                                  "move" [(quot cell 3) (mod cell 3)]
+                                  "sync" true}))
+            (Thread/sleep 1))
+          (recur (inc polls)))))))
+
+(defn- play-rpsls!
+  [samples]
+  (let [[round creator guest] (gather! samples
+                                       "Rock Paper Scissors Lizard Spock"
+                                       {"win-score" 1})]
+    (play! samples round creator guest "rock")
+    (play! samples round guest creator "paper")
+    (get! samples (str "/rounds/" round "/state") creator)))
+
+(def scenarios
+  {:tic-tac-toe play-tic-tac-toe!
+   :tic-tac-toe-bot play-tic-tac-toe-bot!
+   :rpsls play-rpsls!})
+
+; Report
+
+(defn- percentile
+  [sorted p]
+  (when (seq sorted)
+    (nth sorted (min (dec (count sorted))
+                     (int (Math/floor (* p (count sorted))))))))
+
+(defn- ->ms
+  [nanos]
+  (when nanos
+    (format "%.1f" (/ nanos 1e6))))
+
+(defn summarize
+  "Computes the statistics per route of the recorded samples."
+  [samples elapsed-s]
+  (for [[route route-samples] (sort-by key (group-by first samples))
+        :let [latencies (vec (sort (map second route-samples)))
+              errors (keep #(nth % 2) route-samples)
+              n (count route-samples)]]
+    {:route route
+     :requests n
+     :throughput (format "%.1f/s" (/ n elapsed-s))
+     :errors (count errors)
+     :error-rate (format "%.2f%%" (* 100.0 (/ (count errors) n)))
+     :statuses (frequencies errors)
+     :p50 (->ms (percentile latencies 0.5))
+     :p99 (->ms (percentile latencies 0.99))
+     :p999 (->ms (percentile latencies 0.999))
+     :max (->ms (peek latencies))}))
+
+; Driver
+
+(defn run
+  "Starts sessions at the given rate (per second) for duration seconds, then
+  waits up to grace seconds for the running sessions and prints a report.
+  Returns the statistics per route."
+  [options]
+  (let [{:keys [base-url rate duration games grace]} (merge default-options options)
+        samples (ConcurrentLinkedQueue.)
+        sessions (atom {:started 0 :completed 0 :failed 0})
+        period (long (/ 1e9 rate))
+        start (System/nanoTime)
+        end (+ start (* duration 1000000000))]
+    (binding [s/*base-url* base-url]
+      (let [running
+            (loop [next-start start
+                   i 0
+                   running []]
+              (if (>= next-start end)
+                running
+                (let [wait (- next-start (System/nanoTime))]
+                  (when (pos? wait)
+                    (.sleep TimeUnit/NANOSECONDS wait))
+                  (swap! sessions update :started inc)
+                  (let [scenario (scenarios (nth games (mod i (count games))))
+                        session (future
+                                  (try
+                                    (scenario samples)
+                                    (swap! sessions update :completed inc)
+                                    (catch Throwable _
+                                      (swap! sessions update :failed inc))))]
+                    (recur (+ next-start period) (inc i) (conj running session))))))
+            grace-end (+ (System/currentTimeMillis) (* grace 1000))]
+        (doseq [session running]
+          (deref session (max 0 (- grace-end (System/currentTimeMillis))) nil))))
+    (let [elapsed-s (/ (- (System/nanoTime) start) 1e9)
+          stats (summarize (vec samples) elapsed-s)]
+      (println (format "%d sessions started, %d completed, %d failed in %.1fs"
+                       (:started @sessions)
+                       (:completed @sessions)
+                       (:failed @sessions)
+                       elapsed-s))
+      (println (format "%d requests, %.1f requests/s"
+                       (count samples)
+                       (/ (count samples) elapsed-s)))
+      (print-table [:route :requests :throughput :errors :error-rate
+                    :p50 :p99 :p999 :max]
+                   stats)
+      stats)))
+
+(defn -main
+  "Runs the load test: base-url, rate (sessions/s) and duration (s)."
+  [& [base-url rate duration]]
+  (run (cond-> {}
+         base-url (assoc :base-url base-url)
+         rate (assoc :rate (Double/parseDouble rate))
+         duration (assoc :duration (Long/parseLong duration))))
+  (shutdown-agents))
@@ -8,7 +8,9 @@
 
 (def server (atom nil))
 (def port 4321)
-(def base-url (str "http://localhost:" port))
+(def ^:dynamic *base-url*
+  "URL of the server driven by the steps. Bind it to drive another server."
+  (str "http://localhost:" port))
 
 (defn ensure-server 
   []
@@ -33,7 +35,7 @@
 
 (defn- get-content-type
   [value]
-  (first (str/split value #";")))
+  (first (str/split (or value "") #";")))
 
 (defn- handle
   [response]
@@ -45,29 +47,30 @@
     (if body 
       (case (get-content-type (:content-type headers))
         "application/json" (json/read-str body)
-        "application/octet-stream" (slurp body)) 
+        "application/octet-stream" (slurp body)
+        body)
       nil)))
 
 (defn get
   ([url]
-   (handle (http/get (str base-url url))))
+   (handle (http/get (str *base-url* url))))
   ([url headers]
-   (handle (http/get (str base-url url) {:headers headers}))))
+   (handle (http/get (str *base-url* url) {:headers headers}))))
 
 (defn- request-with-body
   [method url content]
   (let [options {:headers {"Content-Type" "application/json"}
                  :body (json/write-str content)}]
-    (handle (method (str base-url url) options))))
+    (handle (method (str *base-url* url) options))))
 
 (defn post
   ([url]
-   (handle (http/post (str base-url url))))
+   (handle (http/post (str *base-url* url))))
   ([url content]
    (request-with-body http/post url content)))
 
 (defn put
   ([url]
-   (handle (http/put (str base-url url))))
+   (handle (http/put (str *base-url* url))))
   ([url content]
    (request-with-body http/put url content)))
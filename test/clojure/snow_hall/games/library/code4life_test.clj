@@ -0,0 +1,200 @@
+(ns snow-hall.games.library.code4life-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.core.async :as async :refer [<!! offer!]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.library.code4life :as m])
+  (:import [code4life Bot BotPlayers ColumnarFile$Reader MatchResults MatchResults$DeathReason MatchResults$Match
+            MatchResults$PlayerResult MatchResults$Turn Referee RefereeSession RefereeSession$Factory
+            RefereeSession$Players]
+           [java.io IOException PrintStream]
+           [java.util Scanner]
+           [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(def end-messages #{"WIN" "LOSS" "DRAW" "ABORTED"})
+
+(defn play-until-end
+  "Plays the move for a player until the end of the round.
+  Returns the end message of the player."
+  [{:keys [in out]} move]
+  (future
+    (loop []
+      (let [message (<!! out)]
+        (cond
+          (nil? message) nil
+          (end-messages message) message
+          :else (do (when move (offer! in move))
+                    (recur)))))))
+
+(deftest ranking->messages []
+  (testing "reads the winner"
+    (is (= ["WIN" "LOSS"] (m/ranking->messages "0 1")))
+    (is (= ["LOSS" "WIN"] (m/ranking->messages "1 0"))))
+  (testing "reads draws"
+    (is (= ["DRAW" "DRAW"] (m/ranking->messages "01")))))
+
+(deftest move->lines []
+  (testing "pads missing lines"
+    (is (= ["WAIT" ""] (seq (m/move->lines "WAIT" 2)))))
+  (testing "drops extra lines"
+    (is (= ["WAIT"] (seq (m/move->lines "WAIT\nWAIT" 1))))))
+
+(deftest play-round []
+  (testing "plays a full round in-process"
+    (let [round (m/create-and-start {:turn-timeout 1000})
+          [io1 io2] (game/ios round)
+          r1 (play-until-end io1 "WAIT")
+          r2 (play-until-end io2 "WAIT")]
+      (is (= "DRAW" (deref r1 10000 :timeout)))
+      (is (= "DRAW" (deref r2 10000 :timeout)))))
+
+  (testing "makes players missing their deadline lose"
+    (let [round (m/create-and-start {:turn-timeout 10})
+          [io1 io2] (game/ios round)
+          r1 (play-until-end io1 nil)
+          r2 (play-until-end io2 "WAIT")]
+      (is (= "LOSS" (deref r1 10000 :timeout)))
+      (is (= "WIN" (deref r2 10000 :timeout)))))
+
+  (testing "aborts stopped rounds"
+    (let [round (m/create-and-start {:turn-timeout 1000})
+          [io1 io2] (game/ios round)
+          r1 (play-until-end io1 nil)
+          r2 (play-until-end io2 nil)]
+      (game/stop round)
+      (is (= "ABORTED" (deref r1 10000 :timeout)))
+      (is (= "ABORTED" (deref r2 10000 :timeout))))))
+
+(deftest query-simultaneously []
+  (let [events (atom [])
+        players (reify RefereeSession$Players
+                  (onInput [_ player _]
+                    (swap! events conj [:input player]))
+                  (onOutput [_ player line-count]
+                    (swap! events conj [:output player])
+                    (if (< (count @events) 10)
+                      (m/move->lines "WAIT" line-count)
+                      (throw (IOException. "Enough"))))
+                  (onEnd [_ _]))]
+    (try
+      (.run (RefereeSession. players))
+      (catch Exception _))
+    (testing "sends the inputs of a round to all players before reading their outputs"
+      (is (= [[:input 0] [:input 1]
+              [:input 0] [:input 1] [:output 0] [:output 1]
+              [:input 0] [:input 1] [:output 0] [:output 1]]
+             (take 10 @events))))))
+
+(deftest read-outputs []
+  (let [read-lines (atom [])
+        players (reify RefereeSession$Players
+                  (onInput [_ _ _])
+                  (onOutput [_ _ _] (into-array String ["A\rB"]))
+                  (onEnd [_ _]))
+        factory (reify RefereeSession$Factory
+                  (create [_ is out _]
+                    (let [s (Scanner. is)]
+                      (swap! read-lines conj (.nextLine s))
+                      (.println ^PrintStream out "###Output 0 1")
+                      (swap! read-lines conj (.nextLine s))
+                      (swap! read-lines conj (.nextLine s))
+                      (.println ^PrintStream out "###Output 0 1")
+                      (swap! read-lines conj (.nextLine s)))))]
+    (.run (RefereeSession. players factory))
+    (testing "keeps each output on one line"
+      (is (= "A B" (get @read-lines 1))))
+    (testing "reads an empty line instead of the end when no output is requested"
+      (is (= ["###Start 2" "A B" "" "A B"] @read-lines)))))
+
+(deftest read-options []
+  (testing "reads the deadline of the turns"
+    (is (= {:turn-timeout 30000} (m/read-options {})))
+    (is (= {:turn-timeout 500} (m/read-options {"turn-timeout" 500}))))
+  (testing "rejects invalid deadlines"
+    (is (thrown? IllegalArgumentException (m/read-options {"turn-timeout" 0})))
+    (is (thrown? IllegalArgumentException (m/read-options {"turn-timeout" "fast"})))
+    (is (thrown? IllegalArgumentException (m/read-options {"turn-timeout" (inc m/max-turn-timeout)})))))
+
+(deftest record-results []
+  (let [dir (Files/createTempDirectory "results" (make-array FileAttribute 0))
+        results (MatchResults/open dir)
+        factory (m/recording-factory (delay results))]
+    (testing "records the matches and their turns"
+      (dotimes [_ 2]
+        (let [round (m/create-and-start {:turn-timeout 1000} factory)
+              [io1 io2] (game/ios round)
+              r1 (play-until-end io1 "WAIT")
+              r2 (play-until-end io2 "GOTO SAMPLES")]
+          (is (= "DRAW" (deref r1 10000 :timeout)))
+          (deref r2 10000 :timeout)))
+      (.close results)
+      (with-open [matches (MatchResults/readMatches dir)
+                  turns (MatchResults/readTurns dir)]
+        (is (= 2 (.getRowCount matches)))
+        (is (= 0 (.sum matches "p0_score")))
+        (is (= 2 (.count matches "rounds" (reify java.util.function.IntPredicate
+                                            (test [_ rounds] (pos? rounds))))))
+        (is (= (* 2 (.sum matches "rounds")) (.getRowCount turns)))
+        (is (= 1 (.get turns "match" (dec (.getRowCount turns)))))))
+    (testing "appends to existing results"
+      (with-open [results (MatchResults/open dir)]
+        (is (some? results)))
+      (with-open [matches (MatchResults/readMatches dir)]
+        (is (= 2 (.getRowCount matches)))))))
+
+(defn- append-matches!
+  "Appends matches of seed + 1 turns."
+  [results seeds]
+  (doseq [seed seeds]
+    (let [match (MatchResults$Match.)]
+      (set! (.-seed match) seed)
+      (dotimes [i 2]
+        (aset (.-players match) i (MatchResults$PlayerResult.)))
+      (dotimes [round (inc seed)]
+        (let [turn (MatchResults$Turn.)]
+          (set! (.-round turn) round)
+          (.add (.-turns match) turn)))
+      (.accept results match))))
+
+(deftest recover-results []
+  (let [dir (Files/createTempDirectory "results" (make-array FileAttribute 0))
+        ; Left without closing, as after a crash
+        crashed (MatchResults/open dir 4)]
+    (append-matches! crashed (range 5))
+    (testing "drops the turns of the matches not written"
+      (with-open [results (MatchResults/open dir 4)]
+        (with-open [matches (MatchResults/readMatches dir)
+                    turns (MatchResults/readTurns dir)]
+          (is (= 4 (.getRowCount matches)))
+          (is (= 10 (.getRowCount turns)))
+          (is (= 3 (.get turns "match" 9))))
+        (testing "and appends after them"
+          (append-matches! results [5])
+          (.flush results)
+          (with-open [turns (MatchResults/readTurns dir)]
+            (is (= 16 (.getRowCount turns)))
+            (is (= 4 (.get turns "match" 15)))))))
+    (testing "reads files mapped by several regions"
+      (with-open [turns (ColumnarFile$Reader. (.resolve dir MatchResults/TURNS_FILE) 400)]
+        (is (= [0 1 1 2 2 2 3 3 3 3 4 4 4 4 4 4]
+               (map #(.get turns "match" %) (range 16))))
+        (is (= (+ 0 1 3 6 15) (.sum turns "round")))))))
+
+(defn- play-bots
+  "Plays a match between two bots in-process. Returns the recorded match."
+  [name1 name2]
+  (let [matches (atom [])
+        players (BotPlayers. (into-array Bot [(Bot/create name1 1) (Bot/create name2 2)]))]
+    (.run (RefereeSession. players (Referee/recordingTo (reify java.util.function.Consumer
+                                                                   (accept [_ match] (swap! matches conj match))))))
+    (first @matches)))
+
+(deftest baseline-bots []
+  (testing "plays full matches without losing"
+    (doseq [[name1 name2] [["random" "random"] ["random" "greedy"] ["greedy" "project"]]]
+      (let [match (play-bots name1 name2)]
+        (is (<= 199 (.-rounds match)))
+        (is (every? #(= MatchResults$DeathReason/NONE (.-deathReason %)) (.-players match))))))
+  (testing "produces samples"
+    (let [match (play-bots "greedy" "project")]
+      (is (every? #(pos? (.-samplesProduced %)) (.-players match))))))
@@ -0,0 +1,72 @@
+(ns snow-hall.games.library.external-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.library.code4life-test :refer [play-until-end]]
+            [snow-hall.games.library.external :as m]))
+
+(def command
+  "Runs the Code4Life referee in its own JVM."
+  [(str (System/getProperty "java.home") "/bin/java")
+   "-cp" (System/getProperty "java.class.path")
+   "code4life.Referee"])
+
+(deftest play-round []
+  (let [pool (m/create-pool command false {:pool-size 1})
+        multiplexer (m/create-multiplexer {:threads 1})]
+    (testing "plays a full round with a referee process"
+      (let [round (m/create-and-start pool multiplexer {:turn-timeout 5000})
+            [io1 io2] (game/ios round)
+            r1 (play-until-end io1 "WAIT")
+            r2 (play-until-end io2 "WAIT")]
+        (is (= "DRAW" (deref r1 30000 :timeout)))
+        (is (= "DRAW" (deref r2 30000 :timeout)))))
+
+    (testing "makes players missing their deadline lose"
+      (let [round (m/create-and-start pool multiplexer {:turn-timeout 50})
+            [io1 io2] (game/ios round)
+            r1 (play-until-end io1 nil)
+            r2 (play-until-end io2 "WAIT")]
+        (is (= "LOSS" (deref r1 30000 :timeout)))
+        (is (= "WIN" (deref r2 30000 :timeout)))))
+
+    (testing "aborts stopped rounds"
+      (let [round (m/create-and-start pool multiplexer {:turn-timeout 5000})
+            [io1 io2] (game/ios round)
+            r1 (play-until-end io1 nil)
+            r2 (play-until-end io2 nil)]
+        (game/stop round)
+        (is (= "ABORTED" (deref r1 30000 :timeout)))
+        (is (= "ABORTED" (deref r2 30000 :timeout)))))
+
+    (testing "plays rounds side by side on one thread"
+      (let [rounds (repeatedly 3 #(m/create-and-start pool multiplexer {:turn-timeout 5000}))
+            results (doall (for [round rounds
+                                 io (game/ios round)]
+                             (play-until-end io "WAIT")))]
+        (is (= (repeat 6 "DRAW") (map #(deref % 30000 :timeout) results)))))
+
+    (testing "sleeps without sessions"
+      (let [^Thread thread (first (:threads multiplexer))]
+        (loop [tries 0]
+          (when-not (or (= Thread$State/WAITING (.getState thread)) (> tries 200))
+            (Thread/sleep 5)
+            (recur (inc tries))))
+        (is (= Thread$State/WAITING (.getState thread)))))
+
+    (testing "stops the referees on shutdown"
+      (let [round (m/create-and-start pool multiplexer {:turn-timeout 5000})
+            [io1 io2] (game/ios round)
+            r1 (play-until-end io1 nil)
+            r2 (play-until-end io2 nil)]
+        (m/shutdown-pools!)
+        (is (not= :timeout (deref r1 30000 :timeout)))
+        (is (not= :timeout (deref r2 30000 :timeout)))
+        (is (empty? (:idle pool)))
+        (is (empty? (:busy pool)))))
+    (m/shutdown! pool)))
+
+(deftest read-options []
+  (let [definition (m/referee-definition "Foreign" command)]
+    (testing "validates the deadline of the turns"
+      (is (= {:turn-timeout 100} (game/read-options definition {"turn-timeout" 100})))
+      (is (thrown? IllegalArgumentException (game/read-options definition {"turn-timeout" -1}))))))
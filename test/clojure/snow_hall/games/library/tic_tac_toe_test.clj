@@ -0,0 +1,105 @@
+(ns snow-hall.games.library.tic-tac-toe-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.edn :as edn]
+            [snow-hall.games.library.tic-tac-toe :as m]))
+
+(defn- play-all
+  "Plays the moves in turn, returning the last state and messages."
+  [options moves]
+  (reduce (fn [[state _] [idx move]]
+            (m/play-step state (mod idx 2) move))
+          (m/init-step options)
+          (map-indexed vector moves)))
+
+(deftest read-options []
+  (testing "defaults to Tic-Tac-Toe"
+    (is (= {:rows 3 :cols 3 :k 3} (m/read-options {}))))
+  (testing "reads the board"
+    (is (= {:rows 15 :cols 19 :k 5}
+           (m/read-options {"rows" 15 "cols" 19 "k" 5}))))
+  (testing "rejects invalid boards"
+    (is (thrown? IllegalArgumentException (m/read-options {"rows" 0})))
+    (is (thrown? IllegalArgumentException (m/read-options {"rows" 100})))
+    (is (thrown? IllegalArgumentException (m/read-options {"k" 4})))
+    (is (thrown? IllegalArgumentException (m/read-options {"cols" "3"})))))
+
+(deftest win? []
+  (let [g (m/create-game {:rows 6 :cols 7 :k 4})
+        play (fn [g moves] (reduce #(m/play-move %1 0 %2) g moves))]
+    (testing "finds lines through the move"
+      (is (m/win? (play g [[0 0] [0 1] [0 2] [0 3]]) 0 [0 2]))
+      (is (m/win? (play g [[2 6] [3 6] [4 6] [5 6]]) 0 [5 6]))
+      (is (m/win? (play g [[1 1] [2 2] [3 3] [4 4]]) 0 [1 1]))
+      (is (m/win? (play g [[5 0] [4 1] [3 2] [2 3]]) 0 [3 2])))
+    (testing "needs k in a row"
+      (is (not (m/win? (play g [[0 0] [0 1] [0 2] [0 4]]) 0 [0 4])))
+      (is (not (m/win? (play g [[0 4] [0 5] [0 6] [1 0]]) 0 [1 0]))))
+    (testing "ignores the other player"
+      (is (not (m/win? (play g [[0 0] [0 1] [0 2] [0 3]]) 1 [0 3]))))))
+
+(deftest play-step []
+  (testing "plays the standard game"
+    (let [[state messages] (play-all {} [[0 0] [2 2] [1 1] [2 1] [0 2] [2 0]])]
+      (is (:ended state))
+      (is (= [[0 "X-X-X-OOO"] [1 "X-X-X-OOO"] [1 "WIN"] [0 "LOSS"]]
+             messages))))
+  (testing "detects draws"
+    (let [[_ messages] (play-all {} [[0 0] [1 1] [2 2] [0 1] [2 1]
+                                     [2 0] [0 2] [1 2] [1 0]])]
+      (is (= [[0 "DRAW"] [1 "DRAW"]] (take-last 2 messages)))))
+  (testing "rejects occupied cells"
+    (let [[state messages] (play-all {} [[1 1] [1 1]])]
+      (is (:ended state))
+      (is (= [[1 "LOSS: ILLEGAL MOVE"] [0 "WIN: ILLEGAL MOVE"]] messages))))
+  (testing "plays on large boards"
+    (let [[state messages] (play-all {:rows 15 :cols 15 :k 5}
+                                     [[7 7] [0 0] [7 8] [0 1] [7 9]
+                                      [0 2] [7 10] [0 3] [7 6]])]
+      (is (:ended state))
+      (is (= 225 (count (second (first messages)))))
+      (is (= [[0 "WIN"] [1 "LOSS"]] (take-last 2 messages)))))
+  (testing "continues from a restored state"
+    (let [[state _] (play-all {} [[0 0] [2 2] [1 1] [2 1]])
+          restored (edn/read-string (pr-str state))
+          [next-state _] (m/play-step restored 0 [0 2])
+          [_ messages] (m/play-step next-state 1 [2 0])]
+      (is (= [1 "WIN"] (nth messages 2))))))
+
+(defn- play-against-bot
+  "Plays the moves of a visitor as X against the bot, answering each move."
+  [options moves]
+  (reduce (fn [[state messages] move]
+            (if (:ended state)
+              (reduced [state messages])
+              (let [[state messages] (m/play-step state 0 move)]
+                (if (:ended state)
+                  [state messages]
+                  (m/play-step state 1 (m/bot-move state 1))))))
+          (m/init-step options)
+          moves))
+
+(deftest bot-move []
+  (testing "waits for its turn"
+    (is (nil? (m/bot-move (first (m/init-step)) 1))))
+  (testing "takes the win"
+    (let [[state _] (play-all {} [[0 0] [1 0] [2 2] [1 1]])]
+      (is (= [1 2] (m/bot-move state 0)))))
+  (testing "blocks the opponent"
+    (let [[state _] (play-all {} [[0 0] [1 1] [0 1]])]
+      (is (= [0 2] (m/bot-move state 1)))))
+  (testing "never loses the standard game"
+    (doseq [opening (range 9)
+            :let [moves (cons [(quot opening 3) (mod opening 3)]
+                              (for [x (range 3) y (range 3)] [x y]))
+                  [state messages] (play-against-bot {} (distinct moves))]]
+      (is (:ended state))
+      (is (not= [1 "LOSS"] (last messages)))))
+  (testing "plays near the marks on large boards"
+    (let [[state _] (play-all {:rows 15 :cols 15 :k 5} [[7 7]])
+          [x y] (m/bot-move state 1)]
+      (is (<= 6 x 8))
+      (is (<= 6 y 8))))
+  (testing "blocks open lines on large boards"
+    (let [[state _] (play-all {:rows 15 :cols 15 :k 5}
+                              [[7 7] [0 0] [7 8] [0 14] [7 9]])]
+      (is (#{[7 6] [7 10]} (m/bot-move state 1))))))
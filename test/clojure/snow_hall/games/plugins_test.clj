@@ -0,0 +1,72 @@
+(ns snow-hall.games.plugins-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.java.io :as io]
+            [snow-hall.games.plugins :as m]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds])
+  (:import [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(defn- temp-dir
+  [descriptors]
+  (let [dir (.toFile (Files/createTempDirectory "games" (make-array FileAttribute 0)))]
+    (spit (io/file dir "games.edn") (pr-str descriptors))
+    (.deleteOnExit dir)
+    (.deleteOnExit (io/file dir "games.edn"))
+    (.getPath dir)))
+
+(defn- by-name
+  [games]
+  (into {} (map (juxt game/get-name identity)) games))
+
+(deftest discover-test
+  (testing "lists the games of the class path"
+    (let [games (by-name (m/discover {}))]
+      (is (= #{"Sample" "Tic Tac Toe" "Rock Paper Scissors Lizard Spock" "Code4Life"}
+             (set (keys games))))
+      (is (= {:exact 2} (:player-count (game/get-specs (games "Tic Tac Toe")))))))
+  (testing "adds the games of the plugins directory"
+    (let [dir (temp-dir [{:name "Other Sample"
+                          :player-count {:exact 2}
+                          :ns 'snow-hall.games.library.sample}])
+          games (by-name (m/discover {:dir dir}))]
+      (is (contains? games "Other Sample"))
+      (is (contains? games "Sample"))))
+  (testing "adds referee executables"
+    (let [dir (temp-dir [{:name "External"
+                          :player-count {:exact 2}
+                          :command ["referee" "--fast"]}])]
+      (is (contains? (by-name (m/discover {:dir dir})) "External"))))
+  (testing "rejects invalid descriptors"
+    (let [dir (temp-dir [{:name "Nothing" :player-count {:exact 2}}])]
+      (is (thrown? IllegalArgumentException (m/discover {:dir dir}))))))
+
+(deftest lazy-loading-test
+  (testing "reads the specs without loading the game"
+    (let [dir (temp-dir [{:name "Missing"
+                          :player-count {:exact 3}
+                          :ns 'snow-hall.games.library.missing}])
+          missing ((by-name (m/discover {:dir dir})) "Missing")]
+      (is (= {:name "Missing" :player-count {:exact 3}} (game/get-specs missing)))
+      (is (thrown? Exception (game/definition missing)))))
+  (testing "checks the name of the loaded game"
+    (let [dir (temp-dir [{:name "Renamed"
+                          :player-count {:exact 2}
+                          :ns 'snow-hall.games.library.sample}])
+          renamed ((by-name (m/discover {:dir dir})) "Renamed")]
+      (is (thrown? IllegalStateException (game/definition renamed)))))
+  (testing "loads Java referees"
+    (let [dir (temp-dir [{:name "Referee"
+                          :player-count {:exact 2}
+                          :referee "code4life.Referee"}])
+          referee ((by-name (m/discover {:dir dir})) "Referee")]
+      (is (= "Referee" (game/get-name (game/definition referee)))))))
+
+(deftest create-round-test
+  (testing "creates rounds from the loaded game"
+    (let [ttt ((by-name (m/discover {})) "Tic Tac Toe")
+          round (rounds/create-round {:game "Tic Tac Toe"
+                                      :players [{:user "a"} {:user "b"}]}
+                                     ttt)]
+      (is (= "Tic Tac Toe" (:game round)))
+      (is (satisfies? game/Steps (game/definition ttt))))))
@@ -1,5 +1,9 @@
 (ns snow-hall.games.round-test
   (:require [snow-hall.games.round :as m]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [clojure.core.async :as async]
             [clojure.test :refer [is deftest testing]]))
 
 (deftest clear-old-messages []
@@ -107,3 +111,144 @@
       (await-for 1000 state)
       (is (= (map :content (get-in @state [:messages uuid]))
              ["msg-3" "msg-4"])))))
+
+(defn wait-for-state
+  [round f]
+  (loop [i 0]
+    (let [state @(:state round)]
+      (if (or (f state) (>= i 100))
+        state
+        (do (Thread/sleep 10)
+            (recur (inc i)))))))
+
+(deftest scheduled-round []
+  (let [scheduler (scheduler/create-scheduler {:workers 2 :move-queue-size 4})
+        [u1 u2] ["abc" "def"]
+        gathering {:game (game/get-name ttt/game-definition)
+                   :players [u1 u2]}
+        round (m/create-round gathering ttt/game-definition scheduler)
+        contents #(map :content (m/read-messages round %))]
+    (testing "runs the round on the scheduler"
+      (is (m/scheduled? round))
+      (is (nil? (game/ios (:engine round)))))
+
+    (testing "publishes the initial state"
+      (is (= ["---------"] (contents u1)))
+      (is (= ["---------"] (contents u2))))
+
+    (testing "plays the moves of players"
+      (m/play-round round u1 [0 0])
+      (m/play-round round u2 [2 2])
+      (wait-for-state round #(= 2 (count (get-in % [:messages u1]))))
+      (is (= ["X--------" "X-------O"] (contents u1))))
+
+    (testing "ends the round on victory"
+      (doseq [[player move] [[u1 [1 1]] [u2 [2 1]] [u1 [0 2]] [u2 [2 0]]]]
+        (m/play-round round player move))
+      (wait-for-state round #(= :ended (:status %)))
+      (is (m/ended? round))
+      (is (= "WIN" (:content (m/read-last-state round u2))))
+      (is (= "LOSS" (:content (m/read-last-state round u1)))))
+
+    (testing "rejects moves after the end"
+      (is (= :ended (m/play-round round u1 [1 0])))
+      (scheduler/await-idle scheduler 1000)
+      (is (= "LOSS" (:content (m/read-last-state round u1)))))
+
+    (testing "stops the round"
+      (let [other (m/create-round gathering ttt/game-definition scheduler)]
+        (game/stop (:engine other))
+        (scheduler/await-idle scheduler 1000)
+        (is (m/ended? other))))
+    (scheduler/stop! scheduler)))
+
+(deftest house-bot []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        u1 "abc"
+        gathering {:game (game/get-name ttt/game-definition)
+                   :players [u1 game/house-player]}
+        round (m/create-round gathering ttt/game-definition scheduler)]
+    (testing "answers the moves of the visitor"
+      (is (= :accepted (m/play-round round u1 [0 0])))
+      (is (= 2 (:moves (wait-for-state round #(= 2 (:moves %))))))
+      (is (= "X---O----" (:content (m/read-last-state round u1)))))
+
+    (testing "plays first when seated first"
+      (let [other (m/create-round (assoc gathering :players [game/house-player u1])
+                                  ttt/game-definition
+                                  scheduler)]
+        (m/resume-bots! other)
+        (is (= 0 (first (:last-move (wait-for-state other :last-move)))))
+        (is (= 1 (count (filter #{\X} (:content (m/read-last-state other u1))))))))
+
+    (testing "searches the moves out of the workers"
+      (let [searched (promise)
+            slow-game (reify
+                        game/Game
+                        (get-specs [_] (game/get-specs ttt/game-definition))
+                        (read-options [_ options] (game/read-options ttt/game-definition options))
+                        (get-player-count [_ _] 2)
+                        (create-engine [_ _] nil)
+                        game/Steps
+                        (init-state [_ options] (game/init-state ttt/game-definition options))
+                        (step [_ state pid move] (game/step ttt/game-definition state pid move))
+                        (ended? [_ state] (game/ended? ttt/game-definition state))
+                        game/HouseBot
+                        (bot-move [_ state pid]
+                          (deref searched 1000 nil)
+                          (game/bot-move ttt/game-definition state pid)))
+            slow (m/create-round (assoc gathering :players [game/house-player u1]) slow-game scheduler)
+            other (m/create-round (assoc gathering :players [u1 "def"]) ttt/game-definition scheduler)]
+        (m/resume-bots! slow)
+        (m/play-round other u1 [0 0])
+        (is (= 1 (:moves (wait-for-state other #(= 1 (:moves %))))))
+        (is (nil? (:last-move @(:state slow))))
+        (deliver searched true)
+        (is (= 0 (first (:last-move (wait-for-state slow :last-move)))))))
+    (scheduler/stop! scheduler)))
+
+(deftest move-backpressure []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        [u1 u2] ["abc" "def"]
+        gathering {:game (game/get-name ttt/game-definition)
+                   :players [u1 u2]}
+        round (m/create-round gathering ttt/game-definition scheduler)
+        blocker (promise)]
+    (scheduler/submit! scheduler :blocker #(deref blocker 1000 nil))
+    (testing "accepts moves within the queue size"
+      (is (= :accepted (m/play-round round u1 [0 0])))
+      (is (= :accepted (m/play-round round u2 [2 2]))))
+
+    (testing "rejects moves over the queue size"
+      (is (= :full (m/play-round round u1 [1 1]))))
+
+    (testing "rejects visitors not playing"
+      (is (nil? (m/play-round round "ghi" [1 1]))))
+
+    (testing "frees the queue once moves are played"
+      (deliver blocker true)
+      (scheduler/await-idle scheduler 1000)
+      (is (= :accepted (m/play-round round u1 [1 1]))))
+    (scheduler/stop! scheduler)))
+
+(deftest next-message []
+  (let [scheduler (scheduler/create-scheduler {:workers 1})
+        [u1 u2] ["abc" "def"]
+        gathering {:game (game/get-name ttt/game-definition)
+                   :players [u1 u2]}
+        round (m/create-round gathering ttt/game-definition scheduler)]
+    (testing "receives the message following a move"
+      (let [response (m/next-message round u1 1000)]
+        (m/play-round round u1 [0 0])
+        (is (= "X--------" (:content (async/<!! response))))))
+
+    (testing "closes without message after the timeout"
+      (let [response (m/next-message round u1 10)]
+        (is (nil? (async/<!! response)))))
+
+    (testing "stops watching once closed"
+      (let [response (m/next-message round u1 30000)]
+        (async/close! response)
+        (Thread/sleep 50)
+        (is (empty? (.getWatches ^clojure.lang.IRef (:state round))))))
+    (scheduler/stop! scheduler)))
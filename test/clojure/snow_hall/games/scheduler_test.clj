@@ -0,0 +1,49 @@
+(ns snow-hall.games.scheduler-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.games.scheduler :as m]))
+
+(deftest submit! []
+  (let [scheduler (m/create-scheduler {:workers 4})]
+    (testing "runs tasks of a key in order"
+      (let [results (atom {})]
+        (doseq [key (range 10)
+                i (range 100)]
+          (m/submit! scheduler key #(swap! results update key (fnil conj []) i)))
+        (is (m/await-idle scheduler 1000))
+        (is (every? #(= (range 100) %) (vals @results)))
+        (is (= 10 (count @results)))))
+
+    (testing "keeps running after a failed task"
+      (let [done (promise)]
+        (m/submit! scheduler 1 #(throw (IllegalStateException. "Oops")))
+        (m/submit! scheduler 1 #(deliver done true))
+        (is (deref done 1000 false))))
+
+    (testing "reports the pending tasks per worker"
+      (is (m/await-idle scheduler 1000))
+      (is (= [0 0 0 0] (m/queue-sizes scheduler))))
+    (m/stop! scheduler)))
+
+(deftest fair-submit! []
+  (let [scheduler (m/create-scheduler {:workers 1})
+        started (promise)
+        release (promise)
+        order (atom [])]
+    (m/submit! scheduler 0 #(do (deliver started true) @release))
+    @started
+    (doseq [i (range 5)]
+      (m/submit! scheduler [:heavy i] "heavy" #(swap! order conj :heavy)))
+    (m/submit! scheduler :light "light" #(swap! order conj :light))
+    (deliver release true)
+    (testing "serves the owners in turn"
+      (is (m/await-idle scheduler 1000))
+      (is (= :light (second @order)))
+      (is (= 6 (count @order))))
+
+    (testing "keeps the order of a key across owners"
+      (let [results (atom [])]
+        (doseq [i (range 50)]
+          (m/submit! scheduler :shared (if (even? i) "a" "b") #(swap! results conj i)))
+        (is (m/await-idle scheduler 1000))
+        (is (= (range 50) @results))))
+    (m/stop! scheduler)))
@@ -0,0 +1,111 @@
+(ns snow-hall.games.spectators-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.core.async :as async]
+            [cheshire.core :as json]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.games.spectators :as m]))
+
+(defn- create-round
+  [scheduler]
+  (rounds/create-round {:game "Tic Tac Toe" :players ["a" "b"]}
+                       ttt/game-definition
+                       scheduler))
+
+(defn- wait-for
+  [pred]
+  (loop [tries 0]
+    (when-not (or (pred) (> tries 500))
+      (Thread/sleep 5)
+      (recur (inc tries)))))
+
+(defn- read-frame
+  [frame]
+  (json/parse-string (String. ^bytes (:bytes frame) "UTF-8")))
+
+(deftest subscribe! []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        spectators (m/create)
+        round (create-round scheduler)
+        frames [(atom []) (atom [])]
+        unsubscribes (mapv (fn [received]
+                             (m/subscribe! spectators round ttt/game-definition #(do (swap! received conj %) true)))
+                           frames)]
+    (testing "sends the current frame"
+      (wait-for #(every? (comp seq deref) frames))
+      (is (= "---------" (get-in (read-frame (first @(first frames))) ["last" "a"]))))
+
+    (testing "shares the encoded frames"
+      (rounds/play-round round "a" [0 0])
+      (wait-for #(every? (comp (partial < 1) count deref) frames))
+      (is (identical? (:bytes (peek @(first frames)))
+                      (:bytes (peek @(second frames)))))
+      (is (= "X--------" (get-in (read-frame (peek @(second frames))) ["last" "b"]))))
+
+    (testing "stops sending once unsubscribed"
+      ((first unsubscribes))
+      (is (= 1 (m/watcher-count spectators (:ruid round)))))
+
+    (testing "drops the hub once the round ended"
+      (rounds/play-round round "b" [0 0])
+      (wait-for #(:ended? (peek @(second frames))))
+      (wait-for #(zero? (m/watcher-count spectators (:ruid round))))
+      (is (= "ended" (get (read-frame (peek @(second frames))) "status")))
+      (is (zero? (m/watcher-count spectators (:ruid round)))))
+    (scheduler/stop! scheduler)))
+
+(deftest next-frame []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        spectators (m/create)
+        round (create-round scheduler)]
+    (testing "answers at once with a newer frame"
+      (is (some? (async/<!! (m/next-frame spectators round ttt/game-definition -1 1000)))))
+
+    (testing "waits for the next version"
+      (let [version (rounds/version round)
+            frame (m/next-frame spectators round ttt/game-definition version 1000)]
+        (rounds/play-round round "a" [1 1])
+        (is (< version (:version (async/<!! frame))))))
+
+    (testing "gives up after the timeout"
+      (is (nil? (async/<!! (m/next-frame spectators round ttt/game-definition (rounds/version round) 10)))))
+    (scheduler/stop! scheduler)))
+
+(deftest busy-watchers []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        spectators (m/create)
+        round (create-round scheduler)
+        written (promise)
+        received (atom [])
+        stalled (promise)
+        closed (atom false)]
+    (m/subscribe! spectators round ttt/game-definition #(do (swap! received conj %) @written true))
+    (wait-for #(seq @received))
+    (testing "only writes the latest frame once the previous is written"
+      (let [first-version (rounds/version round)]
+        (rounds/play-round round "a" [0 0])
+        (rounds/play-round round "b" [1 1])
+        (Thread/sleep 50)
+        (is (= [first-version] (map :version @received)))
+        (deliver written true)
+        (wait-for #(= 2 (count @received)))
+        (is (= [first-version (rounds/version round)] (map :version @received)))))
+    (testing "evicts the watchers writing for too long"
+      (with-redefs [m/busy-timeout-ms 20]
+        (m/subscribe! spectators round ttt/game-definition #(do @stalled true) #(reset! closed true))
+        (Thread/sleep 50)
+        (rounds/play-round round "a" [0 1])
+        (wait-for #(deref closed))
+        (is (= 1 (m/watcher-count spectators (:ruid round))))))
+    (deliver stalled true)
+    (scheduler/stop! scheduler)))
+
+(deftest public-view []
+  (let [hidden (reify game/Spectated
+                 (public-view [_ last] (into {} (map (fn [[uuid _]] [uuid "?"])) last)))
+        round {:ruid "r" :game "Hidden" :players ["a" "b"]}
+        state {:version 3 :last {"a" {:content "secret"}}}]
+    (testing "only shows what the game makes public"
+      (is (= {"a" "?"} (:last (m/public-view hidden round state)))))))
@@ -14,7 +14,11 @@
                (fn [acc i] (assoc acc (m/generate-id acc) i))
                {}
                (range 100))]
-      (is (= (count tab) 100)))))
+      (is (= (count tab) 100))))
+  (testing "skips ids not owned"
+    (is (= "4" (m/generate-id {"1" {}} #(= "4" %)))))
+  (testing "allocates the ids of a node after its prefix"
+    (is (= "ab-3" (m/generate-id {"1" {} "cd-2" {}} "ab-" (constantly true))))))
 
 (def dummy-game
   (reify game/Game
@@ -55,6 +59,14 @@
         (is (= 2 (count (set tokens))))
         (is (= true (not-any? nil? tokens)))))))
 
+(deftest seat-house-bot []
+  (testing "takes the last free seat"
+    (let [players (m/create-player-list 3 {:uuid 1})]
+      (is (= [1 (second players) game/house-player]
+             (m/seat-house-bot players)))))
+  (testing "rejects full lists"
+    (is (thrown? IllegalArgumentException (m/seat-house-bot [1 2])))))
+
 (deftest get-token-idx []
   (let [players [1 {:token "abc"} 2 {:token "def"}]]
     (testing "finds the index of an existing token"
@@ -134,3 +146,54 @@
                                        :gathering-id id}))))))
 
 
+(deftest evict-gatherings []
+  (let [tab (-> {}
+                (m/register-gathering {:id "1" :created-at 10})
+                (m/register-gathering {:id "2" :created-at 20})
+                (m/register-gathering {:id "3" :created-at 30}))
+        evicted (m/evict-gatherings tab 25)]
+    (testing "removes the old gatherings"
+      (is (= ["3"] (keys evicted))))
+
+    (testing "does not reuse the ids of evicted gatherings"
+      (let [last-evicted (m/evict-gatherings tab 35)]
+        (is (empty? last-evicted))
+        (is (= "4" (m/generate-id last-evicted)))))))
+
+(deftest open-gatherings []
+  (let [gathering (fn [id game tokens]
+                    {:id id :game game :players (into [1] (map #(hash-map :token %)) tokens)})
+        tab (-> {}
+                (m/register-gathering (gathering "1" "g" ["a" "b"]))
+                (m/register-gathering (gathering "2" "h" ["c"]))
+                (m/register-gathering (gathering "10" "g" ["d"]))
+                (m/register-gathering (gathering "3" "g" [])))]
+    (testing "indexes the open gatherings by game, in id order"
+      (is (= ["1" "10"] (seq (m/open-gatherings tab "g"))))
+      (is (= ["2"] (seq (m/open-gatherings tab "h"))))
+      (is (empty? (m/open-gatherings tab "other"))))
+
+    (testing "indexes the open gatherings by free seats"
+      (is (= ["1"] (seq (m/open-gatherings tab "g" 2))))
+      (is (= ["10"] (seq (m/open-gatherings tab "g" 1))))
+      (is (empty? (m/open-gatherings tab "g" 0))))
+
+    (testing "moves joined gatherings"
+      (let [joined (m/join-gathering {:tab tab
+                                      :user {:uuid 2}
+                                      :gathering-id "1"
+                                      :token "a"})]
+        (is (= ["1" "10"] (seq (m/open-gatherings joined "g" 1))))
+        (is (empty? (m/open-gatherings joined "g" 2)))))
+
+    (testing "drops full gatherings"
+      (let [full (m/join-gathering {:tab tab
+                                    :user {:uuid 2}
+                                    :gathering-id "10"
+                                    :token "d"})]
+        (is (= ["1"] (seq (m/open-gatherings full "g"))))))
+
+    (testing "drops removed and evicted gatherings"
+      (is (= ["10"] (seq (m/open-gatherings (m/remove-gatherings tab ["1" "2"]) "g"))))
+      (is (empty? (m/open-gatherings (m/remove-gatherings tab ["1" "2"]) "h")))
+      (is (empty? (m/open-gatherings (m/evict-gatherings tab 1) "g"))))))
@@ -0,0 +1,129 @@
+(ns snow-hall.hall.cluster-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.string :as str]
+            [org.httpkit.client :as client]
+            [snow-hall.uuid :as uuids]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.cluster :as m]))
+
+(def nodes #{"http://127.0.0.1:3000" "http://127.0.0.1:3001" "http://127.0.0.1:3002"})
+
+(defn create-cluster
+  [self]
+  (m/create {:self self
+             :nodes nodes
+             :secret "secret"
+             :vnodes 64
+             :timeout 1000}))
+
+(deftest create []
+  (testing "requires a secret"
+    (is (thrown? IllegalArgumentException
+                 (m/create {:self "http://127.0.0.1:3000" :nodes nodes :vnodes 64})))))
+
+(deftest owner []
+  (let [ring (m/create-ring nodes 64)
+        keys (map str (range 3000))
+        owners (map #(m/owner ring %) keys)]
+    (testing "spreads keys over all nodes"
+      (is (= nodes (set owners)))
+      (is (every? #(< 600 % 1400) (vals (frequencies owners)))))
+    (testing "only moves the keys of a leaving node"
+      (let [smaller (m/create-ring (disj nodes "http://127.0.0.1:3002") 64)]
+        (is (every? (fn [[k node]]
+                      (or (= node "http://127.0.0.1:3002")
+                          (= node (m/owner smaller k))))
+                    (map vector keys owners)))))))
+
+(deftest local-id []
+  (let [cluster (create-cluster "http://127.0.0.1:3001")]
+    (testing "allocates ids owned by the local node"
+      (is (every? #(m/owns? cluster %)
+                  (repeatedly 20 #(m/local-id cluster uuids/random-uuid)))))
+    (testing "allocates gathering ids owned by the local node"
+      (let [id (butler/generate-id {} (m/id-prefix cluster) (partial m/owns? cluster))]
+        (is (m/owns? cluster id))
+        (is (str/starts-with? id (m/id-prefix cluster)))))
+    (testing "gives each node its own gathering ids"
+      (is (not= (m/id-prefix cluster)
+                (m/id-prefix (create-cluster "http://127.0.0.1:3000")))))
+    (testing "owns everything without cluster"
+      (is (m/owns? nil "1")))))
+
+(deftest set-nodes! []
+  (let [cluster (create-cluster "http://127.0.0.1:3000")
+        ring (:ring @cluster)]
+    (m/set-nodes! cluster (conj nodes "http://127.0.0.1:3003"))
+    (testing "keeps the previous ring"
+      (is (= ring (:previous @cluster))))
+    (testing "adds the node to the ring"
+      (is (contains? (set (vals (:ring @cluster))) "http://127.0.0.1:3003")))))
+
+(defn- signed-request
+  [cluster method uri body now]
+  {:request-method method
+   :uri uri
+   :headers {m/forwarded-header (:self @cluster)
+             m/signature-header (m/signature cluster method uri (.getBytes ^String body) now)}
+   :body (java.io.ByteArrayInputStream. (.getBytes ^String body))})
+
+(deftest wrap-routing []
+  (let [cluster (create-cluster "http://127.0.0.1:3000")
+        gid (first (remove #(m/owns? cluster %) (map str (range 1 100))))
+        other-gid (first (remove #(m/owns? cluster %) (map str (range 100 200))))
+        context {:cluster cluster
+                 :rounds (ref {})
+                 :archives (ref {})
+                 :tab (ref {gid {:id gid}})}
+        handler (m/wrap-routing (constantly {:status 200}) context)]
+    (testing "serves resources held locally"
+      (is (= 200 (:status (handler {:request-method :get
+                                    :uri (str "/gatherings/" gid "/invits")})))))
+    (testing "serves requests already forwarded"
+      (is (= 200 (:status (handler (signed-request (create-cluster "http://127.0.0.1:3001")
+                                                   :get
+                                                   (str "/gatherings/" other-gid "/invits")
+                                                   ""
+                                                   (System/currentTimeMillis)))))))
+    (testing "forwards requests with unsigned forwarding headers, signed"
+      (let [sent (promise)]
+        (with-redefs [client/request (fn [opts _] (deliver sent opts))]
+          (handler {:request-method :get
+                    :uri (str "/gatherings/" other-gid "/invits")
+                    :headers {m/forwarded-header "http://127.0.0.1:3001"}}))
+        (is (str/starts-with? (:url @sent) (m/owner (:ring @cluster) other-gid)))
+        (is (m/authentic? (create-cluster (m/owner (:ring @cluster) other-gid))
+                          (assoc @sent :request-method :get :uri (str "/gatherings/" other-gid "/invits"))
+                          nil))))
+    (testing "serves requests out of rounds and gatherings"
+      (is (= 200 (:status (handler {:request-method :get :uri "/visitors"})))))
+    (testing "serves batches locally"
+      (is (= 200 (:status (handler {:request-method :post :uri "/rounds/batch"})))))))
+
+(deftest wrap-authentication []
+  (let [sender (create-cluster "http://127.0.0.1:3001")
+        cluster (create-cluster "http://127.0.0.1:3000")
+        handler (m/wrap-authentication (fn [req] {:status 200 :body (some-> (:body req) slurp)})
+                                       {:cluster cluster})
+        now (System/currentTimeMillis)]
+    (testing "accepts calls signed by a member"
+      (let [response (handler (signed-request sender :post "/cluster/leave" "{}" now))]
+        (is (= 200 (:status response)))
+        (is (= "{}" (:body response)))))
+    (testing "rejects unsigned calls"
+      (is (= 401 (:status (handler {:request-method :post
+                                    :uri "/cluster/nodes"
+                                    :headers {m/forwarded-header "http://127.0.0.1:3001"}})))))
+    (testing "rejects altered bodies"
+      (is (= 401 (:status (handler (assoc (signed-request sender :post "/cluster/leave" "{}" now)
+                                          :body (java.io.ByteArrayInputStream. (.getBytes "[]"))))))))
+    (testing "rejects calls signed with another secret"
+      (let [other (m/create {:self "http://127.0.0.1:3001" :nodes nodes :secret "other" :vnodes 1})]
+        (is (= 401 (:status (handler (signed-request other :post "/cluster/leave" "{}" now)))))))
+    (testing "rejects nodes out of the configuration"
+      (let [intruder (m/create {:self "http://10.0.0.1:3000" :nodes nodes :secret "secret" :vnodes 1})]
+        (is (= 401 (:status (handler (signed-request intruder :post "/cluster/nodes" "{}" now)))))))
+    (testing "rejects old signatures"
+      (is (= 401 (:status (handler (signed-request sender :post "/cluster/leave" "{}" (- now 60000)))))))
+    (testing "leaves reading the members open"
+      (is (= 200 (:status (handler {:request-method :get :uri "/cluster" :body nil})))))))
@@ -0,0 +1,81 @@
+(ns snow-hall.hall.credentials-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.java.io :as io]
+            [clojure.string :as str]
+            [snow-hall.hall.credentials :as m]
+            [snow-hall.rest.core :refer [resolved resolved?]]
+            [snow-hall.rest.gatherings :refer [authenticate with-visitor]]))
+
+(def config {:secret "secret" :ttl 1000 :key-period 100})
+
+(deftest verify-test
+  (let [credentials (m/create config)
+        token (m/issue credentials "abc" 5000)]
+    (testing "accepts the tokens it issued"
+      (is (m/signed? token))
+      (is (m/verify credentials "abc" token 5500)))
+    (testing "rejects the tokens of other visitors"
+      (is (not (m/verify credentials "def" token 5500))))
+    (testing "rejects expired tokens"
+      (is (not (m/verify credentials "abc" token 6000))))
+    (testing "rejects tampered tokens"
+      (is (not (m/verify credentials "abc" (str/replace token ".5000." ".5400.") 5500)))
+      (is (not (m/verify credentials "abc" (str token "x") 5500)))
+      (is (not (m/verify credentials "abc" "not-a-token" 5500))))
+    (testing "accepts the tokens of nodes sharing the secret"
+      (is (m/verify (m/create config) "abc" token 5500)))
+    (testing "rejects the tokens of other secrets"
+      (is (not (m/verify (m/create (assoc config :secret "other")) "abc" token 5500)))
+      (is (not (m/verify (m/create (dissoc config :secret)) "abc" token 5500))))))
+
+(deftest stored-secret-test
+  (let [dir (io/file (System/getProperty "java.io.tmpdir")
+                     (str "snow-hall-secret-" (System/nanoTime)))
+        stored (dissoc (assoc config :secret-dir (str dir)) :secret)
+        token (m/issue (m/create stored) "abc" 5000)]
+    (testing "keeps the drawn secret across restarts"
+      (is (.exists (io/file dir "secret")))
+      (is (m/verify (m/create stored) "abc" token 5500)))
+    (testing "prefers the secret of the hall"
+      (is (not (m/verify (m/create (assoc stored :secret "secret")) "abc" token 5500))))))
+
+(deftest revocation-test
+  (let [credentials (m/create config)
+        now (System/currentTimeMillis)
+        old-token (m/issue credentials "abc" (- now 10))
+        other-token (m/issue credentials "def" (- now 10))
+        new-token (m/renew! credentials "abc")]
+    (testing "revokes the previous tokens of the visitor"
+      (is (not (m/verify credentials "abc" old-token)))
+      (is (m/verify credentials "abc" new-token))
+      (is (m/verify credentials "def" other-token)))
+    (testing "forgets revocations once the tokens expired"
+      (m/prune! credentials (+ now 500))
+      (is (not (m/verify credentials "abc" old-token (+ now 500))))
+      (m/prune! credentials (+ now 2000))
+      (is (empty? (:denied credentials))))))
+
+(defn- request
+  [uuid token]
+  {:headers {"authorization" (str uuid ":" token)}})
+
+(deftest with-visitor-test
+  (let [credentials (m/create (assoc config :ttl 60000))
+        visitors (ref {"legacy" {:uuid "legacy" :token "plain"}})
+        context {:visitors visitors :credentials credentials}]
+    (testing "authenticates signed tokens without the registry"
+      (is (= (resolved {:uuid "abc"})
+             (with-visitor context (request "abc" (m/issue credentials "abc"))))))
+    (testing "rejects invalid signed tokens"
+      (is (= 403 (:status (second (with-visitor context (request "def" (m/issue credentials "abc")))))))
+      (is (= 403 (:status (second (with-visitor context (request "abc" (m/issue credentials "abc" 0))))))))
+    (testing "checks other tokens against the registry"
+      (is (resolved? (with-visitor context (request "legacy" "plain"))))
+      (is (= 403 (:status (second (with-visitor context (request "legacy" "wrong"))))))
+      (is (= 401 (:status (second (with-visitor context (request "unknown" "plain")))))))
+    (testing "reuses the outcome of authenticate"
+      (let [req (authenticate context (request "abc" (m/issue credentials "abc")))]
+        (is (= "abc" (:visitor-uuid req)))
+        (is (= (resolved {:uuid "abc"})
+               (with-visitor (assoc context :credentials (m/create config)) req))))
+      (is (nil? (:visitor-uuid (authenticate context (request "unknown" "plain"))))))))
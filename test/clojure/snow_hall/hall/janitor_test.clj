@@ -0,0 +1,103 @@
+(ns snow-hall.hall.janitor-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.hall.janitor :as m]))
+
+(def config {:finished-ttl 100
+             :idle-ttl 1000
+             :archive-ttl 10000
+             :gathering-ttl 1000
+             :period 10})
+
+(defn create-engine
+  [stopped]
+  (reify game/RoundEngine
+    (ios [e] [])
+    (stop [e] (reset! stopped true))))
+
+(defn create-round
+  [ruid status updated-at stopped]
+  {:ruid ruid
+   :game "g"
+   :players ["p1" "p2"]
+   :engine (create-engine stopped)
+   :state (agent {:messages {"p1" [] "p2" []}
+                  :last {"p1" {:timestamp 1 :content "WIN"}}
+                  :status status
+                  :updated-at updated-at})})
+
+(defn create-context
+  [rounds]
+  {:rounds (ref (into {} (map #(vector (:ruid %) %) rounds)))
+   :archives (ref {})
+   :tab (ref {})
+   :janitor (m/create-metrics)})
+
+(deftest classify-round []
+  (let [now 10000]
+    (testing "keeps active rounds"
+      (is (nil? (m/classify-round (create-round 1 :playing (- now 10) nil)
+                                  config
+                                  now))))
+    (testing "keeps recently ended rounds"
+      (is (nil? (m/classify-round (create-round 1 :ended (- now 10) nil)
+                                  config
+                                  now))))
+    (testing "archives ended rounds after their ttl"
+      (is (= :finished
+             (m/classify-round (create-round 1 :ended (- now 500) nil)
+                               config
+                               now))))
+    (testing "abandons idle rounds"
+      (is (= :abandoned
+             (m/classify-round (create-round 1 :playing (- now 5000) nil)
+                               config
+                               now))))))
+
+(deftest sweep! []
+  (let [now (System/currentTimeMillis)
+        stopped (atom false)
+        active (create-round 1 :playing now (atom false))
+        finished (create-round 2 :ended (- now 500) (atom false))
+        abandoned (create-round 3 :playing (- now 5000) stopped)
+        context (create-context [active finished abandoned])]
+    (m/sweep! context config)
+
+    (testing "keeps the active rounds"
+      (is (= [1] (keys @(:rounds context)))))
+
+    (testing "archives the other rounds"
+      (is (= #{2 3} (set (keys @(:archives context)))))
+      (is (= :finished (get-in @(:archives context) [2 :outcome])))
+      (is (= :abandoned (get-in @(:archives context) [3 :outcome]))))
+
+    (testing "keeps the last state in the summary"
+      (is (= "WIN"
+             (:content (rounds/read-archived-state (get @(:archives context) 2)
+                                                   "p1")))))
+
+    (testing "stops abandoned rounds"
+      (is @stopped))
+
+    (testing "records the metrics"
+      (is (= 1 (:sweeps @(:janitor context))))
+      (is (= 1 (:finished-rounds @(:janitor context))))
+      (is (= 1 (:abandoned-rounds @(:janitor context)))))))
+
+(deftest sweep-archives-and-gatherings []
+  (let [now (System/currentTimeMillis)
+        context (create-context [])]
+    (dosync
+     (ref-set (:archives context) {1 {:ruid 1 :ended-at (- now 20000)}
+                                   2 {:ruid 2 :ended-at now}})
+     (ref-set (:tab context) {"1" {:id "1" :created-at (- now 5000)}
+                              "2" {:id "2" :created-at now}}))
+    (m/sweep! context config)
+
+    (testing "drops expired archives"
+      (is (= [2] (keys @(:archives context)))))
+
+    (testing "drops old gatherings"
+      (is (= ["2"] (keys @(:tab context))))
+      (is (= 1 (:evicted-gatherings @(:janitor context)))))))
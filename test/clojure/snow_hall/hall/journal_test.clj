@@ -0,0 +1,120 @@
+(ns snow-hall.hall.journal-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.java.io :as io]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.manager :as game-mgr]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.journal :as m]))
+
+(defn create-dir
+  []
+  (let [dir (io/file (System/getProperty "java.io.tmpdir")
+                     (str "snow-hall-journal-" (System/nanoTime)))]
+    (.mkdirs dir)
+    (str dir)))
+
+(defn create-context
+  [dir snapshot-every]
+  {:games (ref (game-mgr/add-game (game-mgr/create-store) ttt/game-definition))
+   :visitors (ref {})
+   :tab (ref (butler/create-tab))
+   :rounds (ref {})
+   :archives (ref {})
+   :scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 4})
+   :journal (m/create {:dir dir :snapshot-every snapshot-every :max-batch 16})})
+
+(defn play-hall!
+  "Registers two visitors and plays a few moves of a round between them."
+  [{:keys [visitors tab rounds journal scheduler]}]
+  (let [[v1 v2 :as vs] [{:uuid "u1" :token "t1"} {:uuid "u2" :token "t2"}]
+        gathering {:id "1"
+                   :game (game/get-name ttt/game-definition)
+                   :players ["u1" "u2"]
+                   :options {}}
+        round (rounds/create-round gathering ttt/game-definition scheduler)]
+    (dosync
+     (alter visitors assoc "u1" v1 "u2" v2)
+     (alter tab butler/register-gathering gathering))
+    (doseq [v vs]
+      (m/record! journal {:type :visitor-registered :visitor v}))
+    (dosync (alter visitors assoc-in ["u1" :nickname] "me"))
+    (m/record! journal {:type :nickname-changed :uuid "u1" :nickname "me"})
+    (m/record! journal {:type :gathering-created :gathering gathering})
+    (m/record! journal {:type :round-started :round (rounds/snapshot round)})
+    (m/track-round! journal round)
+    (dosync (alter rounds assoc (:ruid round) round))
+    (doseq [[uuid move] [["u1" [0 0]] ["u2" [1 1]] ["u1" [0 1]]]]
+      (rounds/play-round round uuid move)
+      (scheduler/await-idle scheduler 1000))
+    (rounds/read-messages round "u1")
+    round))
+
+(defn restart
+  [dir snapshot-every]
+  (let [context (create-context dir snapshot-every)
+        stop (m/start context)]
+    (stop)
+    context))
+
+(defn check-recovery
+  [dir snapshot-every]
+  (let [context (create-context dir snapshot-every)
+        stop (m/start context)
+        round (play-hall! context)]
+    (stop)
+    (let [recovered (restart dir snapshot-every)
+          restored (get @(:rounds recovered) (:ruid round))]
+      (testing "restores the visitors"
+        (is (= @(:visitors context) @(:visitors recovered))))
+      (testing "restores the gatherings"
+        (is (= @(:tab context) @(:tab recovered)))
+        (is (= "2" (butler/generate-id @(:tab recovered)))))
+      (testing "restores the rounds with their moves"
+        (is (rounds/scheduled? restored))
+        (is (= @(:state round) @(:state restored))))
+      (testing "keeps playing restored rounds"
+        (is (= :accepted (rounds/play-round restored "u2" [2 2])))))))
+
+(deftest recover! []
+  (testing "from the journal only"
+    (check-recovery (create-dir) 1000))
+  (testing "from snapshots and the journal tail"
+    (let [dir (create-dir)]
+      (check-recovery dir 3)
+      (is (seq (filter #(.startsWith (.getName %) "snapshot")
+                       (.listFiles (io/file dir))))))))
+
+(deftest replay! []
+  (let [context (create-context (create-dir) 10)
+        gathering {:id "1" :game "g" :players ["u1" {:token #uuid "0c2f5b1e-7b9e-4c5a-9d4f-3c1a2b3c4d5e"}]}
+        join {:type :gathering-joined
+              :id "1"
+              :visitor "u2"
+              :token #uuid "0c2f5b1e-7b9e-4c5a-9d4f-3c1a2b3c4d5e"}]
+    (testing "ignores events already applied"
+      (dosync
+       (m/replay! context {:type :gathering-created :gathering gathering})
+       (m/replay! context join)
+       (m/replay! context join)
+       (m/replay! context {:type :gathering-created :gathering gathering}))
+      (is (= ["u1" "u2"] (get-in @(:tab context) ["1" :players]))))))
+
+(deftest record! []
+  (let [journal (m/create {:dir "unused"})
+        tab (ref {})]
+    (testing "queues the events of a transaction once it commits"
+      (dosync
+       (alter tab assoc "1" {:id "1"})
+       (m/record! journal {:type :gathering-created :gathering {:id "1"}})
+       (is (empty? @(future @(:pending journal)))))
+      (is (= [:gathering-created] (map :type @(:pending journal)))))
+    (testing "drops the events of failed transactions"
+      (try
+        (dosync
+         (m/record! journal {:type :gathering-joined :id "1"})
+         (throw (IllegalStateException. "Oops")))
+        (catch IllegalStateException _ nil))
+      (is (= 1 (m/queue-size journal))))))
@@ -0,0 +1,54 @@
+(ns snow-hall.hall.limiter-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.hall.limiter :as m]))
+
+(def route "POST /gatherings")
+
+(defn- limiter
+  []
+  (m/create {:limits {route {:rate 10 :burst 3}
+                      "POST /visitors" {:rate 0 :burst 1}}}))
+
+(deftest acquire! []
+  (let [limiter (limiter)]
+    (testing "allows a burst of requests"
+      (is (= [0 0 0] (map #(m/acquire! limiter route "a" %) [0 0 0]))))
+
+    (testing "refuses requests over the burst until a token comes"
+      (is (= 100 (m/acquire! limiter route "a" 0)))
+      (is (= 50 (m/acquire! limiter route "a" 50000000)))
+      (is (zero? (m/acquire! limiter route "a" 100000000))))
+
+    (testing "keeps a bucket per visitor"
+      (is (zero? (m/acquire! limiter route "b" 0))))
+
+    (testing "ignores routes without limit"
+      (is (zero? (m/acquire! limiter "POST /visitors" "a" 0)))
+      (is (zero? (m/acquire! limiter "GET /rounds" "a" 0))))
+
+    (testing "counts the requests per outcome"
+      (is (= {[route :allowed] 5
+              [route :limited] 2}
+             (m/request-counts limiter))))
+
+    (testing "forgets the full buckets"
+      (m/prune! limiter 150000000)
+      (is (= 1 (m/bucket-count limiter)))
+      (m/prune! limiter 1000000000)
+      (is (zero? (m/bucket-count limiter))))))
+
+(deftest wrap-limits []
+  (let [handler (m/wrap-limits (constantly {:status 200})
+                               {:limiter (limiter)}
+                               (fn [_ req]
+                                 (assoc req :visitor-uuid (get-in req [:headers "authorization"]))))
+        req {:request-method :post :uri "/gatherings" :remote-addr "1.2.3.4"}]
+    (testing "answers 429 over the limit"
+      (is (= [200 200 200 429] (map :status (repeatedly 4 #(handler req)))))
+      (is (= "1" (get-in (handler req) [:headers "Retry-After"]))))
+
+    (testing "limits authenticated visitors on their own"
+      (is (= 200 (:status (handler (assoc-in req [:headers "authorization"] "v1"))))))
+
+    (testing "serves other routes"
+      (is (= 200 (:status (handler (assoc req :uri "/rounds"))))))))
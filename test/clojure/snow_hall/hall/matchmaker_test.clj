@@ -0,0 +1,70 @@
+(ns snow-hall.hall.matchmaker-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.metrics :as metrics]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.matchmaker :as m]))
+
+(defn- create-context
+  []
+  {:tab (ref (butler/create-tab))
+   :rounds (ref (rounds/create-store))
+   :metrics (metrics/create-registry)
+   :scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+   :matchmaker (m/create)})
+
+(deftest enqueue! []
+  (let [context (create-context)
+        enqueue #(m/enqueue! context {:uuid %1} ttt/game-definition %2)
+        first-ticket (enqueue "abc" {})]
+    (testing "waits for an opponent"
+      (is (= :waiting (:status first-ticket)))
+      (is (= {"Tic Tac Toe" 1} (m/waiting-counts (:matchmaker context)))))
+
+    (testing "rejects visitors already waiting"
+      (is (nil? (enqueue "abc" {}))))
+
+    (testing "keeps apart visitors with other options"
+      (is (= :waiting (:status (enqueue "def" {"rows" 4 "cols" 4})))))
+
+    (testing "matches compatible visitors"
+      (let [ticket (enqueue "ghi" {"k" 3})
+            first-ticket (m/get-ticket (:matchmaker context) (:id first-ticket))
+            round (get @(:rounds context) (:round ticket))
+            gathering (get @(:tab context) (:gathering ticket))]
+        (is (= :matched (:status ticket)))
+        (is (= (select-keys ticket [:round :gathering :status])
+               (select-keys first-ticket [:round :gathering :status])))
+        (is (= ["abc" "ghi"] (:players round)))
+        (is (= ["abc" "ghi"] (:players gathering)))
+        (is (= :accepted (rounds/play-round round "abc" [0 0])))))
+
+    (testing "records the time waited"
+      (is (= 2 (get-in @(:metrics context) [:matches "Tic Tac Toe" :count]))))
+
+    (testing "lets visitors play again once matched"
+      (is (= :waiting (:status (enqueue "abc" {})))))
+    (scheduler/stop! (:scheduler context))))
+
+(deftest leave! []
+  (let [context (create-context)
+        ticket (m/enqueue! context {:uuid "abc"} ttt/game-definition {})]
+    (testing "removes the ticket from its queue"
+      (is (= :cancelled (:status (m/leave! context ticket ttt/game-definition))))
+      (is (= {"Tic Tac Toe" 0} (m/waiting-counts (:matchmaker context)))))
+
+    (testing "ignores tickets no longer waiting"
+      (is (nil? (m/leave! context ticket ttt/game-definition))))
+
+    (testing "forgets old tickets"
+      (m/forget-tickets! (:matchmaker context) (inc (System/currentTimeMillis)))
+      (is (nil? (m/get-ticket (:matchmaker context) (:id ticket)))))
+
+    (testing "keeps the tickets settled after the time, however long they waited"
+      (let [ticket (m/enqueue! context {:uuid "def"} ttt/game-definition {})
+            cancelled (m/leave! context (assoc ticket :enqueued-at 0) ttt/game-definition)]
+        (m/forget-tickets! (:matchmaker context) (:settled-at cancelled))
+        (is (some? (m/get-ticket (:matchmaker context) (:id ticket))))))
+    (scheduler/stop! (:scheduler context))))
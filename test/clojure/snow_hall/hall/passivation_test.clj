@@ -0,0 +1,66 @@
+(ns snow-hall.hall.passivation-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.java.io :as io]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.hall.journal :as journal]
+            [snow-hall.hall.passivation :as m])
+  (:import [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(defn- create-passivation
+  []
+  (m/create {:dir (str (Files/createTempDirectory "passivation"
+                                                  (make-array FileAttribute 0)))
+             :idle-after 0}))
+
+(defn- wait-for
+  [pred]
+  (loop [tries 0]
+    (when-not (or (pred) (> tries 500))
+      (Thread/sleep 5)
+      (recur (inc tries)))))
+
+(deftest passivate-idle! []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+        passivation (create-passivation)
+        round (rounds/create-round {:game "Tic Tac Toe" :players ["a" "b"]}
+                                   ttt/game-definition
+                                   scheduler)
+        journal (journal/create {:dir "unused"})
+        later (+ (System/currentTimeMillis) 1000)
+        passivate! #(m/passivate-idle! passivation {(:ruid round) round} later)]
+    (rounds/play-round round "a" [1 1])
+    (wait-for #(= 1 (:moves @(:state round))))
+    (journal/track-round! journal round)
+    (let [before (rounds/snapshot round)
+          last-messages (:last @(:state round))]
+      (testing "leaves pinned rounds in memory"
+        (m/pin! passivation round)
+        (is (zero? (passivate!)))
+        (m/unpin! passivation round))
+
+      (testing "writes the state of idle rounds"
+        (is (= 1 (passivate!)))
+        (is (rounds/passivated? round))
+        (is (nil? (:engine-state @(:state round))))
+        (is (identical? last-messages (:last @(:state round))))
+        (is (.exists (io/file (:passivated @(:state round))))))
+
+      (testing "snapshots the whole state"
+        (is (= before (rounds/snapshot round))))
+
+      (testing "loads back the state for requests"
+        (let [path (:passivated @(:state round))]
+          (m/pin! passivation round)
+          (is (not (rounds/passivated? round)))
+          (is (not (.exists (io/file path))))
+          (is (= (:state before) @(:state round)))
+          (is (= :accepted (rounds/play-round round "b" [0 0])))
+          (wait-for #(= 2 (:moves @(:state round))))
+          (m/unpin! passivation round)))
+
+      (testing "is not seen as a change by the journal"
+        (is (= [:move-played] (map :type @(:pending journal))))))
+    (scheduler/stop! scheduler)))
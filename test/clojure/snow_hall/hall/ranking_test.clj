@@ -0,0 +1,29 @@
+(ns snow-hall.hall.ranking-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.hall.ranking :as r]))
+
+(deftest set-rating []
+  (let [ranking (-> (r/create)
+                    (r/set-rating "a" 1500.0)
+                    (r/set-rating "b" 1520.2)
+                    (r/set-rating "c" 1480.0)
+                    (r/set-rating "d" 1519.8))]
+    (testing "ranks by rating"
+      (is (= 3 (r/rank ranking "a")))
+      (is (= 4 (r/rank ranking "c"))))
+
+    (testing "shares the rank of equal rounded ratings"
+      (is (= 1 (r/rank ranking "b") (r/rank ranking "d"))))
+
+    (testing "lists the best players in order"
+      (is (= [[1 "b" 1520.2] [1 "d" 1519.8] [3 "a" 1500.0]]
+             (r/top ranking 3))))
+
+    (testing "moves a player on update"
+      (let [updated (r/set-rating ranking "c" 1600.0)]
+        (is (= 1 (r/rank updated "c")))
+        (is (= 4 (r/rank updated "a")))
+        (is (= 4 (count (r/top updated 10))))))
+
+    (testing "ignores unknown players"
+      (is (nil? (r/rank ranking "z"))))))
@@ -11,7 +11,7 @@
 (deftest register-visitor []
   (let [registry (ref (visitor/create-registry))
         answer (m/register-visitor-request
-                registry
+                {:visitors registry}
                 (request {"nickname" "me"}))]
     (testing "adds a new visitor to the registry"
       (is (= (->> @registry (vals) (map :nickname))
@@ -0,0 +1,116 @@
+(ns snow-hall.hall.tournament-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.metrics :as metrics]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.hall.tournament :as t]))
+
+(defn- create-context
+  [max-rounds]
+  {:games (ref {"Tic Tac Toe" ttt/game-definition})
+   :rounds (ref (rounds/create-store))
+   :metrics (metrics/create-registry)
+   :scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 1})
+   :tournaments (t/create {:max-rounds max-rounds})})
+
+(defn- wait-for
+  [pred]
+  (loop [tries 0]
+    (when-not (or (pred) (> tries 500))
+      (Thread/sleep 5)
+      (recur (inc tries)))))
+
+(defn- play-win!
+  "Plays a round where the first player aligns the first row."
+  [round]
+  (doseq [[idx move] (map-indexed vector [[0 0] [1 0] [0 1] [1 1] [0 2]])]
+    (rounds/play-round round (nth (:players round) (mod idx 2)) move)
+    (wait-for #(= (inc idx) (:moves @(:state round))))))
+
+(deftest round-robin-stages []
+  (testing "pairs every player once"
+    (let [pairs (apply concat (t/round-robin-stages ["a" "b" "c" "d" "e"]))]
+      (is (= 10 (count pairs)))
+      (is (= 10 (count (set (map set pairs)))))))
+
+  (testing "plays each player once per stage"
+    (doseq [stage (t/round-robin-stages ["a" "b" "c" "d"])]
+      (is (= 4 (count (set (flatten stage))))))))
+
+(deftest create-bracket []
+  (testing "gives byes to the best seeds"
+    (is (= ["a" nil "d" "e" "b" nil "c" nil]
+           (t/create-bracket ["a" "b" "c" "d" "e"])))))
+
+(deftest swiss-pairs []
+  (let [tournament {:players ["a" "b" "c" "d" "e"]
+                    :scores {"a" 1 "b" 1 "c" 0 "d" 0 "e" 0}
+                    :ranking (:ranking (t/create-tournament
+                                        {:game ttt/game-definition
+                                         :format :swiss
+                                         :players ["a" "b" "c" "d" "e"]}))
+                    :played #{#{"a" "b"}}}]
+    (testing "avoids rematches and leaves the last player out"
+      (is (= [[["a" "c"] ["b" "d"]] "e"] (t/swiss-pairs tournament))))))
+
+(deftest record-result []
+  (let [tournament (-> (t/create-tournament {:game ttt/game-definition
+                                             :format :elimination
+                                             :players ["a" "b" "c"]})
+                       (assoc-in [:running "r1"] {:stage 1 :slot 1 :players ["b" "c"]})
+                       (update :pending pop))
+        played (t/record-result tournament "r1" [0 1])]
+    (testing "updates the ratings"
+      (is (= [[1 "c" 1516.0 1]]
+             (t/standings played 1)))
+      (is (= [3 "b" 1484.0 0] (t/standing played "b"))))
+
+    (testing "pairs the next stage"
+      (is (= 2 (:stage played)))
+      (is (= [{:stage 2 :slot 0 :players ["a" "c"]}] (seq (:pending played)))))
+
+    (testing "ignores unknown rounds"
+      (is (= played (t/record-result played "r1" [1 0]))))))
+
+(deftest start! []
+  (let [context (create-context 1)
+        tournament (t/start! context {:game ttt/game-definition
+                                      :options {}
+                                      :format :round-robin
+                                      :players ["a" "b" "c"]})
+        running-round #(some->> @tournament :running keys first (get @(:rounds context)))]
+    (testing "caps the running matches"
+      (is (= 1 (count (:running @tournament))))
+      (is (= 2 (count (:pending @tournament)))))
+
+    (testing "plays all the matches from the end messages"
+      (dotimes [_ 3]
+        (wait-for running-round)
+        (let [round (running-round)]
+          (play-win! round)
+          (wait-for #(not (contains? (:running @tournament) (:ruid round))))))
+      (is (= :finished (:status @tournament)))
+      (is (= 3 (count (:results @tournament))))
+      (is (= 3 (apply + (vals (:scores @tournament))))))
+
+    (testing "forgets finished tournaments"
+      (t/forget-tournaments! (:tournaments context) (inc (System/currentTimeMillis)))
+      (is (nil? (t/get-tournament (:tournaments context) (:id @tournament)))))
+    (scheduler/stop! (:scheduler context))))
+
+(deftest removed-rounds []
+  (let [context (create-context 1)
+        tournament (t/start! context {:game ttt/game-definition
+                                      :options {}
+                                      :format :round-robin
+                                      :players ["a" "b" "c"]})
+        running-ruid #(some-> @tournament :running keys first)
+        ruid (running-ruid)]
+    (testing "frees the slot of a round leaving the node"
+      (dosync (alter (:rounds context) dissoc ruid))
+      (wait-for #(and (running-ruid) (not= ruid (running-ruid))))
+      (is (= 1 (count (:results @tournament))))
+      (is (nil? (:scores (first (:results @tournament)))))
+      (is (= 1 (count (:running @tournament)))))
+    (scheduler/stop! (:scheduler context))))
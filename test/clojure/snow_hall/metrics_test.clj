@@ -0,0 +1,79 @@
+(ns snow-hall.metrics-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.string :as str]
+            [clojure.core.async :as async]
+            [snow-hall.metrics :as m]))
+
+(deftest normalize-route []
+  (testing "replaces ids by a placeholder"
+    (is (= "GET /rounds/:id/state"
+           (m/normalize-route {:request-method :get
+                               :uri "/rounds/0c2f5b1e-7b9e-4c5a-9d4f-3c1a2b3c4d5e/state"})))
+    (is (= "POST /gatherings/:id"
+           (m/normalize-route {:request-method :post
+                               :uri "/gatherings/12"}))))
+  (testing "keeps the root"
+    (is (= "GET /" (m/normalize-route {:request-method :get :uri "/"})))))
+
+(deftest wrap-latency []
+  (let [registry (m/create-registry)
+        routed (m/wrap-route-label (constantly {:status 200}))
+        handler (m/wrap-latency (fn [req]
+                                  (if (= "/ping" (:uri req))
+                                    (routed (assoc req :compojure/route [:get "/ping"]))
+                                    {:status 404}))
+                                registry)]
+    (handler {:request-method :get :uri "/ping"})
+    (handler {:request-method :get :uri "/ping"})
+    (testing "counts the requests per route"
+      (is (= 2 (get-in @registry [:latencies "GET /ping" :count]))))
+    (testing "renders the histogram"
+      (let [text (m/render (m/registry-families registry))]
+        (is (str/includes? text "# TYPE snow_hall_request_duration_seconds histogram"))
+        (is (str/includes? text "snow_hall_request_duration_seconds_bucket{route=\"GET /ping\",le=\"+Inf\"} 2"))
+        (is (str/includes? text "snow_hall_request_duration_seconds_count{route=\"GET /ping\"} 2"))))
+    (testing "labels the unmatched requests together"
+      (handler {:request-method :get :uri "/a"})
+      (handler {:request-method :post :uri "/b/c"})
+      (is (= 2 (get-in @registry [:latencies m/unmatched-route :count])))))
+  (testing "names the parameters of the contexts"
+    (let [registry (m/create-registry)
+          handler (m/wrap-latency (m/wrap-route-label (constantly {:status 200})) registry)]
+      (handler {:request-method :put
+                :uri "/rounds/r%201/state"
+                :context "/rounds/r%201"
+                :route-params {:ruid "r 1"}
+                :compojure/route [:put "/state"]})
+      (is (= 1 (get-in @registry [:latencies "PUT /rounds/:ruid/state" :count]))))))
+
+(deftest tracked-dosync []
+  (let [registry (m/create-registry)
+        r (ref 0)]
+    (testing "counts transactions without retries"
+      (m/tracked-dosync registry "inc" (alter r inc))
+      (is (= {:attempts 1 :runs 1} (get-in @registry [:transactions "inc"]))))
+
+    (testing "counts retries"
+      (let [started (promise)
+            resume (promise)
+            tx (future
+                 (m/tracked-dosync registry "conflict"
+                   (deliver started true)
+                   @resume
+                   (alter r inc)))]
+        @started
+        (dosync (alter r inc))
+        (deliver resume true)
+        @tx
+        (is (= 3 @r))
+        (is (= 2 (get-in @registry [:transactions "conflict" :attempts])))))))
+
+(deftest channel-depths []
+  (let [c (async/chan 2)]
+    (async/>!! c 1)
+    (async/>!! c 2)
+    (async/put! c 3)
+    (testing "counts buffered values"
+      (is (= 2 (m/buffered-count c))))
+    (testing "counts parked puts"
+      (is (= 1 (m/pending-puts c))))))
@@ -0,0 +1,66 @@
+(ns snow-hall.rest.pagination-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.rest.core :refer [resolved? resolved]]
+            [snow-hall.rest.pagination :as m]))
+
+(def tab
+  (into (butler/create-tab)
+        (map #(vector (str %) {:id (str %) :n %}) (range 1 26))))
+
+(defn- all-pages
+  [store limit pred]
+  (loop [after nil
+         pages []]
+    (let [[values next-key] (m/page store {:limit limit :after after} pred)
+          pages (conj pages (map :n values))]
+      (if next-key
+        (recur next-key pages)
+        pages))))
+
+(deftest page []
+  (testing "follows the order of the ids"
+    (is (= (range 1 11)
+           (map :n (first (m/page tab {:limit 10} any?))))))
+  (testing "walks all values by pages"
+    (is (= [(range 1 11) (range 11 21) (range 21 26)]
+           (all-pages tab 10 any?))))
+  (testing "filters the values"
+    (is (= [[2 4 6 8] [10 12 14 16] [18 20 22 24]]
+           (all-pages tab 4 (comp even? :n)))))
+  (testing "ends without next page"
+    (is (nil? (second (m/page tab {:limit 25} any?)))))
+  (testing "stops scanning after scan entries"
+    (is (= [[2 4] "5"]
+           (update (m/page tab {:limit 4 :scan 5} (comp even? :n)) 0 #(map :n %))))
+    (is (= [[] "5"]
+           (update (m/page tab {:limit 4 :scan 5} (comp #{20} :n)) 0 #(map :n %))))
+    (testing "and continues from the last entry read"
+      (is (= [[6 8 10] "10"]
+             (update (m/page tab {:limit 4 :scan 5 :after "5"} (comp even? :n)) 0 #(map :n %))))))
+  (testing "ends once the whole store is scanned"
+    (is (= [[22 24] nil]
+           (update (m/page tab {:limit 4 :scan 5 :after "20"} (comp even? :n)) 0 #(map :n %))))))
+
+(deftest page-keys []
+  (let [ks (into (sorted-set-by butler/compare-ids) ["3" "12" "7" "20"])]
+    (testing "walks the keys in order"
+      (is (= [[3 7] "7"] (update (m/page-keys tab ks {:limit 2}) 0 #(map :n %))))
+      (is (= [[12 20] nil] (update (m/page-keys tab ks {:limit 2 :after "7"}) 0 #(map :n %)))))
+    (testing "ends without next page"
+      (is (nil? (second (m/page-keys tab ks {:limit 4})))))))
+
+(deftest with-page-request []
+  (testing "reads the limit and the cursor"
+    (is (= (resolved {:limit 10 :after "12"})
+           (m/with-page-request {:query-params {"limit" "10"
+                                                "cursor" (m/encode-cursor "12")}}
+                                identity))))
+  (testing "uses a default limit"
+    (is (= (resolved {:limit m/default-limit :after nil})
+           (m/with-page-request {} identity))))
+  (testing "rejects invalid requests"
+    (is (not (resolved? (m/with-page-request {:query-params {"limit" "0"}} identity))))
+    (is (not (resolved? (m/with-page-request {:query-params {"limit" "x"}} identity))))
+    (is (not (resolved? (m/with-page-request {:query-params {"cursor" "a!"}}
+                                             identity))))))
@@ -0,0 +1,156 @@
+(ns snow-hall.rest.rounds-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [snow-hall.games.game :as game]
+            [snow-hall.games.round :as rounds]
+            [snow-hall.games.scheduler :as scheduler]
+            [snow-hall.games.library.rpsls :as rpsls]
+            [snow-hall.games.library.tic-tac-toe :as ttt]
+            [snow-hall.hall.butler :as butler]
+            [snow-hall.hall.limiter :as limiter]
+            [snow-hall.rest.core :refer [resolved resolved?]]
+            [snow-hall.rest.rounds :as m]))
+
+(defn- body-str
+  [response]
+  (slurp (:body response)))
+
+(deftest versioned-state []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 4})
+        visitors {"abc" {:uuid "abc" :token "t1"}
+                  "def" {:uuid "def" :token "t2"}}
+        round (rounds/create-round {:game (game/get-name ttt/game-definition)
+                                    :players ["abc" "def"]}
+                                   ttt/game-definition
+                                   scheduler)
+        context {:rounds (ref {(:ruid round) round})
+                 :archives (ref {})
+                 :visitors (ref visitors)}
+        request (fn [f etag]
+                  (f context
+                     (:ruid round)
+                     {:headers (cond-> {"authorization" "abc:t1"}
+                                 etag (assoc "if-none-match" etag))}))
+        first-read (request m/get-state-request nil)
+        etag (get-in first-read [:headers "ETag"])]
+    (testing "tags the state with its version"
+      (is (= 200 (:status first-read)))
+      (is (re-find #"---------" (body-str first-read)))
+      (is (some? etag)))
+
+    (testing "answers 304 while the state does not change"
+      (let [response (request m/get-state-request etag)]
+        (is (= 304 (:status response)))
+        (is (nil? (:body response)))))
+
+    (testing "reuses the encoded state"
+      (let [before (get @(:responses round) [:state "abc"])]
+        (request m/get-state-request nil)
+        (is (identical? (second before)
+                        (second (get @(:responses round) [:state "abc"]))))))
+
+    (testing "answers the new state once changed"
+      (rounds/play-round round "abc" [0 0])
+      (scheduler/await-idle scheduler 1000)
+      (let [response (request m/get-state-request etag)]
+        (is (= 200 (:status response)))
+        (is (re-find #"X--------" (body-str response)))
+        (is (not= etag (get-in response [:headers "ETag"])))))
+
+    (testing "changes the version of messages once read"
+      (let [response (request m/list-messages-request nil)
+            read-etag (get-in response [:headers "ETag"])]
+        (is (re-find #"X--------" (body-str response)))
+        (let [after-read (request m/list-messages-request read-etag)]
+          (is (= 200 (:status after-read)))
+          (is (= 304 (:status (request m/list-messages-request
+                                       (get-in after-read [:headers "ETag"]))))))))
+    (scheduler/stop! scheduler)))
+
+(deftest batch []
+  (let [scheduler (scheduler/create-scheduler {:workers 1 :move-queue-size 4})
+        visitors {"abc" {:uuid "abc" :token "t1"}}
+        create #(rounds/create-round {:game (game/get-name ttt/game-definition)
+                                      :players ["abc" "def"]}
+                                     ttt/game-definition
+                                     scheduler)
+        [r1 r2] (repeatedly 2 create)
+        context {:rounds (ref {(:ruid r1) r1 (:ruid r2) r2})
+                 :archives (ref {})
+                 :visitors (ref visitors)}
+        batch (fn [operations]
+                (m/batch-request context
+                                 {:headers {"authorization" "abc:t1"}
+                                  :body {"operations" operations}}))]
+    (testing "plays moves on several rounds"
+      (let [{:keys [status body]} (batch [{"round" (str (:ruid r1)) "op" "move" "move" [0 0]}
+                                          {"round" (str (:ruid r2)) "op" "move" "move" [1 1]}])]
+        (is (= 200 status))
+        (is (= [200 200] (map :status body))))
+      (scheduler/await-idle scheduler 1000)
+      (is (= "X--------" (:content (rounds/read-last-state r1 "abc"))))
+      (is (= "----X----" (:content (rounds/read-last-state r2 "abc")))))
+
+    (testing "reads the states with their version"
+      (let [{:keys [body]} (batch [{"round" (str (:ruid r1)) "op" "state"}])
+            [{:keys [status etag] :as result}] body]
+        (is (= 200 status))
+        (is (= "X--------" (get-in result [:body :content])))
+        (testing "and answers 304 for known versions"
+          (is (= 304 (:status (first (:body (batch [{"round" (str (:ruid r1))
+                                                     "op" "state"
+                                                     "etag" etag}])))))))))
+
+    (testing "answers each operation on its own"
+      (let [{:keys [body]} (batch [{"round" (str (:ruid r1)) "op" "messages"}
+                                   {"round" "nope" "op" "state"}
+                                   {"round" (str (:ruid r2)) "op" "jump"}])]
+        (is (= [200 400 400] (map :status body)))
+        (is (= ["---------" "X--------"] (map :content (:body (first body)))))))
+
+    (testing "answers 404 for unknown rounds"
+      (is (= 404 (:status (first (:body (batch [{"round" "00000000-0000-0000-0000-000000000000"
+                                                 "op" "state"}])))))))
+
+    (testing "rejects too large batches"
+      (is (= 400 (:status (batch (repeat 1001 {}))))))
+
+    (testing "charges each move to the move limit"
+      (let [limited (assoc context :limiter (limiter/create {:limits {limiter/moves-route {:rate 1 :burst 1}}}))
+            [r3 r4] (repeatedly 2 create)
+            _ (dosync (alter (:rounds context) assoc (:ruid r3) r3 (:ruid r4) r4))
+            {:keys [body]} (m/batch-request limited
+                                            {:headers {"authorization" "abc:t1"}
+                                             :body {"operations" [{"round" (str (:ruid r3)) "op" "move" "move" [0 0]}
+                                                                  {"round" (str (:ruid r4)) "op" "move" "move" [0 0]}
+                                                                  {"round" (str (:ruid r4)) "op" "state"}]}})]
+        (is (= [200 429 200] (map :status body)))
+        (is (= "1" (:retry-after (second body))))))
+    (scheduler/stop! scheduler)))
+
+(deftest with-gathering []
+  (let [tab (assoc (butler/create-tab) "12" {:id "12"})]
+    (testing "resolves the gathering"
+      (is (= (resolved {:id "12"}) (m/with-gathering tab (constantly "12")))))
+    (testing "rejects unknown gatherings"
+      (is (= 404 (:status (second (m/with-gathering tab (constantly "13")))))))
+    (testing "rejects ids which are not strings"
+      (is (= 400 (:status (second (m/with-gathering tab (constantly 12))))))
+      (is (= 400 (:status (second (m/with-gathering tab (constantly nil)))))))))
+
+(deftest with-sync-timeout []
+  (testing "reads the timeout of synchronous moves"
+    (is (= (resolved nil) (m/with-sync-timeout {:body {"timeout" 100}})))
+    (is (= (resolved m/default-sync-timeout) (m/with-sync-timeout {:body {"sync" true}})))
+    (is (= (resolved 100) (m/with-sync-timeout {:body {"sync" true "timeout" 100}})))
+    (is (= (resolved m/max-sync-timeout) (m/with-sync-timeout {:body {"sync" true "timeout" 99999999}}))))
+  (testing "rejects invalid timeouts"
+    (is (not (resolved? (m/with-sync-timeout {:body {"sync" true "timeout" "x"}}))))
+    (is (not (resolved? (m/with-sync-timeout {:body {"sync" true "timeout" -1}}))))))
+
+(deftest with-spectated-game []
+  (let [games {"Tic Tac Toe" ttt/game-definition
+               "Rock Paper Scissors Lizard Spock" rpsls/game-definition}]
+    (testing "accepts the games giving a public view"
+      (is (resolved? (m/with-spectated-game games {:round {:game "Tic Tac Toe"}}))))
+    (testing "rejects the other games"
+      (is (= 403 (:status (second (m/with-spectated-game games {:round {:game "Rock Paper Scissors Lizard Spock"}}))))))))